@@ -18,5 +18,10 @@
 package org.tikware.api;
 
 public interface CandleListener {
+    /**
+     * Minutes of a daily candle, which covers all sessions of a trading day.
+     */
+    int DAILY = 24 * 60;
+
     void onCandle(Candle candle, int minutes, boolean realtime);
 }
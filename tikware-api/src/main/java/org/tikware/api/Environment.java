@@ -23,8 +23,40 @@ import java.util.Collection;
 public interface Environment {
     void quote(Order order, OrderListener listener);
 
+    /**
+     * Cancel the unfilled part of a working order. Listener of the order is
+     * called back on confirm.
+     *
+     * @param orderId id of the quoted order
+     */
+    void cancel(String orderId);
+
+    /**
+     * Replace price and unfilled quantity of a working order. The order is
+     * canceled and quoted again after cancel confirms. It keeps its id in the
+     * environment, and its listener is called back for the new quote, but the
+     * gateway sees a new order id {@code <id>#<version>} as exchanges don't
+     * accept a used id.
+     *
+     * @param orderId  id of the quoted order
+     * @param price    new price
+     * @param quantity new unfilled quantity
+     */
+    void modify(String orderId, Double price, Long quantity);
+
     void subscribe(String symbol, TickListener tick, CandleListener candle);
 
+    /**
+     * Subscribe candles of the timeframe. Candles are built from the one-minute
+     * candles or ticks of the datafeed.
+     *
+     * @param symbol  symbol
+     * @param candle  candle callback
+     * @param minutes minutes of a candle that divide a day, e.g. 1, 3, 5, 15,
+     *                30 or 60, or {@link CandleListener#DAILY}
+     */
+    void subscribe(String symbol, CandleListener candle, int minutes);
+
     Balance getBalance();
 
     Collection<Position> getPositions(String symbol);
@@ -21,4 +21,13 @@ public interface OrderListener {
     void onTrade(Trade trade);
 
     void onError(Throwable error);
+
+    /**
+     * Called when cancel of the order is confirmed.
+     *
+     * @param orderId  canceled order
+     * @param quantity quantity not filled and canceled
+     */
+    default void onCancel(String orderId, Long quantity) {
+    }
 }
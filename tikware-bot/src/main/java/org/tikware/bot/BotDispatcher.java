@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs callbacks of one bot on its own thread so a slow bot doesn't delay
+ * the datafeed or gateway threads shared with other bots. Callbacks wait in
+ * a bounded queue.
+ * <p>
+ * When the queue is full, a tick either waits for room ({@link #BLOCK}) or
+ * replaces the oldest queued tick ({@link #DROP_OLDEST_TICK}). Under
+ * {@link #CONFLATE} a tick always merges into the queued tick of the same
+ * listener and symbol if there is one, full or not, and otherwise makes room
+ * like {@link #DROP_OLDEST_TICK}. Trade, cancel and error callbacks are never
+ * dropped and wait for room under all policies, except when offered by a
+ * callback on the dispatcher thread, which can't wait for itself and queues
+ * past the bound.
+ */
+public class BotDispatcher implements AutoCloseable {
+    public static final Character BLOCK = 'i';
+    public static final Character DROP_OLDEST_TICK = 'j';
+    public static final Character CONFLATE = 'k';
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Deque<Event> queue = new ArrayDeque<>();
+    private final Map<TickKey, Event> latest = new HashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final String name;
+    private final int capacity;
+    private final Character policy;
+    private final LogListener log;
+    private final Thread thread;
+    private int maxDepth;
+    private boolean closed;
+
+    /**
+     * Create dispatcher and start its thread.
+     *
+     * @param name     bot name, used in thread name
+     * @param capacity maximum queued callbacks
+     * @param policy   {@link #BLOCK}, {@link #DROP_OLDEST_TICK} or {@link #CONFLATE}
+     * @param log      receives errors thrown by callbacks
+     */
+    public BotDispatcher(String name, int capacity, Character policy, LogListener log) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity " + capacity);
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.log = log;
+        this.thread = new Thread(this::run, "dispatch-" + name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public OrderListener wrap(OrderListener listener) {
+        return new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+                offer(new Event(() -> listener.onTrade(trade)));
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                offer(new Event(() -> listener.onError(error)));
+            }
+
+            @Override
+            public void onCancel(String orderId, Long quantity) {
+                offer(new Event(() -> listener.onCancel(orderId, quantity)));
+            }
+        };
+    }
+
+    public TickListener wrap(TickListener listener) {
+        return (tick, realtime) -> offer(new Event(listener, tick, realtime));
+    }
+
+    public CandleListener wrap(CandleListener listener) {
+        return (candle, minutes, realtime) -> offer(new Event(() -> listener.onCandle(candle,
+                minutes, realtime)));
+    }
+
+    private void offer(Event event) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (event.key != null && policy == CONFLATE) {
+                var e = latest.get(event.key);
+                if (e != null) {
+                    e.tick = event.tick;
+                    e.realtime = event.realtime;
+                    conflated.increment();
+                    return;
+                }
+            }
+            while (queue.size() >= capacity) {
+                if (event.key != null && policy != BLOCK) {
+                    // Make room by the oldest tick, or drop this one if no queued tick.
+                    if (!dropOldestTick()) {
+                        dropped.increment();
+                        return;
+                    }
+                    dropped.increment();
+                    break;
+                }
+                if (Thread.currentThread() == thread) {
+                    // Only this thread takes from queue, so waiting would never end.
+                    break;
+                }
+                notFull.awaitUninterruptibly();
+                if (closed) {
+                    return;
+                }
+            }
+            queue.addLast(event);
+            if (event.key != null && policy == CONFLATE) {
+                latest.put(event.key, event);
+            }
+            maxDepth = Math.max(maxDepth, queue.size());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean dropOldestTick() {
+        var it = queue.iterator();
+        while (it.hasNext()) {
+            var e = it.next();
+            if (e.key != null) {
+                it.remove();
+                latest.remove(e.key, e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void run() {
+        while (true) {
+            Event event;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                event = queue.pollFirst();
+                if (event.key != null) {
+                    latest.remove(event.key, event);
+                }
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                event.run();
+            } catch (Throwable error) {
+                try {
+                    log.onLog("Callback of " + name + " failed.", error);
+                } catch (Throwable ignored) {
+                }
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Character getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Get number of queued callbacks.
+     *
+     * @return queue depth
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getConflated() {
+        return conflated.sum();
+    }
+
+    /**
+     * Stop accepting callbacks, run the queued ones and stop the thread.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Event {
+        private final Runnable task;
+        private final TickListener listener;
+        private final TickKey key;
+        private Tick tick;
+        private boolean realtime;
+
+        Event(Runnable task) {
+            this.task = task;
+            this.listener = null;
+            this.key = null;
+        }
+
+        Event(TickListener listener, Tick tick, boolean realtime) {
+            this.task = null;
+            this.listener = listener;
+            this.key = new TickKey(listener, tick.getSymbol());
+            this.tick = tick;
+            this.realtime = realtime;
+        }
+
+        void run() {
+            if (task != null) {
+                task.run();
+            } else {
+                listener.onTick(tick, realtime);
+            }
+        }
+    }
+
+    private static class TickKey {
+        private final TickListener listener;
+        private final String symbol;
+
+        TickKey(TickListener listener, String symbol) {
+            this.listener = listener;
+            this.symbol = symbol;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TickKey)) {
+                return false;
+            }
+            var k = (TickKey) o;
+            return listener == k.listener && Objects.equals(symbol, k.symbol);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(listener) + Objects.hashCode(symbol);
+        }
+    }
+}
@@ -27,38 +27,215 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public class BotEnvironment implements Environment {
-    private final User user;
     private final LogListener log;
-    private final Transaction transaction;
+    private final QuotePipeline pipeline;
+    private final WorkingOrderBook book = new WorkingOrderBook();
     private final Datafeed datafeed;
+    private volatile User user;
+    private volatile RateLimiter limiter;
+    private volatile BotDispatcher dispatcher;
+    private volatile CandleAggregator aggregator;
 
     public BotEnvironment(User user, LogListener log, Transaction transaction, Datafeed datafeed) {
+        this(user, log, QuotePipeline.direct(transaction), datafeed);
+    }
+
+    /**
+     * Create environment that quotes through the pipeline. Environments
+     * sharing a transaction should share its pipeline.
+     *
+     * @param user     user
+     * @param log      log listener
+     * @param pipeline quote pipeline of the transaction
+     * @param datafeed data feed
+     */
+    public BotEnvironment(User user, LogListener log, QuotePipeline pipeline, Datafeed datafeed) {
         this.user = user;
         this.log = log;
-        this.transaction = transaction;
+        this.pipeline = pipeline;
         this.datafeed = datafeed;
+        // Gateway is the authority of trading day.
+        user.getCalendar().reconcile(pipeline.getTransaction().getTradingDay());
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * Replace user with its settled successor.
+     *
+     * @param user settled user
+     */
+    void setUser(User user) {
+        this.user = user;
+    }
+
+    /**
+     * Set order rate limiter shared by the environments of the transaction.
+     *
+     * @param limiter rate limiter, or {@code null} for no limit
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Set dispatcher that runs the bot's order and market data callbacks on
+     * its own thread. It applies to quotes and subscriptions made afterwards.
+     *
+     * @param dispatcher dispatcher of the bot, or {@code null} to call back on
+     *                   gateway and datafeed threads
+     */
+    public void setDispatcher(BotDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Set aggregator that builds candles of other timeframes. Environments
+     * sharing a datafeed should share its aggregator.
+     *
+     * @param aggregator candle aggregator, or {@code null} to create one
+     *                   over one-minute candles of the datafeed on demand
+     * @see #getCandleAggregator()
+     */
+    public void setCandleAggregator(CandleAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    /**
+     * Get aggregator that builds candles of other timeframes, creating one
+     * over one-minute candles of the datafeed if none is set. A created
+     * aggregator publishes all candles when the user's calendar changes
+     * trading day. Host calls {@link CandleAggregator#closeSession()} at the
+     * end of each session of the calendar.
+     *
+     * @return candle aggregator
+     */
+    public CandleAggregator getCandleAggregator() {
+        var a = aggregator;
+        if (a == null) {
+            synchronized (this) {
+                if (aggregator == null) {
+                    aggregator = new CandleAggregator(datafeed, CandleAggregator.FROM_CANDLE, log);
+                    user.getCalendar().addListener(aggregator);
+                }
+                a = aggregator;
+            }
+        }
+        return a;
+    }
+
+    public WorkingOrderBook getOrderBook() {
+        return book;
     }
 
     @Override
     public void quote(Order order, OrderListener listener) {
-        var offset = order.getOffset();
+        var d = dispatcher;
+        if (d != null) {
+            listener = d.wrap(listener);
+        }
+        WorkingOrder w;
         try {
-            if (offset == Order.OPEN) {
-                open(order, listener);
-            } else if (offset == Order.CLOSE) {
-                close(order, listener);
-            } else {
-                throw new IllegalOffsetError(order.getOffset().toString());
-            }
-        } catch (Throwable throwable) {
+            w = book.add(this, order, listener);
+        } catch (Throwable error) {
             try {
-                listener.onError(throwable);
+                listener.onError(error);
             } catch (Throwable ignored) {
             }
+            return;
+        }
+        var t = pipeline.getTracer();
+        if (t != null) {
+            t.begin(order.getId());
+        }
+        submit(order, w);
+    }
+
+    /**
+     * Quote the modified order after the previous one is canceled.
+     */
+    void requote(Order order, WorkingOrder working) {
+        submit(order, working);
+    }
+
+    private void submit(Order order, WorkingOrder working) {
+        var l = limiter;
+        if (l == null) {
+            pipeline.submit(this, order, working);
+            return;
+        }
+        var delay = l.acquire(order.getUser(), order.getExchange());
+        if (delay < 0) {
+            working.onError(new RateLimitError(order.getId() + "/" + order.getUser() + "/" +
+                                               order.getExchange()));
+        } else if (delay == 0) {
+            pipeline.submit(this, order, working);
+        } else {
+            // Queued until tokens refill.
+            l.schedule(delay, () -> pipeline.submit(this, order, working));
+        }
+    }
+
+    @Override
+    public void cancel(String orderId) {
+        working(orderId).cancel(pipeline.getTransaction());
+    }
+
+    @Override
+    public void modify(String orderId, Double price, Long quantity) {
+        if (quantity == null || quantity <= 0) {
+            throw new IllegalQuantityError(orderId + "/" + quantity);
         }
+        working(orderId).modify(pipeline.getTransaction(), price, quantity);
     }
 
-    private void close(Order order, OrderListener listener) throws IllegalCommissionError {
+    private WorkingOrder working(String orderId) {
+        var w = book.get(orderId);
+        if (w == null) {
+            throw new OrderNotFoundError(orderId);
+        }
+        return w;
+    }
+
+    /**
+     * Validate stage of the pipeline.
+     */
+    void validate(Order order) {
+        var offset = order.getOffset();
+        if (offset != Order.OPEN && offset != Order.CLOSE) {
+            throw new IllegalOffsetError(String.valueOf(offset));
+        }
+        var quantity = order.getQuantity();
+        if (quantity == null || quantity <= 0) {
+            throw new IllegalQuantityError(order.getId() + "/" + quantity);
+        }
+    }
+
+    /**
+     * Freeze stage of the pipeline. It adds the orders to send to the event,
+     * or reports error to listener and adds none.
+     */
+    void freeze(QuoteEvent event) {
+        if (!((WorkingOrder) event.listener).beginSend()) {
+            // Canceled before sent.
+            return;
+        }
+        if (event.order.getOffset() == Order.OPEN) {
+            open(event);
+        } else {
+            close(event);
+        }
+        var t = pipeline.getTracer();
+        if (t != null) {
+            t.mark(((WorkingOrder) event.listener).getId(), LatencyTracer.FREEZE);
+        }
+    }
+
+    private void close(QuoteEvent event) throws IllegalCommissionError {
+        var order = event.order;
+        var listener = event.listener;
         List<CloseInfo> infos = freezeClose(order.getUser(),order.getSymbol(), order.getDirection(),
                 order.getPrice(), order.getQuantity());
         // Encountering error, all open infos are cleared and the error info is
@@ -68,53 +245,41 @@ public class BotEnvironment implements Environment {
         } else if (infos.isEmpty()) {
             listener.onError(new IllegalQuantityError("Empty frozen position."));
         } else {
-            sendQuote(order, infos, listener);
+            formQuotes(event, infos);
         }
     }
 
-    private void sendQuote(Order order, List<CloseInfo> infos, OrderListener listener) {
-        // Find close today position and build a specific order to close them.
-        var todayInfos = findToday(infos, user.getPersistence().getTradingDay());
+    private void formQuotes(QuoteEvent event, List<CloseInfo> infos) {
+        var order = event.order;
+        var listener = event.listener;
+        // Split lots opened today and before, and build an order for each.
+        var todayInfos = new ArrayList<CloseInfo>();
+        var ydInfos = new ArrayList<CloseInfo>();
+        infos.forEach(info -> (info.isToday() ? todayInfos : ydInfos).add(info));
         var today = formOrder(todayInfos, order, 1);
-        // Find yesterday position and build an order for them.
-        var ydInfos = findYd(infos, todayInfos);
         var yd = formOrder(ydInfos, order, 2);
-        synchronized (transaction) {
-            if (today != null) {
-                today.setOffset(Order.CLOSE_TODAY);
-                transaction.quote(today, new CloseQuoteListener(user, listener, todayInfos));
-            }
-            if (yd != null) {
-                yd.setOffset(Order.CLOSE_YD);
-                transaction.quote(yd, new CloseQuoteListener(user, listener, ydInfos));
-            }
+        if (today != null) {
+            today.setOffset(Order.CLOSE_TODAY);
+            event.add(today, traced(new CloseQuoteListener(user, leg(listener, today), todayInfos),
+                    listener));
+        }
+        if (yd != null) {
+            yd.setOffset(Order.CLOSE_YD);
+            event.add(yd, traced(new CloseQuoteListener(user, leg(listener, yd), ydInfos),
+                    listener));
         }
     }
 
-    private List<CloseInfo> findToday(List<CloseInfo> infos, String tradingDay) {
-        var r = new LinkedList<CloseInfo>();
-        infos.forEach(info -> {
-            var pid = info.getPositionId();
-            var p = user.getPositions().get(pid);
-            if (p == null) {
-                throw new PositionNotFoundError(pid);
-            }
-            if (p.getOpenTradingDay().equals(tradingDay)) {
-                r.add(info);
-            }
-        });
-        return r;
+    private OrderListener traced(QuoteListener<?> quote, OrderListener listener) {
+        var t = pipeline.getTracer();
+        if (t != null) {
+            quote.trace(t, ((WorkingOrder) listener).getId());
+        }
+        return quote;
     }
 
-    private List<CloseInfo> findYd(List<CloseInfo> infos, List<CloseInfo> todayInfos) {
-        var s = new HashSet<>(todayInfos);
-        var r = new LinkedList<CloseInfo>();
-        infos.forEach(info -> {
-            if (!s.contains(info)) {
-                r.add(info);
-            }
-        });
-        return r;
+    private OrderListener leg(OrderListener listener, Order leg) {
+        return ((WorkingOrder) listener).leg(leg);
     }
 
     private Order formOrder(List<CloseInfo> infos, Order order, int subOrder) {
@@ -135,6 +300,12 @@ public class BotEnvironment implements Environment {
 
     private List<CloseInfo> freezeClose(String u, String symbol, Character direction, Double price,
             Long quantity) throws IllegalCommissionError {
+        // Freeze all lots in one unit of work.
+        return user.unitOfWork(() -> freezeCloseLots(u, symbol, direction, price, quantity));
+    }
+
+    private List<CloseInfo> freezeCloseLots(String u, String symbol, Character direction,
+            Double price, Long quantity) {
         var r = new LinkedList<CloseInfo>();
         var count = 0;
         while (count++ < quantity) {
@@ -150,8 +321,9 @@ public class BotEnvironment implements Environment {
         return r;
     }
 
-    private void open(Order order, OrderListener listener) throws IllegalMarginError,
-            IllegalCommissionError {
+    private void open(QuoteEvent event) throws IllegalMarginError, IllegalCommissionError {
+        var order = event.order;
+        var listener = event.listener;
         var infos = freezeOpen(order.getUser(), order.getSymbol(), order.getExchange(),
                 order.getDirection(), order.getPrice(), order.getQuantity());
         // Encountering error, all open infos are cleared and the error info is
@@ -161,15 +333,21 @@ public class BotEnvironment implements Environment {
         } else if (infos.isEmpty()) {
             listener.onError(new IllegalQuantityError("Empty open quantity."));
         } else {
-            synchronized (transaction) {
-                transaction.quote(order, new OpenQuoteListener(user, listener, infos));
-            }
+            event.add(order, traced(new OpenQuoteListener(user, leg(listener, order), infos),
+                    listener));
         }
     }
 
     private List<OpenInfo> freezeOpen(String u, String symbol, String exchange,
             Character direction, Double price, Long quantity)
             throws IllegalMarginError, IllegalCommissionError {
+        // Freeze all lots in one unit of work.
+        return user.unitOfWork(() -> freezeOpenLots(u, symbol, exchange, direction, price,
+                quantity));
+    }
+
+    private List<OpenInfo> freezeOpenLots(String u, String symbol, String exchange,
+            Character direction, Double price, Long quantity) {
         var r = new LinkedList<OpenInfo>();
         int count = 0;
         while (count++ < quantity) {
@@ -187,6 +365,11 @@ public class BotEnvironment implements Environment {
 
     @Override
     public void subscribe(String symbol, TickListener tick, CandleListener candle) {
+        var d = dispatcher;
+        if (d != null) {
+            tick = tick == null ? null : d.wrap(tick);
+            candle = candle == null ? null : d.wrap(candle);
+        }
         if (tick != null) {
             datafeed.subscribe(symbol, tick);
         }
@@ -195,6 +378,37 @@ public class BotEnvironment implements Environment {
         }
     }
 
+    @Override
+    public void subscribe(String symbol, CandleListener candle, int minutes) {
+        if (aggregator == null && minutes == 1) {
+            subscribe(symbol, null, candle);
+            return;
+        }
+        var a = getCandleAggregator();
+        var d = dispatcher;
+        if (d != null) {
+            // Aggregator reuses its candle, copy it before handing off to bot thread.
+            var w = d.wrap(candle);
+            candle = (c, m, r) -> w.onCandle(copy(c), m, r);
+        }
+        a.subscribe(symbol, minutes, candle);
+    }
+
+    private static Candle copy(Candle c) {
+        var r = new Candle();
+        r.setId(c.getId());
+        r.setSymbol(c.getSymbol());
+        r.setOpenPrice(c.getOpenPrice());
+        r.setHighPrice(c.getHighPrice());
+        r.setLowPrice(c.getLowPrice());
+        r.setClosePrice(c.getClosePrice());
+        r.setVolume(c.getVolume());
+        r.setPosition(c.getPosition());
+        r.setTradingDay(c.getTradingDay());
+        r.setTime(c.getTime());
+        return r;
+    }
+
     @Override
     public Balance getBalance() {
         var b = new Balance();
@@ -212,8 +426,8 @@ public class BotEnvironment implements Environment {
                      + b.getPositionProfit() + b.getCloseProfit() - b.getCommission());
         b.setAvailable(b.getBalance() - b.getMargin() - b.getFrozenMargin()
                        - b.getFrozenCommission());
-        b.setTime(user.getPersistence().getDateTime());
-        b.setTradingDay(user.getPersistence().getTradingDay());
+        b.setTime(user.getClock().getDateTime());
+        b.setTradingDay(user.getCalendar().getTradingDay());
         return b;
     }
 
@@ -272,8 +486,8 @@ public class BotEnvironment implements Environment {
             var p = new Position();
             p.setSymbol(symbol);
             p.setDirection(direction);
-            p.setTradingDay(user.getPersistence().getTradingDay());
-            p.setTime(user.getPersistence().getDateTime());
+            p.setTradingDay(user.getCalendar().getTradingDay());
+            p.setTime(user.getClock().getDateTime());
             ps.add(p);
             return p;
         }
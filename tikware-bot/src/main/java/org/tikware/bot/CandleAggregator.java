@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.Candle;
+import org.tikware.api.CandleListener;
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.spi.Datafeed;
+import org.tikware.user.TradingDayListener;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Builds candles of many timeframes from ticks or one-minute candles of a
+ * datafeed. A symbol is subscribed to the datafeed once, all timeframes of
+ * the symbol are updated from the same input.
+ * <p>
+ * Intraday candles are aligned to the wall clock, e.g. 5-minute candles start
+ * at 09:00, 09:05 and so on, and a candle doesn't cross a session gap or a
+ * trading day. A candle is published once the next minute is seen, or on
+ * {@link #closeSession(String)}. Daily candles are published when the trading
+ * day changes, or on {@link #closeTradingDay(String)}.
+ * <p>
+ * Add the aggregator to {@link org.tikware.user.TradingCalendar} to publish
+ * all candles when the calendar changes trading day, and call
+ * {@link #closeSession()} at the end of each session so the last candles of
+ * the session are not held until the next session opens.
+ * <p>
+ * Updates are accumulated in primitive fields, and each timeframe publishes
+ * the same {@link Candle} instance. Listeners must copy the candle if they
+ * keep it.
+ */
+public class CandleAggregator implements TickListener, CandleListener, TradingDayListener {
+    public static final Character FROM_TICK = 'l';
+    public static final Character FROM_CANDLE = 'm';
+
+    private static final int DAY = 24 * 60;
+
+    private final Datafeed source;
+    private final Character input;
+    private final LogListener log;
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    /**
+     * Create aggregator.
+     *
+     * @param source datafeed to subscribe
+     * @param input  {@link #FROM_TICK} or {@link #FROM_CANDLE}
+     * @param log    receives errors thrown by listeners
+     */
+    public CandleAggregator(Datafeed source, Character input, LogListener log) {
+        if (input != FROM_TICK && input != FROM_CANDLE) {
+            throw new IllegalArgumentException(String.valueOf(input));
+        }
+        this.source = source;
+        this.input = input;
+        this.log = log;
+    }
+
+    /**
+     * Subscribe candles of the symbol.
+     *
+     * @param symbol   symbol
+     * @param minutes  minutes of a candle that divide a day, e.g. 1, 3, 5,
+     *                 15, 30 or 60, or {@link CandleListener#DAILY}
+     * @param listener candle callback
+     */
+    public void subscribe(String symbol, int minutes, CandleListener listener) {
+        if (minutes < 1 || DAY % minutes != 0) {
+            throw new IllegalArgumentException("Invalid candle minutes: " + minutes + ".");
+        }
+        var created = new boolean[1];
+        var s = series.computeIfAbsent(symbol, k -> {
+            created[0] = true;
+            return new Series();
+        });
+        s.bar(minutes).listeners.add(listener);
+        if (created[0]) {
+            if (input == FROM_TICK) {
+                source.subscribe(symbol, (TickListener) this);
+            } else {
+                source.subscribe(symbol, (CandleListener) this);
+            }
+        }
+    }
+
+    @Override
+    public void onTick(Tick tick, boolean realtime) {
+        var s = series.get(tick.getSymbol());
+        if (s == null || tick.getPrice() == null || tick.getTime() == null) {
+            return;
+        }
+        synchronized (s) {
+            s.onTick(tick, realtime);
+        }
+    }
+
+    /**
+     * Receive one-minute candle whose time is the start of the minute.
+     */
+    @Override
+    public void onCandle(Candle candle, int minutes, boolean realtime) {
+        var s = series.get(candle.getSymbol());
+        if (s == null || minutes != 1 || candle.getTime() == null) {
+            return;
+        }
+        synchronized (s) {
+            s.onCandle(candle, realtime);
+        }
+    }
+
+    /**
+     * Publish intraday candles of the symbol at the end of a trading session,
+     * without waiting for ticks of the next session.
+     *
+     * @param symbol symbol
+     */
+    public void closeSession(String symbol) {
+        var s = series.get(symbol);
+        if (s != null) {
+            synchronized (s) {
+                s.closeSession(false);
+            }
+        }
+    }
+
+    /**
+     * Publish all candles of the symbol, including the daily candle.
+     *
+     * @param symbol symbol
+     */
+    public void closeTradingDay(String symbol) {
+        var s = series.get(symbol);
+        if (s != null) {
+            synchronized (s) {
+                s.closeDay(false);
+            }
+        }
+    }
+
+    /**
+     * Publish intraday candles of all symbols at the end of a trading session.
+     */
+    public void closeSession() {
+        for (var symbol : series.keySet()) {
+            closeSession(symbol);
+        }
+    }
+
+    /**
+     * Publish all candles of all symbols, including daily candles.
+     */
+    public void closeTradingDay() {
+        for (var symbol : series.keySet()) {
+            closeTradingDay(symbol);
+        }
+    }
+
+    @Override
+    public void onTradingDay(String previous, String current) {
+        closeTradingDay();
+    }
+
+    private static long minuteIndex(LocalDateTime time) {
+        return time.toLocalDate().toEpochDay() * DAY + time.getHour() * 60 + time.getMinute();
+    }
+
+    private static LocalDateTime timeOf(long index) {
+        return LocalDateTime.of(LocalDate.ofEpochDay(Math.floorDiv(index, DAY)),
+                LocalTime.ofSecondOfDay(Math.floorMod(index, DAY) * 60L));
+    }
+
+    private class Series {
+        // One-minute candle built from ticks.
+        private final Bar minute = new Bar(1);
+        private final List<Bar> bars = new CopyOnWriteArrayList<>();
+        private LocalDate tradingDay;
+        private long dayVolume = -1;
+
+        Bar bar(int minutes) {
+            synchronized (this) {
+                if (minutes == 1 && input == FROM_TICK) {
+                    return minute;
+                }
+                for (var b : bars) {
+                    if (b.minutes == minutes) {
+                        return b;
+                    }
+                }
+                var b = new Bar(minutes);
+                bars.add(b);
+                return b;
+            }
+        }
+
+        void onTick(Tick tick, boolean realtime) {
+            var day = tick.getTradingDay();
+            if (day != null && !day.equals(tradingDay)) {
+                if (tradingDay != null) {
+                    closeDay(realtime);
+                    // Day volume restarts from zero.
+                    dayVolume = 0;
+                }
+                tradingDay = day;
+            }
+            var i = minuteIndex(tick.getTime());
+            if (minute.open && minute.key != i) {
+                publishMinute(realtime);
+            }
+            long volume = 0;
+            var v = tick.getDayVolume();
+            if (v != null) {
+                if (dayVolume >= 0 && v >= dayVolume) {
+                    volume = v - dayVolume;
+                }
+                dayVolume = v;
+            }
+            var p = tick.getPrice();
+            var position = tick.getDayPosition();
+            minute.update(i, tick.getSymbol(), p, p, p, p, volume,
+                    position == null ? 0 : position, tradingDay);
+        }
+
+        void onCandle(Candle candle, boolean realtime) {
+            var day = candle.getTradingDay();
+            if (day != null && !day.equals(tradingDay)) {
+                if (tradingDay != null) {
+                    closeDay(realtime);
+                }
+                tradingDay = day;
+            }
+            var i = minuteIndex(candle.getTime());
+            for (var b : bars) {
+                if (b.minutes == 1) {
+                    b.publish(candle, realtime);
+                } else {
+                    roll(b, i, candle.getSymbol(), candle.getOpenPrice(), candle.getHighPrice(),
+                            candle.getLowPrice(), candle.getClosePrice(), value(candle.getVolume()),
+                            value(candle.getPosition()), realtime);
+                }
+            }
+        }
+
+        private void publishMinute(boolean realtime) {
+            minute.publish(realtime);
+            for (var b : bars) {
+                roll(b, minute.key, minute.symbol, minute.openPrice, minute.highPrice,
+                        minute.lowPrice, minute.closePrice, minute.volume, minute.position,
+                        realtime);
+            }
+        }
+
+        /*
+         * Merge a completed minute into the bar, and publish the bar if the
+         * minute ends it.
+         */
+        private void roll(Bar b, long index, String symbol, double open, double high,
+                double low, double close, long volume, long position, boolean realtime) {
+            if (b.minutes == DAY) {
+                b.update(0, symbol, open, high, low, close, volume, position, tradingDay);
+                if (b.time == null) {
+                    b.time = timeOf(index);
+                }
+                return;
+            }
+            var key = index - Math.floorMod(index, b.minutes);
+            if (b.open && b.key != key) {
+                // Gap across the bar end, e.g. session break.
+                b.publish(realtime);
+            }
+            b.update(key, symbol, open, high, low, close, volume, position, tradingDay);
+            var end = index + 1;
+            if (end - Math.floorMod(end, b.minutes) != key) {
+                b.publish(realtime);
+            }
+        }
+
+        void closeSession(boolean realtime) {
+            if (minute.open) {
+                publishMinute(realtime);
+            }
+            for (var b : bars) {
+                if (b.minutes != DAY && b.open) {
+                    b.publish(realtime);
+                }
+            }
+        }
+
+        void closeDay(boolean realtime) {
+            closeSession(realtime);
+            for (var b : bars) {
+                if (b.minutes == DAY && b.open) {
+                    b.publish(realtime);
+                }
+            }
+        }
+
+        private long value(Long v) {
+            return v == null ? 0 : v;
+        }
+    }
+
+    private class Bar {
+        private final int minutes;
+        private final List<CandleListener> listeners = new CopyOnWriteArrayList<>();
+        private final Candle candle = new Candle();
+        private boolean open;
+        private long key;
+        private String symbol;
+        private double openPrice;
+        private double highPrice;
+        private double lowPrice;
+        private double closePrice;
+        private long volume;
+        private long position;
+        private LocalDate tradingDay;
+        private LocalDateTime time;
+
+        Bar(int minutes) {
+            this.minutes = minutes;
+        }
+
+        void update(long key, String symbol, double open, double high, double low, double close,
+                long volume, long position, LocalDate tradingDay) {
+            if (!this.open) {
+                this.open = true;
+                this.key = key;
+                this.symbol = symbol;
+                this.openPrice = open;
+                this.highPrice = high;
+                this.lowPrice = low;
+                this.volume = 0;
+                this.tradingDay = tradingDay;
+                this.time = minutes == DAY ? null : timeOf(key);
+            }
+            this.highPrice = Math.max(this.highPrice, high);
+            this.lowPrice = Math.min(this.lowPrice, low);
+            this.closePrice = close;
+            this.volume += volume;
+            this.position = position;
+        }
+
+        void publish(boolean realtime) {
+            open = false;
+            if (listeners.isEmpty()) {
+                return;
+            }
+            candle.setSymbol(symbol);
+            candle.setOpenPrice(openPrice);
+            candle.setHighPrice(highPrice);
+            candle.setLowPrice(lowPrice);
+            candle.setClosePrice(closePrice);
+            candle.setVolume(volume);
+            candle.setPosition(position);
+            candle.setTradingDay(tradingDay);
+            candle.setTime(time);
+            publish(candle, realtime);
+        }
+
+        void publish(Candle c, boolean realtime) {
+            for (var l : listeners) {
+                try {
+                    l.onCandle(c, minutes, realtime);
+                } catch (Throwable error) {
+                    try {
+                        log.onLog("Candle listener failed: " + c.getSymbol() + ".", error);
+                    } catch (Throwable ignored) {
+                    }
+                }
+            }
+        }
+    }
+}
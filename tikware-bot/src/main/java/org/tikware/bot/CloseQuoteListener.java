@@ -21,32 +21,36 @@ import org.tikware.api.Order;
 import org.tikware.api.OrderListener;
 import org.tikware.api.Trade;
 import org.tikware.user.CloseInfo;
-import org.tikware.user.QuoteInfo;
 import org.tikware.user.User;
 
 import java.util.List;
 
-public class CloseQuoteListener extends QuoteListener {
+public class CloseQuoteListener extends QuoteListener<CloseInfo> {
 
     public CloseQuoteListener(User user, OrderListener child, List<CloseInfo> infos) {
         super(user, child, infos);
     }
 
     @Override
-    protected void process(QuoteInfo info, Trade trade, User user) {
+    protected void process(List<CloseInfo> lots, Trade trade, User user) {
         var offset = trade.getOffset();
-        if (offset == Order.CLOSE) {
-            user.close(user.getBalance().getUser(), info.getPositionId(),
-                    info.getCommissionId(), trade.getPrice());
+        if (offset == Order.CLOSE || offset == Order.CLOSE_TODAY ||
+            offset == Order.CLOSE_YD) {
+            user.close(user.getBalance().getUser(), lots, trade.getPrice());
         } else {
             var u = user.getBalance().getUser();
-            onError(new IllegalOffsetError(trade.getId() + "/" + u + "/" + offset.toString()));
+            throw new IllegalOffsetError(trade.getId() + "/" + u + "/" + offset.toString());
         }
     }
 
     @Override
     protected void process(Throwable error) {
         // Undo rest infos.
-        infos().forEach(info -> user().undo((CloseInfo) info));
+        infos().forEach(this::undo);
+    }
+
+    @Override
+    protected void undo(CloseInfo info) {
+        user().undo(info);
     }
 }
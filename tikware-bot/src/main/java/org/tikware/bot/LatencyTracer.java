@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.user.LatencyHistogram;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records when each order passes the stages from quote to persisted fill, and
+ * keeps latency histograms between consecutive stages. Traces are kept in a
+ * pre-allocated ring of slots; an order not done when its slot is reused is
+ * dropped from tracing.
+ * <p>
+ * The slowest orders are kept with all their stage timestamps.
+ */
+public class LatencyTracer {
+    public static final int QUOTE = 0;
+    public static final int FREEZE = 1;
+    public static final int SEND = 2;
+    public static final int TRADE = 3;
+    public static final int PERSIST = 4;
+    private static final String[] STAGES = {"quote", "freeze", "send", "trade", "persist"};
+
+    private final Trace[] slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final Map<String, Trace> active = new ConcurrentHashMap<>();
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length - 1];
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final PriorityQueue<TraceRecord> slowest =
+            new PriorityQueue<>(Comparator.comparingLong(TraceRecord::getTotal));
+    private final int maxSlowest;
+
+    /**
+     * Create tracer.
+     *
+     * @param capacity   number of trace slots, rounded up to power of two
+     * @param maxSlowest number of slowest orders to keep
+     */
+    public LatencyTracer(int capacity, int maxSlowest) {
+        int c = 1;
+        while (c < capacity) {
+            c <<= 1;
+        }
+        this.slots = new Trace[c];
+        for (int i = 0; i < c; ++i) {
+            slots[i] = new Trace();
+        }
+        this.mask = c - 1;
+        this.maxSlowest = maxSlowest;
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Start trace of the order at {@link #QUOTE} stage.
+     *
+     * @param orderId order id
+     */
+    public void begin(String orderId) {
+        var t = slots[(int) (next.getAndIncrement() & mask)];
+        synchronized (t) {
+            if (t.id != null) {
+                active.remove(t.id, t);
+            }
+            t.id = orderId;
+            Arrays.fill(t.stamps, 0L);
+            t.stamps[QUOTE] = System.nanoTime();
+        }
+        active.put(orderId, t);
+    }
+
+    /**
+     * Record the time the order reaches the stage. Only the first time of a
+     * stage is kept, and the trace completes at {@link #PERSIST}.
+     *
+     * @param orderId order id
+     * @param stage   stage
+     */
+    public void mark(String orderId, int stage) {
+        var t = active.get(orderId);
+        if (t == null) {
+            return;
+        }
+        TraceRecord done = null;
+        synchronized (t) {
+            if (!orderId.equals(t.id) || t.stamps[stage] != 0) {
+                return;
+            }
+            t.stamps[stage] = System.nanoTime();
+            if (stage == PERSIST) {
+                done = new TraceRecord(t.id, t.stamps.clone());
+                t.id = null;
+            }
+        }
+        if (done != null) {
+            active.remove(orderId, t);
+            complete(done);
+        }
+    }
+
+    private void complete(TraceRecord r) {
+        for (int i = 0; i < stages.length; ++i) {
+            var l = r.getLatency(i, i + 1);
+            if (l >= 0) {
+                stages[i].record(l);
+            }
+        }
+        total.record(r.getTotal());
+        synchronized (slowest) {
+            if (slowest.size() < maxSlowest) {
+                slowest.add(r);
+            } else if (maxSlowest > 0 && slowest.peek().getTotal() < r.getTotal()) {
+                slowest.poll();
+                slowest.add(r);
+            }
+        }
+    }
+
+    /**
+     * Get latency histogram from the stage to the next, in nanoseconds.
+     *
+     * @param from stage, {@link #QUOTE} to {@link #TRADE}
+     * @return histogram
+     */
+    public LatencyHistogram getHistogram(int from) {
+        return stages[from];
+    }
+
+    /**
+     * Get latency histogram from quote to persisted fill, in nanoseconds.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the slowest traced orders, slowest first.
+     *
+     * @return traces
+     */
+    public List<TraceRecord> getSlowest() {
+        List<TraceRecord> r;
+        synchronized (slowest) {
+            r = new ArrayList<>(slowest);
+        }
+        r.sort(Comparator.comparingLong(TraceRecord::getTotal).reversed());
+        return r;
+    }
+
+    /**
+     * Get number of orders being traced.
+     *
+     * @return active traces
+     */
+    public int getActive() {
+        return active.size();
+    }
+
+    public String getSummary() {
+        var b = new StringBuilder();
+        for (int i = 0; i < stages.length; ++i) {
+            append(b, STAGES[i] + "-" + STAGES[i + 1], stages[i]);
+        }
+        append(b, "total", total);
+        return b.toString();
+    }
+
+    private static void append(StringBuilder b, String name, LatencyHistogram h) {
+        b.append(String.format("%s: count=%d, p50=%.1fus, p99=%.1fus, max=%.1fus%n", name,
+                h.getCount(), h.getValueAtPercentile(50) / 1000.0D,
+                h.getValueAtPercentile(99) / 1000.0D, h.getMax() / 1000.0D));
+    }
+
+    private static class Trace {
+        private final long[] stamps = new long[STAGES.length];
+        private String id;
+    }
+
+    public static class TraceRecord {
+        private final String orderId;
+        private final long[] stamps;
+
+        TraceRecord(String orderId, long[] stamps) {
+            this.orderId = orderId;
+            this.stamps = stamps;
+        }
+
+        public String getOrderId() {
+            return orderId;
+        }
+
+        /**
+         * Get time of the stage by {@link System#nanoTime()}.
+         *
+         * @param stage stage
+         * @return nanoseconds, or zero if the stage is not recorded
+         */
+        public long getStamp(int stage) {
+            return stamps[stage];
+        }
+
+        /**
+         * Get latency between two stages.
+         *
+         * @param from earlier stage
+         * @param to   later stage
+         * @return nanoseconds, or -1 if either stage is not recorded
+         */
+        public long getLatency(int from, int to) {
+            if (stamps[from] == 0 || stamps[to] == 0) {
+                return -1;
+            }
+            return stamps[to] - stamps[from];
+        }
+
+        public long getTotal() {
+            return stamps[PERSIST] - stamps[QUOTE];
+        }
+
+        @Override
+        public String toString() {
+            var b = new StringBuilder(orderId);
+            for (int i = 1; i < STAGES.length; ++i) {
+                var l = getLatency(i - 1, i);
+                b.append(' ').append(STAGES[i]).append('=')
+                 .append(l < 0 ? "-" : String.format("%.1fus", l / 1000.0D));
+            }
+            return b.toString();
+        }
+    }
+}
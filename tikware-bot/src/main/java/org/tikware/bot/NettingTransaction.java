@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.api.Trade;
+import org.tikware.spi.Clock;
+import org.tikware.spi.Transaction;
+import org.tikware.user.CoarseClock;
+import org.tikware.user.User;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Crosses opposite orders of different users on the same symbol and price
+ * before they reach the gateway. Orders are held for a short window, matched
+ * buy against sell in arrival order, and only the unmatched quantity is sent
+ * to the wrapped transaction. Matched quantity is filled by trades sent to the
+ * listeners of both orders, same as trades from exchange.
+ * <p>
+ * An order canceled while its window is being flushed keeps no quantity to
+ * send, or has its cancel sent to the wrapped transaction right after the
+ * order. A failed send is reported to the listeners of the sent orders.
+ * <p>
+ * Orders are identified by id across all users, so an order whose id is held
+ * or being sent is rejected with {@link DuplicateOrderError}.
+ */
+public class NettingTransaction implements Transaction, AutoCloseable {
+    private final Transaction transaction;
+    private final long window;
+    private final Clock clock;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private final Map<String, Pending> flushing = new HashMap<>();
+    private final LongAdder crossed = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private boolean scheduled;
+
+    public NettingTransaction(Transaction transaction, Duration window) {
+        this(transaction, window, new CoarseClock());
+    }
+
+    public NettingTransaction(Transaction transaction, Duration window, Clock clock) {
+        this.transaction = transaction;
+        this.window = window.toNanos();
+        this.clock = clock;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "netting");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void quote(Order order, OrderListener listener) {
+        var id = order.getId();
+        synchronized (this) {
+            if (!pending.containsKey(id) && !flushing.containsKey(id)) {
+                pending.put(id, new Pending(order, listener));
+                if (!scheduled) {
+                    scheduled = true;
+                    timer.schedule(this::flush, window, TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+        }
+        call(() -> listener.onError(new DuplicateOrderError(id)));
+    }
+
+    @Override
+    public void quoteBatch(List<Order> orders, List<OrderListener> listeners) {
+        for (int i = 0; i < orders.size(); ++i) {
+            quote(orders.get(i), listeners.get(i));
+        }
+    }
+
+    @Override
+    public void cancel(String orderId) {
+        Pending p;
+        synchronized (this) {
+            p = pending.remove(orderId);
+            if (p == null) {
+                var f = flushing.get(orderId);
+                if (f != null) {
+                    // Flush cancels it before or after sending.
+                    f.canceled = true;
+                    return;
+                }
+            }
+        }
+        if (p == null) {
+            transaction.cancel(orderId);
+        } else {
+            // Not sent yet.
+            call(() -> p.listener.onCancel(orderId, p.order.getQuantity()));
+        }
+    }
+
+    @Override
+    public String getTradingDay() {
+        return transaction.getTradingDay();
+    }
+
+    /**
+     * Get quantity filled by crossing, counted once for each side.
+     *
+     * @return crossed quantity
+     */
+    public long getCrossed() {
+        return crossed.sum();
+    }
+
+    /**
+     * Get quantity sent to the wrapped transaction.
+     *
+     * @return sent quantity
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * Match and send the held orders now.
+     */
+    public void flush() {
+        List<Pending> orders;
+        synchronized (this) {
+            orders = new ArrayList<>(pending.values());
+            pending.clear();
+            orders.forEach(p -> flushing.put(p.order.getId(), p));
+            scheduled = false;
+        }
+        if (orders.isEmpty()) {
+            return;
+        }
+        // Group by symbol and price, then match buys against sells.
+        var books = new LinkedHashMap<String, List<Pending>>();
+        for (var p : orders) {
+            var key = p.order.getSymbol() + "@" + p.order.getPrice();
+            books.computeIfAbsent(key, k -> new ArrayList<>()).add(p);
+        }
+        var fills = new ArrayList<Runnable>();
+        books.values().forEach(book -> cross(book, fills));
+        fills.forEach(this::call);
+        var sending = new ArrayList<Pending>();
+        var canceled = new ArrayList<Pending>();
+        var residual = new ArrayList<Order>();
+        var listeners = new ArrayList<OrderListener>();
+        synchronized (this) {
+            for (var p : orders) {
+                if (p.remaining > 0 && !p.canceled) {
+                    sending.add(p);
+                    residual.add(p.remaining == p.order.getQuantity() ? p.order : copy(p));
+                    listeners.add(p.listener);
+                    sent.add(p.remaining);
+                } else {
+                    flushing.remove(p.order.getId());
+                    if (p.remaining > 0) {
+                        canceled.add(p);
+                    }
+                }
+            }
+        }
+        canceled.forEach(p -> call(() -> p.listener.onCancel(p.order.getId(), p.remaining)));
+        if (residual.isEmpty()) {
+            return;
+        }
+        var ok = true;
+        try {
+            transaction.quoteBatch(residual, listeners);
+        } catch (Throwable error) {
+            // Quote listeners undo the frozen lots of their orders.
+            ok = false;
+            listeners.forEach(listener -> call(() -> listener.onError(error)));
+        }
+        var replay = new ArrayList<Pending>();
+        synchronized (this) {
+            for (var p : sending) {
+                flushing.remove(p.order.getId());
+                if (p.canceled) {
+                    replay.add(p);
+                }
+            }
+        }
+        if (ok) {
+            // Cancels that came in during send.
+            replay.forEach(p -> call(() -> {
+                try {
+                    transaction.cancel(p.order.getId());
+                } catch (Throwable error) {
+                    p.listener.onError(error);
+                }
+            }));
+        }
+    }
+
+    private void cross(List<Pending> book, List<Runnable> fills) {
+        for (var buy : book) {
+            if (buy.order.getDirection() != Order.BUY) {
+                continue;
+            }
+            for (var sell : book) {
+                if (buy.remaining == 0) {
+                    break;
+                }
+                if (sell.order.getDirection() != Order.SELL || sell.remaining == 0 ||
+                    Objects.equals(sell.order.getUser(), buy.order.getUser())) {
+                    continue;
+                }
+                var q = Math.min(buy.remaining, sell.remaining);
+                buy.remaining -= q;
+                sell.remaining -= q;
+                crossed.add(2 * q);
+                var b = trade(buy.order, q);
+                var s = trade(sell.order, q);
+                fills.add(() -> buy.listener.onTrade(b));
+                fills.add(() -> sell.listener.onTrade(s));
+            }
+        }
+    }
+
+    private Trade trade(Order order, long quantity) {
+        var t = new Trade();
+        t.setId("N-" + User.nextId());
+        t.setUser(order.getUser());
+        t.setOrderId(order.getId());
+        t.setSymbol(order.getSymbol());
+        t.setExchange(order.getExchange());
+        t.setPrice(order.getPrice());
+        t.setQuantity(quantity);
+        t.setDirection(order.getDirection());
+        t.setOffset(order.getOffset());
+        t.setTradingDay(transaction.getTradingDay());
+        t.setTime(clock.getDateTime());
+        return t;
+    }
+
+    private static Order copy(Pending p) {
+        var o = new Order();
+        o.setId(p.order.getId());
+        o.setUser(p.order.getUser());
+        o.setSymbol(p.order.getSymbol());
+        o.setExchange(p.order.getExchange());
+        o.setPrice(p.order.getPrice());
+        o.setQuantity(p.remaining);
+        o.setDirection(p.order.getDirection());
+        o.setOffset(p.order.getOffset());
+        o.setTime(p.order.getTime());
+        return o;
+    }
+
+    private void call(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Throwable ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+        flush();
+    }
+
+    private static class Pending {
+        private final Order order;
+        private final OrderListener listener;
+        private long remaining;
+        private boolean canceled;
+
+        Pending(Order order, OrderListener listener) {
+            this.order = order;
+            this.listener = listener;
+            this.remaining = order.getQuantity();
+        }
+    }
+}
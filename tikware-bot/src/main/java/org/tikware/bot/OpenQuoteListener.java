@@ -21,32 +21,35 @@ import org.tikware.api.Order;
 import org.tikware.api.OrderListener;
 import org.tikware.api.Trade;
 import org.tikware.user.OpenInfo;
-import org.tikware.user.QuoteInfo;
 import org.tikware.user.User;
 
 import java.util.List;
 
-public class OpenQuoteListener extends QuoteListener {
+public class OpenQuoteListener extends QuoteListener<OpenInfo> {
 
     public OpenQuoteListener(User user, OrderListener child, List<OpenInfo> infos) {
         super(user, child, infos);
     }
 
     @Override
-    protected void process(QuoteInfo info, Trade trade, User user) {
+    protected void process(List<OpenInfo> lots, Trade trade, User user) {
         var offset = trade.getOffset();
         if (offset == Order.OPEN) {
-            user.open(user.getBalance().getUser(), info.getPositionId(),
-                    info.getCommissionId(), trade.getPrice());
+            user.open(user.getBalance().getUser(), lots, trade.getPrice());
         } else {
             var u = user.getBalance().getUser();
-            onError(new IllegalOffsetError(trade.getId() + "/" + u + "/" + offset.toString()));
+            throw new IllegalOffsetError(trade.getId() + "/" + u + "/" + offset.toString());
         }
     }
 
     @Override
     protected void process(Throwable error) {
         // Undo rest infos.
-        infos().forEach(info -> user().undo((OpenInfo) info));
+        infos().forEach(this::undo);
+    }
+
+    @Override
+    protected void undo(OpenInfo info) {
+        user().undo(info);
     }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+
+/**
+ * Slot of {@link QuotePipeline} ring. It carries the quote from producer
+ * through validate and freeze stages, and the orders to send after freeze.
+ */
+class QuoteEvent {
+    // A close order is split into close today and close yesterday.
+    private static final int MAX_ORDERS = 2;
+
+    volatile long sequence = -1;
+    BotEnvironment environment;
+    Order order;
+    OrderListener listener;
+    final Order[] orders = new Order[MAX_ORDERS];
+    final OrderListener[] listeners = new OrderListener[MAX_ORDERS];
+    int count;
+
+    void set(BotEnvironment environment, Order order, OrderListener listener) {
+        this.environment = environment;
+        this.order = order;
+        this.listener = listener;
+    }
+
+    void add(Order order, OrderListener listener) {
+        orders[count] = order;
+        listeners[count] = listener;
+        ++count;
+    }
+
+    void clear() {
+        environment = null;
+        order = null;
+        listener = null;
+        for (int i = 0; i < count; ++i) {
+            orders[i] = null;
+            listeners[i] = null;
+        }
+        count = 0;
+    }
+}
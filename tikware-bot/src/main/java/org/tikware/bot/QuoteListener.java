@@ -22,51 +22,117 @@ import org.tikware.api.Trade;
 import org.tikware.user.QuoteInfo;
 import org.tikware.user.User;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
-public abstract class QuoteListener implements OrderListener {
+public abstract class QuoteListener<T extends QuoteInfo> implements OrderListener {
     private final User user;
     private final OrderListener child;
-    private final List<QuoteInfo> infos = new LinkedList<>();
+    private final List<T> infos;
+    private int cursor;
+    private LatencyTracer tracer;
+    private String traceId;
 
-    public QuoteListener(User user, OrderListener child, List<? extends QuoteInfo> infos) {
+    public QuoteListener(User user, OrderListener child, List<? extends T> infos) {
         this.user = user;
         this.child = child;
-        this.infos.addAll(infos);
+        this.infos = new ArrayList<>(infos);
+    }
+
+    /**
+     * Record trade and persistence stages of the quoted order.
+     */
+    void trace(LatencyTracer tracer, String orderId) {
+        this.tracer = tracer;
+        this.traceId = orderId;
     }
 
     @Override
     public void onTrade(Trade trade) {
+        if (tracer != null) {
+            tracer.mark(traceId, LatencyTracer.TRADE);
+        }
+        // Gateway may replay trades after reconnect.
+        if (!user.acceptTrade(trade)) {
+            return;
+        }
+        // Persist trade and apply it to user in one unit of work.
+        try {
+            user.unitOfWork(() -> processTrade(trade));
+        } catch (Throwable error) {
+            user.forgetTrade(trade);
+            callChildError(error);
+            return;
+        }
+        // Trade is persisted and applied.
+        if (tracer != null) {
+            tracer.mark(traceId, LatencyTracer.PERSIST);
+        }
+        try {
+            child.onTrade(trade);
+        } catch (Throwable error) {
+            callChildError(error);
+        }
+    }
+
+    @Override
+    public void onCancel(String orderId, Long quantity) {
+        // Release lots not filled.
+        try {
+            user.unitOfWork(() -> infos().forEach(this::undo));
+        } catch (Throwable error) {
+            callChildError(error);
+        }
+        cursor = infos.size();
+        try {
+            child.onCancel(orderId, quantity);
+        } catch (Throwable error) {
+            callChildError(error);
+        }
+    }
+
+    /*
+     * Errors are thrown so the unit of work rolls back, and the lots stay
+     * unfilled for a replay of the trade.
+     */
+    private void processTrade(Trade trade) {
         // Fill user field and persist trade.
         final var u = user.getBalance().getUser();
         trade.setUser(u);
         user.getPersistence().addTrade(u, trade);
         // Check quantity mismatch.
         final var q = trade.getQuantity();
-        if (infos.size() < q) {
-            callChildError(new QuoteInfoUnderflowError(q + "/" + infos.size()));
-            return;
-        }
-        var count = 0;
-        // Set trade quantity to one so each quote info has only one trade.
-        trade.setQuantity(1L);
-        while (count++ < q) {
-            var info = infos.remove(0);
-            try {
-                process(info, trade, user);
-            } catch (Throwable error) {
-                callChildError(error);
-            }
+        final var remaining = infos.size() - cursor;
+        if (remaining < q) {
+            throw new QuoteInfoUnderflowError(q + "/" + remaining);
         }
+        // Apply all filled lots at once.
+        var n = q.intValue();
+        process(infos.subList(cursor, cursor + n), trade, user);
+        cursor += n;
     }
 
-    protected abstract void process(QuoteInfo info, Trade trade, User user);
+    /**
+     * Apply the lots filled by the trade to user. An error thrown rolls back
+     * the trade.
+     *
+     * @param lots  filled lots, one per contract of the trade
+     * @param trade trade
+     * @param user  user
+     */
+    protected abstract void process(List<T> lots, Trade trade, User user);
 
     protected abstract void process(Throwable error);
 
-    protected List<QuoteInfo> infos() {
-        return infos;
+    protected abstract void undo(T info);
+
+    /**
+     * Get lots not filled yet.
+     *
+     * @return remaining lots
+     */
+    protected List<T> infos() {
+        return infos.subList(cursor, infos.size());
     }
 
     protected User user() {
@@ -76,6 +142,8 @@ public abstract class QuoteListener implements OrderListener {
     @Override
     public void onError(Throwable error) {
         process(error);
+        // Remaining lots are undone by error processing.
+        cursor = infos.size();
         callChildError(error);
     }
 
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.spi.Transaction;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Passes quotes of all environments sharing a {@link Transaction} through
+ * validate, freeze and send stages on a single sender thread. Producers claim
+ * slots of a pre-allocated ring by an atomic counter, so quoting threads
+ * never contend on a monitor.
+ * <p>
+ * Sender coalesces the quotes submitted within a micro-batch window and sends
+ * them by one {@link Transaction#quoteBatch(List, List)}. With zero window it
+ * still batches the quotes already queued.
+ * <p>
+ * A direct pipeline runs the stages on the quoting thread instead, and
+ * serializes sends on the transaction. It keeps the order of quotes
+ * deterministic for backtest.
+ */
+public class QuotePipeline implements AutoCloseable {
+    private final Transaction transaction;
+    private final QuoteEvent[] ring;
+    private final int mask;
+    private final WaitStrategy wait;
+    private final long window;
+    private final int maxBatch;
+    private final List<Order> batchOrders;
+    private final List<OrderListener> batchListeners;
+    private final List<String> batchIds;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedOrders = new AtomicLong();
+    private final AtomicLong claim = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong(-1);
+    private final AtomicInteger producers = new AtomicInteger();
+    private final BooleanSupplier available = this::isAvailable;
+    private final Thread sender;
+    private volatile boolean closed;
+    private volatile LatencyTracer tracer;
+    private long next;
+
+    /**
+     * Create pipeline with a sender thread.
+     *
+     * @param transaction transaction to send quotes to
+     * @param capacity    number of ring slots, rounded up to power of two
+     * @param wait        wait strategy of producers and sender
+     */
+    public QuotePipeline(Transaction transaction, int capacity, WaitStrategy wait) {
+        this(transaction, capacity, wait, Duration.ZERO, capacity);
+    }
+
+    /**
+     * Create pipeline with a sender thread that batches quotes.
+     *
+     * @param transaction transaction to send quotes to
+     * @param capacity    number of ring slots, rounded up to power of two
+     * @param wait        wait strategy of producers and sender
+     * @param window      time to wait for more quotes after the first of a
+     *                    batch
+     * @param maxBatch    maximum number of quotes in a batch
+     */
+    public QuotePipeline(Transaction transaction, int capacity, WaitStrategy wait,
+            Duration window, int maxBatch) {
+        if (capacity < 1 || maxBatch < 1) {
+            throw new IllegalArgumentException("Capacity and batch size must be positive.");
+        }
+        var size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.transaction = transaction;
+        this.ring = new QuoteEvent[size];
+        this.mask = size - 1;
+        this.wait = wait;
+        this.window = window.toNanos();
+        this.maxBatch = maxBatch;
+        // A close quote is split into two orders at most.
+        this.batchOrders = new ArrayList<>(maxBatch * 2);
+        this.batchListeners = new ArrayList<>(maxBatch * 2);
+        this.batchIds = new ArrayList<>(maxBatch);
+        for (int i = 0; i < size; ++i) {
+            ring[i] = new QuoteEvent();
+        }
+        this.sender = new Thread(this::run, "quote-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    private QuotePipeline(Transaction transaction) {
+        this.transaction = transaction;
+        this.ring = null;
+        this.mask = 0;
+        this.wait = null;
+        this.window = 0;
+        this.maxBatch = 1;
+        this.batchOrders = null;
+        this.batchListeners = null;
+        this.batchIds = null;
+        this.sender = null;
+    }
+
+    /**
+     * Create pipeline that runs stages on quoting thread.
+     *
+     * @param transaction transaction to send quotes to
+     * @return direct pipeline
+     */
+    public static QuotePipeline direct(Transaction transaction) {
+        return new QuotePipeline(transaction);
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Set tracer of order latency, shared by the environments of the pipeline.
+     *
+     * @param tracer tracer, or {@code null} to stop tracing
+     */
+    public void setTracer(LatencyTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public LatencyTracer getTracer() {
+        return tracer;
+    }
+
+    public boolean isDirect() {
+        return sender == null;
+    }
+
+    /**
+     * Get number of quotes submitted but not sent.
+     *
+     * @return pending quotes
+     */
+    public long getPending() {
+        return isDirect() ? 0 : claim.get() - consumed.get() - 1;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Get number of orders sent by batches. A close quote may be sent as two
+     * orders.
+     *
+     * @return number of orders sent
+     */
+    public long getBatchedOrders() {
+        return batchedOrders.get();
+    }
+
+    void submit(BotEnvironment environment, Order order, OrderListener listener) {
+        if (isDirect()) {
+            var e = new QuoteEvent();
+            e.set(environment, order, listener);
+            if (prepare(e)) {
+                synchronized (transaction) {
+                    mark(e.listener, LatencyTracer.SEND);
+                    send(Arrays.asList(e.orders).subList(0, e.count),
+                            Arrays.asList(e.listeners).subList(0, e.count));
+                }
+            }
+            return;
+        }
+        producers.incrementAndGet();
+        try {
+            if (closed) {
+                notify(listener, new PipelineClosedError(order.getId()));
+                return;
+            }
+            publish(environment, order, listener);
+        } finally {
+            producers.decrementAndGet();
+        }
+        wait.signal();
+    }
+
+    private void publish(BotEnvironment environment, Order order, OrderListener listener) {
+        var seq = claim.getAndIncrement();
+        var wrap = seq - ring.length;
+        if (wrap > consumed.get()) {
+            // Ring is full, wait for sender to free the slot.
+            try {
+                wait.await(() -> wrap <= consumed.get());
+            } catch (InterruptedException error) {
+                // Slot is claimed and must be published, so keep waiting.
+                while (wrap > consumed.get()) {
+                    Thread.onSpinWait();
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+        var e = ring[(int) (seq & mask)];
+        e.set(environment, order, listener);
+        e.sequence = seq;
+    }
+
+    private boolean isAvailable() {
+        return isPublished() || closed;
+    }
+
+    private boolean isPublished() {
+        return ring[(int) (next & mask)].sequence == next;
+    }
+
+    private void run() {
+        next = 0;
+        while (true) {
+            try {
+                wait.await(available);
+            } catch (InterruptedException error) {
+                if (!closed) {
+                    continue;
+                }
+            }
+            if (isPublished()) {
+                sendBatch();
+            } else if (closed && producers.get() == 0 && claim.get() == next) {
+                break;
+            } else if (closed) {
+                // Producers are publishing claimed slots.
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private boolean prepare(QuoteEvent e) {
+        try {
+            e.environment.validate(e.order);
+            e.environment.freeze(e);
+            return e.count > 0;
+        } catch (Throwable error) {
+            notify(e.listener, error);
+            return false;
+        }
+    }
+
+    private void sendBatch() {
+        var deadline = System.nanoTime() + window;
+        var n = 0;
+        while (n < maxBatch) {
+            if (isPublished()) {
+                var e = ring[(int) (next & mask)];
+                if (prepare(e)) {
+                    if (tracer != null) {
+                        batchIds.add(((WorkingOrder) e.listener).getId());
+                    }
+                    for (int i = 0; i < e.count; ++i) {
+                        batchOrders.add(e.orders[i]);
+                        batchListeners.add(e.listeners[i]);
+                    }
+                }
+                e.clear();
+                consumed.set(next++);
+                wait.signal();
+                ++n;
+            } else if (window > 0 && System.nanoTime() - deadline < 0) {
+                Thread.onSpinWait();
+            } else {
+                break;
+            }
+        }
+        if (!batchOrders.isEmpty()) {
+            batches.incrementAndGet();
+            batchedOrders.addAndGet(batchOrders.size());
+            var t = tracer;
+            if (t != null) {
+                batchIds.forEach(id -> t.mark(id, LatencyTracer.SEND));
+            }
+            batchIds.clear();
+            send(batchOrders, batchListeners);
+            batchOrders.clear();
+            batchListeners.clear();
+        }
+    }
+
+    private void send(List<Order> orders, List<OrderListener> listeners) {
+        try {
+            transaction.quoteBatch(orders, listeners);
+        } catch (Throwable error) {
+            // Quote listeners undo the frozen lots of their orders.
+            listeners.forEach(listener -> notify(listener, error));
+        }
+    }
+
+    private void mark(OrderListener working, int stage) {
+        var t = tracer;
+        if (t != null) {
+            t.mark(((WorkingOrder) working).getId(), stage);
+        }
+    }
+
+    private static void notify(OrderListener listener, Throwable error) {
+        try {
+            listener.onError(error);
+        } catch (Throwable ignored) {
+        }
+    }
+
+    /**
+     * Stop accepting quotes, send the accepted ones and stop sender thread.
+     */
+    @Override
+    public void close() {
+        if (isDirect()) {
+            return;
+        }
+        closed = true;
+        wait.signal();
+        try {
+            sender.join();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits order rate of each user and each exchange by token buckets. It is
+ * shared by all environments of a transaction so one user can't exhaust the
+ * exchange message limit for others.
+ * <p>
+ * On exhaustion, a quote is either rejected, or queued until tokens refill if
+ * the wait is within the maximum delay.
+ */
+public class RateLimiter implements AutoCloseable {
+    public static final Character REJECT = 'g';
+    public static final Character QUEUE = 'h';
+
+    private final Map<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> exchanges = new ConcurrentHashMap<>();
+    private final Map<String, Limit> userLimits = new ConcurrentHashMap<>();
+    private final Map<String, Limit> exchangeLimits = new ConcurrentHashMap<>();
+    private final Limit userLimit;
+    private final Limit exchangeLimit;
+    private final Character policy;
+    private final long maxDelay;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private ScheduledExecutorService timer;
+
+    /**
+     * Create limiter.
+     *
+     * @param userBurst     default burst of a user
+     * @param userRate      default orders per second of a user
+     * @param exchangeBurst default burst of an exchange
+     * @param exchangeRate  default orders per second of an exchange
+     * @param policy        {@link #REJECT} or {@link #QUEUE}
+     * @param maxDelay      maximum time a quote is queued
+     */
+    public RateLimiter(int userBurst, double userRate, int exchangeBurst, double exchangeRate,
+            Character policy, Duration maxDelay) {
+        if (policy != REJECT && policy != QUEUE) {
+            throw new IllegalArgumentException(String.valueOf(policy));
+        }
+        this.userLimit = new Limit(userBurst, userRate);
+        this.exchangeLimit = new Limit(exchangeBurst, exchangeRate);
+        this.policy = policy;
+        this.maxDelay = policy == QUEUE ? maxDelay.toNanos() : 0L;
+    }
+
+    /**
+     * Set limit of the user, it applies to buckets created afterwards.
+     */
+    public void setUserLimit(String user, int burst, double rate) {
+        userLimits.put(user, new Limit(burst, rate));
+        users.remove(user);
+    }
+
+    /**
+     * Set limit of the exchange, it applies to buckets created afterwards.
+     */
+    public void setExchangeLimit(String exchange, int burst, double rate) {
+        exchangeLimits.put(exchange, new Limit(burst, rate));
+        exchanges.remove(exchange);
+    }
+
+    /**
+     * Take tokens of the user and the exchange for a quote.
+     *
+     * @param user     user
+     * @param exchange exchange
+     * @return nanoseconds to wait before sending, or -1 if the quote is
+     * rejected
+     */
+    public long acquire(String user, String exchange) {
+        var now = System.nanoTime();
+        var u = users.computeIfAbsent(key(user),
+                k -> userLimits.getOrDefault(k, userLimit).bucket());
+        var e = exchanges.computeIfAbsent(key(exchange),
+                k -> exchangeLimits.getOrDefault(k, exchangeLimit).bucket());
+        var du = u.reserve(now, maxDelay);
+        if (du < 0) {
+            rejected.increment();
+            return -1;
+        }
+        var de = e.reserve(now, maxDelay);
+        if (de < 0) {
+            u.refund();
+            rejected.increment();
+            return -1;
+        }
+        var delay = Math.max(du, de);
+        if (delay > 0) {
+            queued.increment();
+        }
+        return delay;
+    }
+
+    private static String key(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Run the task after delay. Tasks run in order of their scheduled time.
+     */
+    synchronized void schedule(long delay, Runnable task) {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                var t = new Thread(r, "rate-limiter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        timer.schedule(task, delay, TimeUnit.NANOSECONDS);
+    }
+
+    public Character getPolicy() {
+        return policy;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    /**
+     * Get throttle events of each user and exchange bucket.
+     *
+     * @return throttle events keyed by {@code user:<name>} or
+     * {@code exchange:<name>}
+     */
+    public Map<String, Long> getThrottles() {
+        var r = new HashMap<String, Long>();
+        users.forEach((k, b) -> r.put("user:" + k, b.getThrottles()));
+        exchanges.forEach((k, b) -> r.put("exchange:" + k, b.getThrottles()));
+        return r;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+    }
+
+    private static class Limit {
+        private final int burst;
+        private final double rate;
+
+        Limit(int burst, double rate) {
+            if (burst < 1 || !(rate > 0)) {
+                throw new IllegalArgumentException("Burst and rate must be positive.");
+            }
+            this.burst = burst;
+            this.rate = rate;
+        }
+
+        TokenBucket bucket() {
+            return new TokenBucket(burst, rate);
+        }
+    }
+}
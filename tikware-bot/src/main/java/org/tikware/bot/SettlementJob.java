@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.user.TradingDayListener;
+import org.tikware.user.User;
+
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Settles users of the registered environments when trading day changes. A user
+ * shared by several environments is settled only once.
+ */
+public class SettlementJob implements TradingDayListener {
+    private final Set<BotEnvironment> environments = ConcurrentHashMap.newKeySet();
+    private final LogListener log;
+
+    public SettlementJob(LogListener log) {
+        this.log = log;
+    }
+
+    public void register(BotEnvironment environment) {
+        environments.add(environment);
+    }
+
+    public void unregister(BotEnvironment environment) {
+        environments.remove(environment);
+    }
+
+    @Override
+    public synchronized void onTradingDay(String previous, String current) {
+        var settled = new IdentityHashMap<User, User>();
+        environments.forEach(environment -> {
+            var u = environment.getUser();
+            try {
+                environment.setUser(settled.computeIfAbsent(u, User::settle));
+            } catch (Throwable throwable) {
+                log("Settlement failed: " + u.getBalance().getUser() + "/" + current + ".",
+                        throwable);
+            }
+        });
+    }
+
+    private void log(String message, Throwable throwable) {
+        try {
+            log.onLog(message, throwable);
+        } catch (Throwable ignored) {
+        }
+    }
+}
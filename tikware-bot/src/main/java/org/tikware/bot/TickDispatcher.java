@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.CandleListener;
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.spi.Datafeed;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Datafeed over another datafeed that fans ticks of a symbol out to many
+ * listeners from one upstream subscription. The feed thread only stores the
+ * tick into a latest-value slot of each listener and returns; listeners are
+ * called on executor threads, one at a time for each listener.
+ * <p>
+ * A listener that keeps up sees every tick. When it lags, a newer tick of the
+ * same symbol replaces the one not delivered yet, so it always gets the latest
+ * tick without holding the feed or other listeners. A listener gives its
+ * thread back after a batch of ticks and is scheduled again for the rest, so
+ * busy symbols don't keep a pool thread from other listeners. Subscribing a
+ * listener to a symbol it already has is ignored. Candle subscriptions go to
+ * the upstream datafeed.
+ */
+public class TickDispatcher implements Datafeed, AutoCloseable {
+    static final int BATCH = 64;
+
+    private final Datafeed upstream;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final LogListener log;
+    private final Map<String, List<Slot>> symbols = new ConcurrentHashMap<>();
+    private final Map<TickListener, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * Create dispatcher with its own threads.
+     *
+     * @param upstream datafeed to subscribe
+     * @param threads  number of delivery threads
+     * @param log      receives errors thrown by listeners
+     */
+    public TickDispatcher(Datafeed upstream, int threads, LogListener log) {
+        this(upstream, Executors.newFixedThreadPool(threads, r -> {
+            var t = new Thread(r, "tick-dispatch");
+            t.setDaemon(true);
+            return t;
+        }), log, true);
+    }
+
+    public TickDispatcher(Datafeed upstream, Executor executor, LogListener log) {
+        this(upstream, executor, log, false);
+    }
+
+    private TickDispatcher(Datafeed upstream, Executor executor, LogListener log, boolean own) {
+        this.upstream = upstream;
+        this.executor = executor;
+        this.ownExecutor = own ? (ExecutorService) executor : null;
+        this.log = log;
+    }
+
+    @Override
+    public void subscribe(String symbol, TickListener listener) {
+        var s = subscribers.computeIfAbsent(listener, Subscriber::new);
+        if (!s.symbols.add(symbol)) {
+            return;
+        }
+        var created = new boolean[1];
+        symbols.computeIfAbsent(symbol, k -> {
+            created[0] = true;
+            return new CopyOnWriteArrayList<>();
+        }).add(new Slot(s));
+        if (created[0]) {
+            // One upstream subscription for all listeners of the symbol.
+            upstream.subscribe(symbol, (tick, realtime) -> publish(symbol, tick, realtime));
+        }
+    }
+
+    @Override
+    public void subscribe(String symbol, CandleListener listener) {
+        upstream.subscribe(symbol, listener);
+    }
+
+    @Override
+    public Character getTradingState(String symbol) {
+        return upstream.getTradingState(symbol);
+    }
+
+    private void publish(String symbol, Tick tick, boolean realtime) {
+        var slots = symbols.get(symbol);
+        if (slots == null) {
+            return;
+        }
+        var e = new TickEvent(tick, realtime);
+        for (var slot : slots) {
+            slot.offer(e);
+        }
+    }
+
+    /**
+     * Get number of ticks replaced before delivered to the listener.
+     *
+     * @param listener listener
+     * @return conflated ticks
+     */
+    public long getConflated(TickListener listener) {
+        var s = subscribers.get(listener);
+        return s == null ? 0 : s.conflated.sum();
+    }
+
+    public long getDelivered(TickListener listener) {
+        var s = subscribers.get(listener);
+        return s == null ? 0 : s.delivered.sum();
+    }
+
+    /**
+     * Stop delivery threads if the dispatcher owns them.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private static class TickEvent {
+        private final Tick tick;
+        private final boolean realtime;
+
+        TickEvent(Tick tick, boolean realtime) {
+            this.tick = tick;
+            this.realtime = realtime;
+        }
+    }
+
+    /**
+     * Latest tick of one symbol for one listener.
+     */
+    private class Slot {
+        private final AtomicReference<TickEvent> latest = new AtomicReference<>();
+        private final Subscriber subscriber;
+
+        Slot(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(TickEvent e) {
+            if (latest.getAndSet(e) == null) {
+                subscriber.ready.add(this);
+            } else {
+                subscriber.conflated.increment();
+            }
+            subscriber.schedule();
+        }
+    }
+
+    private class Subscriber {
+        private final Queue<Slot> ready = new ConcurrentLinkedQueue<>();
+        private final Set<String> symbols = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final LongAdder conflated = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+        private final TickListener listener;
+
+        Subscriber(TickListener listener) {
+            this.listener = listener;
+        }
+
+        void schedule() {
+            if (running.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException error) {
+                    running.set(false);
+                }
+            }
+        }
+
+        private void drain() {
+            Slot slot;
+            for (int n = 0; n < BATCH && (slot = ready.poll()) != null; ++n) {
+                var e = slot.latest.getAndSet(null);
+                if (e != null) {
+                    deliver(e);
+                }
+            }
+            running.set(false);
+            // Reschedule ticks left by the batch or offered after the queue is seen empty.
+            if (!ready.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void deliver(TickEvent e) {
+            try {
+                listener.onTick(e.tick, e.realtime);
+                delivered.increment();
+            } catch (Throwable error) {
+                try {
+                    log.onLog("Tick listener failed: " + e.tick.getSymbol() + ".", error);
+                } catch (Throwable ignored) {
+                }
+            }
+        }
+    }
+}
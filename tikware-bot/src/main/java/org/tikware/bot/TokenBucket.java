@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free token bucket in the form of generic cell rate algorithm. It keeps
+ * only the theoretical arrival time of next request, and a request is allowed
+ * if it doesn't arrive earlier than that by more than the burst tolerance.
+ */
+public class TokenBucket {
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE / 2);
+    private final LongAdder throttles = new LongAdder();
+
+    /**
+     * Create bucket.
+     *
+     * @param burst maximum number of requests allowed at once
+     * @param rate  requests refilled per second
+     */
+    public TokenBucket(int burst, double rate) {
+        if (burst < 1 || !(rate > 0)) {
+            throw new IllegalArgumentException("Burst and rate must be positive.");
+        }
+        this.interval = Math.max(1L, (long) (1_000_000_000L / rate));
+        this.tolerance = interval * (burst - 1);
+    }
+
+    /**
+     * Take a token, waiting for refill no longer than the specified delay.
+     *
+     * @param now      current time in nanoseconds
+     * @param maxDelay maximum delay in nanoseconds the caller accepts
+     * @return nanoseconds to wait before the request, or -1 if the delay
+     * exceeds maximum and no token is taken
+     */
+    public long reserve(long now, long maxDelay) {
+        while (true) {
+            var t = tat.get();
+            var delay = Math.max(0L, t - tolerance - now);
+            if (delay > maxDelay) {
+                throttles.increment();
+                return -1;
+            }
+            if (tat.compareAndSet(t, Math.max(t, now) + interval)) {
+                return delay;
+            }
+        }
+    }
+
+    /**
+     * Give back a token taken by {@link #reserve(long, long)} for a request
+     * that isn't sent. The arrival time before an idle reserve is not kept,
+     * but a bucket whose arrival time is not later than now is full anyway, so
+     * no token is lost.
+     */
+    public void refund() {
+        tat.addAndGet(-interval);
+    }
+
+    public long getThrottles() {
+        return throttles.sum();
+    }
+}
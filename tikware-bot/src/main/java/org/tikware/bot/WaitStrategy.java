@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread of {@link QuotePipeline} waits for progress of other threads.
+ */
+public interface WaitStrategy {
+    /**
+     * Wait until the condition holds.
+     *
+     * @param condition condition to wait for
+     * @throws InterruptedException if waiting thread is interrupted
+     */
+    void await(BooleanSupplier condition) throws InterruptedException;
+
+    /**
+     * Wake up waiting threads after the state they wait for changes.
+     */
+    void signal();
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.api.Trade;
+import org.tikware.spi.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Quoted order tracked by {@link WorkingOrderBook}. A quote is sent to gateway
+ * as one or more leg orders, a close quote is split into close today and close
+ * yesterday legs. The order is done when all its legs are filled, canceled or
+ * rejected. An order with a rejected leg ends {@link #REJECTED} even if other
+ * lots are filled, see {@link #getFilled()}. Errors of a done leg are ignored.
+ * <p>
+ * It listens for errors before any leg is sent, and each leg has its own
+ * listener that updates the remaining quantity.
+ * <p>
+ * A modified order is quoted again as {@code <id>#<version>} so the gateway
+ * never sees an id twice, while the book, the latency tracer and the listener
+ * still know it by {@link #getId()}.
+ */
+public class WorkingOrder implements OrderListener {
+    public static final Character WORKING = 'b';
+    public static final Character CANCELING = 'c';
+    public static final Character CANCELED = 'd';
+    public static final Character FILLED = 'e';
+    public static final Character REJECTED = 'f';
+
+    private final WorkingOrderBook book;
+    private final BotEnvironment environment;
+    private final OrderListener listener;
+    private final String id;
+    private final List<Leg> legs = new ArrayList<>();
+    private Order order;
+    private Character state = WORKING;
+    private long remaining;
+    private long filled;
+    private long canceled;
+    private long rejected;
+    private int version;
+    private Double modifyPrice;
+    private Long modifyQuantity;
+
+    WorkingOrder(WorkingOrderBook book, BotEnvironment environment, Order order,
+            OrderListener listener) {
+        this.book = book;
+        this.environment = environment;
+        this.listener = listener;
+        this.id = order.getId();
+        this.order = order;
+        this.remaining = order.getQuantity() == null ? 0 : order.getQuantity();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Get the order currently working. It is a copy of the quoted order with
+     * versioned id {@code <id>#<version>} after modify.
+     *
+     * @return current order
+     */
+    public synchronized Order getOrder() {
+        return order;
+    }
+
+    public synchronized Character getState() {
+        return state;
+    }
+
+    public synchronized long getRemaining() {
+        return remaining;
+    }
+
+    public synchronized long getFilled() {
+        return filled;
+    }
+
+    /**
+     * Called by freeze stage before it freezes lots.
+     *
+     * @return {@code true} if the order is to be sent, {@code false} if it has
+     * been canceled and is now done
+     */
+    boolean beginSend() {
+        long q;
+        synchronized (this) {
+            if (state != CANCELING) {
+                return true;
+            }
+            q = remaining;
+            canceled += q;
+            remaining = 0;
+        }
+        // Nothing frozen or sent yet, so the cancel completes here.
+        complete();
+        return false;
+    }
+
+    /**
+     * Create listener of a leg about to be sent.
+     *
+     * @param leg leg order
+     * @return listener to be wrapped by the quote listener of the leg
+     */
+    synchronized OrderListener leg(Order leg) {
+        var l = new Leg(leg.getId(), leg.getQuantity());
+        legs.add(l);
+        return l;
+    }
+
+    void cancel(Transaction transaction) {
+        List<String> ids;
+        synchronized (this) {
+            if (state != WORKING) {
+                return;
+            }
+            state = CANCELING;
+            if (legs.isEmpty()) {
+                // Freeze stage completes the cancel.
+                return;
+            }
+            ids = new ArrayList<>();
+            for (var l : legs) {
+                if (!l.done) {
+                    ids.add(l.id);
+                }
+            }
+        }
+        try {
+            for (var i : ids) {
+                transaction.cancel(i);
+            }
+        } catch (Throwable error) {
+            synchronized (this) {
+                if (state == CANCELING) {
+                    state = WORKING;
+                    modifyPrice = null;
+                    modifyQuantity = null;
+                }
+            }
+            throw error;
+        }
+    }
+
+    void modify(Transaction transaction, Double price, Long quantity) {
+        synchronized (this) {
+            if (state != WORKING) {
+                throw new IllegalStateException(id + "/" + state);
+            }
+            modifyPrice = price;
+            modifyQuantity = quantity;
+        }
+        cancel(transaction);
+    }
+
+    @Override
+    public void onTrade(Trade trade) {
+        // Trades come to leg listeners.
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        // Error before any leg is sent.
+        synchronized (this) {
+            state = REJECTED;
+            remaining = 0;
+            modifyPrice = null;
+            modifyQuantity = null;
+        }
+        book.remove(this);
+        call(() -> listener.onError(error));
+    }
+
+    private void complete() {
+        Order requote = null;
+        long c;
+        Character s;
+        synchronized (this) {
+            for (var l : legs) {
+                if (!l.done) {
+                    return;
+                }
+            }
+            c = canceled;
+            if (state == CANCELING && modifyQuantity != null) {
+                requote = modified();
+            } else if (state == CANCELING) {
+                state = CANCELED;
+            } else if (state == WORKING) {
+                // Partly filled order with a rejected leg stays rejected.
+                state = remaining == 0 && canceled == 0 && rejected == 0 && filled > 0 ?
+                        FILLED : REJECTED;
+            } else {
+                return;
+            }
+            s = state;
+        }
+        if (requote != null) {
+            environment.requote(requote, this);
+        } else {
+            book.remove(this);
+            if (s == CANCELED) {
+                call(() -> listener.onCancel(id, c));
+            }
+        }
+    }
+
+    private Order modified() {
+        var o = new Order();
+        o.setId(id + "#" + (++version));
+        o.setUser(order.getUser());
+        o.setSymbol(order.getSymbol());
+        o.setExchange(order.getExchange());
+        o.setDirection(order.getDirection());
+        o.setOffset(order.getOffset());
+        o.setTime(order.getTime());
+        o.setPrice(modifyPrice);
+        o.setQuantity(modifyQuantity);
+        order = o;
+        state = WORKING;
+        remaining = modifyQuantity;
+        canceled = 0;
+        rejected = 0;
+        legs.clear();
+        modifyPrice = null;
+        modifyQuantity = null;
+        return o;
+    }
+
+    private void call(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Throwable ignored) {
+        }
+    }
+
+    private class Leg implements OrderListener {
+        private final String id;
+        private long remaining;
+        private boolean done;
+
+        Leg(String id, Long quantity) {
+            this.id = id;
+            this.remaining = quantity == null ? 0 : quantity;
+        }
+
+        @Override
+        public void onTrade(Trade trade) {
+            var q = trade.getQuantity() == null ? 0 : trade.getQuantity();
+            boolean last;
+            synchronized (WorkingOrder.this) {
+                q = Math.min(q, remaining);
+                remaining -= q;
+                WorkingOrder.this.remaining -= q;
+                filled += q;
+                done = remaining == 0;
+                last = done;
+            }
+            call(() -> listener.onTrade(trade));
+            if (last) {
+                complete();
+            }
+        }
+
+        @Override
+        public void onCancel(String orderId, Long quantity) {
+            synchronized (WorkingOrder.this) {
+                if (done) {
+                    return;
+                }
+                WorkingOrder.this.remaining -= remaining;
+                canceled += remaining;
+                remaining = 0;
+                done = true;
+            }
+            complete();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            synchronized (WorkingOrder.this) {
+                if (done) {
+                    return;
+                }
+                WorkingOrder.this.remaining -= remaining;
+                rejected += remaining;
+                remaining = 0;
+                done = true;
+            }
+            call(() -> listener.onError(error));
+            complete();
+        }
+    }
+}
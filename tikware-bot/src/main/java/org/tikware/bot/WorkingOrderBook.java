@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders of an environment that are quoted and not yet filled, canceled or
+ * rejected, keyed by the id they were quoted with.
+ */
+public class WorkingOrderBook {
+    private final Map<String, WorkingOrder> orders = new ConcurrentHashMap<>();
+
+    WorkingOrder add(BotEnvironment environment, Order order, OrderListener listener) {
+        var w = new WorkingOrder(this, environment, order, listener);
+        if (orders.putIfAbsent(order.getId(), w) != null) {
+            throw new DuplicateOrderError(order.getId());
+        }
+        return w;
+    }
+
+    void remove(WorkingOrder order) {
+        orders.remove(order.getId(), order);
+    }
+
+    /**
+     * Get working order.
+     *
+     * @param orderId id of the quoted order
+     * @return working order, or {@code null} if the order is done or unknown
+     */
+    public WorkingOrder get(String orderId) {
+        return orders.get(orderId);
+    }
+
+    public Collection<WorkingOrder> getWorkingOrders() {
+        return new ArrayList<>(orders.values());
+    }
+
+    public int size() {
+        return orders.size();
+    }
+}
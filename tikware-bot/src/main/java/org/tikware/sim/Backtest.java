@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.Bot;
+import org.tikware.api.Candle;
+import org.tikware.api.Tick;
+import org.tikware.bot.BotEnvironment;
+import org.tikware.bot.LogListener;
+import org.tikware.bot.SettlementJob;
+import org.tikware.user.*;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Runs a bot over recorded ticks and candles as fast as it can. Each run
+ * has its own simulated clock, exchange and in-memory persistence, so runs
+ * are independent and may run in parallel.
+ * <p>
+ * On every tick the price is marked, the exchange matches working quotes, then
+ * the bot gets the tick. When trading day of the data changes, working quotes
+ * expire and user is settled before the first tick of the new day.
+ */
+public class Backtest {
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final Consumer<UserPersistence> instruments;
+    private final LogListener log;
+    private Consumer<SimulatedExchange> exchangeSetup = exchange -> {};
+    private Consumer<TradingCalendar> calendarSetup = calendar -> {};
+    private Duration sampling = Duration.ofMinutes(1);
+
+    /**
+     * Create runner.
+     *
+     * @param instruments adds multiples and fee ratios of traded symbols to the
+     *                    persistence of a run
+     * @param log         log listener of bots and runner
+     */
+    public Backtest(Consumer<UserPersistence> instruments, LogListener log) {
+        this.instruments = instruments;
+        this.log = log;
+    }
+
+    /**
+     * Set options of the simulated exchange, like latency and slippage.
+     *
+     * @param setup called with the exchange of each run
+     */
+    public void setExchangeSetup(Consumer<SimulatedExchange> setup) {
+        this.exchangeSetup = setup;
+    }
+
+    /**
+     * Set trading sessions, used to find trading day of data without it.
+     *
+     * @param setup called with the calendar of each run
+     */
+    public void setCalendarSetup(Consumer<TradingCalendar> setup) {
+        this.calendarSetup = setup;
+    }
+
+    /**
+     * Set interval of equity samples in data time.
+     *
+     * @param sampling sample interval
+     */
+    public void setSampling(Duration sampling) {
+        this.sampling = sampling;
+    }
+
+    public BacktestResult run(Bot bot, String user, double balance, Iterable<Tick> ticks) {
+        return run(bot, user, balance, ticks, Collections.emptyList());
+    }
+
+    /**
+     * Run bot over the data.
+     *
+     * @param bot     bot
+     * @param user    user of the bot
+     * @param balance initial balance
+     * @param ticks   ticks in time order
+     * @param candles one-minute candles in time order
+     * @return trades and equity curve
+     */
+    public BacktestResult run(Bot bot, String user, double balance, Iterable<Tick> ticks,
+            Iterable<Candle> candles) {
+        var begin = System.nanoTime();
+        var data = new Merge(ticks.iterator(), candles.iterator());
+        if (!data.hasNext()) {
+            return new BacktestResult(user, List.of(), List.of(), null, 0, 0);
+        }
+        var run = new Run(user, data.peekTime());
+        run.start(bot, balance);
+        long events = 0;
+        while (data.hasNext()) {
+            var next = data.next();
+            ++events;
+            if (next instanceof Tick) {
+                run.onTick((Tick) next);
+            } else {
+                run.onCandle((Candle) next);
+            }
+        }
+        run.stop(bot);
+        return new BacktestResult(user, new ArrayList<>(run.persistence.getTrades(user)),
+                run.equity, run.environment.getBalance(), events, System.nanoTime() - begin);
+    }
+
+    private class Run {
+        private final List<EquityPoint> equity = new ArrayList<>();
+        private final String user;
+        private final SimulatedClock clock;
+        private final MemoryUserPersistence persistence;
+        private final TradingCalendar calendar;
+        private final SimulatedExchange exchange;
+        private final ReplayDatafeed datafeed;
+        private BotEnvironment environment;
+        private LocalDateTime nextSample;
+
+        Run(String user, LocalDateTime start) {
+            this.user = user;
+            this.clock = new SimulatedClock(start);
+            this.persistence = new MemoryUserPersistence(clock);
+            instruments.accept(persistence);
+            this.calendar = new TradingCalendar(persistence, clock);
+            calendarSetup.accept(calendar);
+            this.exchange = new SimulatedExchange(clock, log);
+            exchangeSetup.accept(exchange);
+            this.datafeed = new ReplayDatafeed(log);
+            this.nextSample = start;
+        }
+
+        void start(Bot bot, double balance) {
+            var day = calendar.getTradingDay(clock.now());
+            calendar.setTradingDay(day);
+            exchange.setTradingDay(day);
+            var b = new UserBalance();
+            b.setId(User.nextId());
+            b.setUser(user);
+            b.setBalance(balance);
+            b.setTradingDay(day);
+            b.setTime(clock.getDateTime());
+            persistence.alterUserBalance(user, b, UserPersistence.ALTER_ADD);
+            var u = new User(b, List.of(), List.of(), List.of(), persistence, calendar);
+            environment = new BotEnvironment(u, log, exchange, datafeed);
+            var job = new SettlementJob(log);
+            job.register(environment);
+            calendar.addListener(job);
+            bot.onLoad();
+            bot.onBegin(environment);
+        }
+
+        void onTick(Tick tick) {
+            var day = tick.getTradingDay() != null ? tick.getTradingDay().format(DAY)
+                    : calendar.getTradingDay(tick.getTime());
+            if (!day.equals(calendar.getTradingDay())) {
+                endDay();
+                exchange.setTradingDay(day);
+                calendar.setTradingDay(day);
+            }
+            clock.setTime(tick.getTime());
+            if (tick.getPrice() != null) {
+                persistence.addOrUpdatePrice(tick.getSymbol(), tick.getPrice());
+            }
+            exchange.onTick(tick, false);
+            datafeed.publish(tick);
+            if (!clock.now().isBefore(nextSample)) {
+                sample();
+                nextSample = clock.now().plus(sampling);
+            }
+        }
+
+        void onCandle(Candle candle) {
+            clock.setTime(candle.getTime());
+            datafeed.publish(candle);
+        }
+
+        void stop(Bot bot) {
+            endDay();
+            try {
+                bot.onEnd();
+                bot.onUnload();
+            } catch (Throwable error) {
+                log("Bot failed to end.", error);
+            }
+        }
+
+        private void endDay() {
+            // Day orders expire at close.
+            exchange.expire();
+            sample();
+        }
+
+        private void sample() {
+            var b = environment.getBalance();
+            equity.add(new EquityPoint(b.getTradingDay(), b.getTime(), b.getBalance()));
+        }
+    }
+
+    private void log(String message, Throwable error) {
+        try {
+            log.onLog(message, error);
+        } catch (Throwable ignored) {
+        }
+    }
+
+    /**
+     * Merges ticks and candles in time order, candle first at the same time.
+     */
+    private static class Merge implements Iterator<Object> {
+        private final Iterator<Tick> ticks;
+        private final Iterator<Candle> candles;
+        private Tick tick;
+        private Candle candle;
+
+        Merge(Iterator<Tick> ticks, Iterator<Candle> candles) {
+            this.ticks = ticks;
+            this.candles = candles;
+            this.tick = ticks.hasNext() ? ticks.next() : null;
+            this.candle = candles.hasNext() ? candles.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return tick != null || candle != null;
+        }
+
+        LocalDateTime peekTime() {
+            if (candle == null || (tick != null && tick.getTime().isBefore(candle.getTime()))) {
+                return tick.getTime();
+            }
+            return candle.getTime();
+        }
+
+        @Override
+        public Object next() {
+            if (candle == null || (tick != null && tick.getTime().isBefore(candle.getTime()))) {
+                var r = tick;
+                tick = ticks.hasNext() ? ticks.next() : null;
+                return r;
+            }
+            var r = candle;
+            candle = candles.hasNext() ? candles.next() : null;
+            return r;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.Balance;
+import org.tikware.api.Trade;
+
+import java.util.List;
+
+public class BacktestResult {
+    private final String user;
+    private final List<Trade> trades;
+    private final List<EquityPoint> equity;
+    private final Balance balance;
+    private final long events;
+    private final long elapsedNanos;
+
+    public BacktestResult(String user, List<Trade> trades, List<EquityPoint> equity,
+            Balance balance, long events, long elapsedNanos) {
+        this.user = user;
+        this.trades = trades;
+        this.equity = equity;
+        this.balance = balance;
+        this.events = events;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public List<Trade> getTrades() {
+        return trades;
+    }
+
+    /**
+     * Get balance sampled during replay, and at the end of every trading day.
+     *
+     * @return equity curve in time order
+     */
+    public List<EquityPoint> getEquity() {
+        return equity;
+    }
+
+    /**
+     * Get balance at the end of replay.
+     *
+     * @return final balance
+     */
+    public Balance getBalance() {
+        return balance;
+    }
+
+    /**
+     * Get number of replayed ticks and candles.
+     *
+     * @return number of events
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get maximum drop of balance from its previous peak in the equity curve.
+     *
+     * @return maximum drawdown, not negative
+     */
+    public double getMaxDrawdown() {
+        double peak = Double.NEGATIVE_INFINITY;
+        double r = 0.0D;
+        for (var p : equity) {
+            peak = Math.max(peak, p.getBalance());
+            r = Math.max(r, peak - p.getBalance());
+        }
+        return r;
+    }
+}
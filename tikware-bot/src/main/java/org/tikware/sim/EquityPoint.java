@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+public class EquityPoint {
+    private final String tradingDay;
+    private final String time;
+    private final double balance;
+
+    public EquityPoint(String tradingDay, String time, double balance) {
+        this.tradingDay = tradingDay;
+        this.time = time;
+        this.balance = balance;
+    }
+
+    public String getTradingDay() {
+        return tradingDay;
+    }
+
+    public String getTime() {
+        return time;
+    }
+
+    public double getBalance() {
+        return balance;
+    }
+
+    @Override
+    public String toString() {
+        return tradingDay + " " + time + " " + balance;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.Bot;
+import org.tikware.api.Candle;
+import org.tikware.api.Tick;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runs one backtest per parameter on a fork-join pool and ranks the results.
+ * All runs replay the same lists of ticks and candles, so the history is
+ * loaded once. Runs only read the data; bots must not modify replayed ticks
+ * and candles either.
+ *
+ * @param <P> parameter type
+ */
+public class ParameterSweep<P> {
+    private final Backtest backtest;
+    private final Function<P, Bot> factory;
+    private final ForkJoinPool pool;
+    private ToDoubleFunction<BacktestResult> score = r -> r.getBalance().getBalance();
+
+    /**
+     * Create sweep.
+     *
+     * @param backtest backtest runner shared by all runs
+     * @param factory  creates a bot with the parameter
+     * @param pool     pool running the backtests
+     */
+    public ParameterSweep(Backtest backtest, Function<P, Bot> factory, ForkJoinPool pool) {
+        this.backtest = backtest;
+        this.factory = factory;
+        this.pool = pool;
+    }
+
+    /**
+     * Set score of a run, higher ranks first. Default is final balance.
+     *
+     * @param score score function
+     */
+    public void setScore(ToDoubleFunction<BacktestResult> score) {
+        this.score = score;
+    }
+
+    public List<SweepResult<P>> run(Collection<P> parameters, double balance, List<Tick> ticks) {
+        return run(parameters, balance, ticks, List.of());
+    }
+
+    /**
+     * Run bot of each parameter over the data.
+     *
+     * @param parameters parameters
+     * @param balance    initial balance of every run
+     * @param ticks      ticks in time order
+     * @param candles    one-minute candles in time order
+     * @return results ranked by score, failed runs last
+     */
+    public List<SweepResult<P>> run(Collection<P> parameters, double balance, List<Tick> ticks,
+            List<Candle> candles) {
+        var t = Collections.unmodifiableList(ticks);
+        var c = Collections.unmodifiableList(candles);
+        var tasks = new ArrayList<Callable<SweepResult<P>>>();
+        int n = 0;
+        for (var p : parameters) {
+            var user = "sweep-" + n++;
+            tasks.add(() -> runOne(p, user, balance, t, c));
+        }
+        var r = new ArrayList<SweepResult<P>>(tasks.size());
+        for (var f : pool.invokeAll(tasks)) {
+            try {
+                r.add(f.get());
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Sweep interrupted.", error);
+            } catch (ExecutionException error) {
+                // Errors of a run are caught in the task.
+                throw new IllegalStateException(error.getCause());
+            }
+        }
+        r.sort(Comparator.comparing((SweepResult<P> x) -> x.getError() != null)
+                         .thenComparing(Comparator.comparingDouble(SweepResult<P>::getScore)
+                                                  .reversed()));
+        return r;
+    }
+
+    private SweepResult<P> runOne(P parameter, String user, double balance, List<Tick> ticks,
+            List<Candle> candles) {
+        try {
+            var result = backtest.run(factory.apply(parameter), user, balance, ticks, candles);
+            return new SweepResult<>(parameter, result, score.applyAsDouble(result), null);
+        } catch (Throwable error) {
+            return new SweepResult<>(parameter, null, Double.NaN, error);
+        }
+    }
+
+    /**
+     * Format ranked results as a text table, one line per run.
+     *
+     * @param results ranked results
+     * @param <P>     parameter type
+     * @return table
+     */
+    public static <P> String format(List<SweepResult<P>> results) {
+        var b = new StringBuilder();
+        int rank = 0;
+        for (var r : results) {
+            b.append(++rank).append('\t').append(r).append('\n');
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.Candle;
+import org.tikware.api.CandleListener;
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.bot.LogListener;
+import org.tikware.spi.Datafeed;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Datafeed that publishes recorded ticks and candles on the caller's thread,
+ * with {@code realtime=false}. Errors thrown by listeners are logged and don't
+ * stop the replay.
+ */
+public class ReplayDatafeed implements Datafeed {
+    private final Map<String, List<TickListener>> ticks = new ConcurrentHashMap<>();
+    private final Map<String, List<CandleListener>> candles = new ConcurrentHashMap<>();
+    private final LogListener log;
+
+    public ReplayDatafeed(LogListener log) {
+        this.log = log;
+    }
+
+    @Override
+    public void subscribe(String symbol, TickListener listener) {
+        ticks.computeIfAbsent(symbol, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public void subscribe(String symbol, CandleListener listener) {
+        candles.computeIfAbsent(symbol, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public Character getTradingState(String symbol) {
+        return CONTINUOUS;
+    }
+
+    public void publish(Tick tick) {
+        var ls = ticks.get(tick.getSymbol());
+        if (ls == null) {
+            return;
+        }
+        for (var l : ls) {
+            try {
+                l.onTick(tick, false);
+            } catch (Throwable error) {
+                log("Tick listener failed: " + tick.getSymbol() + ".", error);
+            }
+        }
+    }
+
+    /**
+     * Publish one-minute candle.
+     *
+     * @param candle candle
+     */
+    public void publish(Candle candle) {
+        var ls = candles.get(candle.getSymbol());
+        if (ls == null) {
+            return;
+        }
+        for (var l : ls) {
+            try {
+                l.onCandle(candle, 1, false);
+            } catch (Throwable error) {
+                log("Candle listener failed: " + candle.getSymbol() + ".", error);
+            }
+        }
+    }
+
+    private void log(String message, Throwable error) {
+        try {
+            log.onLog(message, error);
+        } catch (Throwable ignored) {
+        }
+    }
+}
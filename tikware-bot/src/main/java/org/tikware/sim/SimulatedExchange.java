@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.*;
+import org.tikware.bot.DuplicateOrderError;
+import org.tikware.bot.LogListener;
+import org.tikware.bot.OrderNotFoundError;
+import org.tikware.spi.Clock;
+import org.tikware.spi.Transaction;
+import org.tikware.user.User;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Exchange simulator that fills quotes against ticks. Subscribe it for ticks
+ * of the traded symbols before the bots so it sees the market first.
+ * <p>
+ * Each symbol has a limit order book with price-time priority. A quote is
+ * first matched against resting quotes on the other side at their prices,
+ * then against the quote of the last tick at its ask or bid price plus
+ * slippage, capped at the quote price, and the rest waits in the book for
+ * later ticks. With partial fills enabled, a tick only fills up to its ask or
+ * bid volume.
+ * <p>
+ * Errors thrown by order listeners are passed to the log listener and don't
+ * stop the other events.
+ * <p>
+ * Latency is measured by the clock, so a delayed quote reaches the book on the
+ * first tick after its arrival time. Use {@link org.tikware.user.SimulatedClock}
+ * in backtests so the simulation doesn't depend on wall time.
+ */
+public class SimulatedExchange implements Transaction, TickListener {
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final Clock clock;
+    private final LogListener log;
+    private final Random random;
+    private final Map<String, Book> books = new HashMap<>();
+    private final Map<String, Resting> orders = new LinkedHashMap<>();
+    private final List<Resting> delayed = new LinkedList<>();
+    private Duration latency = Duration.ZERO;
+    private double slippage;
+    private boolean partialFills = true;
+    private double rejectRate;
+    private String tradingDay;
+    private long trades;
+
+    public SimulatedExchange(Clock clock, LogListener log) {
+        this(clock, 0L, log);
+    }
+
+    /**
+     * Create exchange.
+     *
+     * @param clock clock stamping trades and timing latency
+     * @param seed  seed of random rejects, so a run can be repeated
+     * @param log   receives errors thrown by order listeners
+     */
+    public SimulatedExchange(Clock clock, long seed, LogListener log) {
+        this.clock = clock;
+        this.log = log;
+        this.random = new Random(seed);
+    }
+
+    public synchronized void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Set price moved against the quote when it fills against tick. The fill
+     * price never goes beyond the quote price.
+     *
+     * @param slippage price difference, not ticks
+     */
+    public synchronized void setSlippage(double slippage) {
+        this.slippage = slippage;
+    }
+
+    public synchronized void setPartialFills(boolean partialFills) {
+        this.partialFills = partialFills;
+    }
+
+    /**
+     * Set probability that a quote is rejected when it reaches the book.
+     *
+     * @param rejectRate probability in [0, 1]
+     */
+    public synchronized void setRejectRate(double rejectRate) {
+        this.rejectRate = rejectRate;
+    }
+
+    /**
+     * Set trading day. It is also updated from ticks that carry trading day.
+     *
+     * @param tradingDay trading day in the form of <pre><code>'yyyyMMdd'</code></pre>
+     */
+    public synchronized void setTradingDay(String tradingDay) {
+        this.tradingDay = tradingDay;
+    }
+
+    @Override
+    public synchronized String getTradingDay() {
+        return tradingDay;
+    }
+
+    @Override
+    public void quote(Order order, OrderListener listener) {
+        var events = new ArrayList<Runnable>();
+        synchronized (this) {
+            var error = check(order);
+            if (error != null) {
+                events.add(() -> listener.onError(error));
+            } else {
+                var r = new Resting(order, listener, clock.now().plus(latency));
+                orders.put(order.getId(), r);
+                if (latency.isZero()) {
+                    arrive(r, events);
+                } else {
+                    delayed.add(r);
+                }
+            }
+        }
+        fire(events);
+    }
+
+    private Throwable check(Order order) {
+        if (orders.containsKey(order.getId())) {
+            return new DuplicateOrderError(order.getId());
+        }
+        var q = order.getQuantity();
+        if (q == null || q <= 0 || order.getPrice() == null || order.getSymbol() == null) {
+            return new ExchangeRejectError("Invalid order " + order.getId() + ".");
+        }
+        var d = order.getDirection();
+        if (d != Order.BUY && d != Order.SELL) {
+            return new ExchangeRejectError("Invalid direction " + d + ".");
+        }
+        return null;
+    }
+
+    @Override
+    public void cancel(String orderId) {
+        var events = new ArrayList<Runnable>();
+        synchronized (this) {
+            var r = orders.remove(orderId);
+            if (r == null) {
+                throw new OrderNotFoundError(orderId);
+            }
+            if (!delayed.remove(r)) {
+                book(r.order.getSymbol()).remove(r);
+            }
+            var q = r.remaining;
+            events.add(() -> r.listener.onCancel(orderId, q));
+        }
+        fire(events);
+    }
+
+    @Override
+    public void onTick(Tick tick, boolean realtime) {
+        var events = new ArrayList<Runnable>();
+        synchronized (this) {
+            if (tick.getTradingDay() != null) {
+                tradingDay = tick.getTradingDay().format(DAY);
+            }
+            var book = book(tick.getSymbol());
+            book.update(tick);
+            // Quotes arrived before this tick reach the book first.
+            var now = clock.now();
+            var it = delayed.iterator();
+            while (it.hasNext()) {
+                var r = it.next();
+                if (!r.arriveAt.isAfter(now)) {
+                    it.remove();
+                    arrive(r, events);
+                }
+            }
+            book.sweep(events);
+        }
+        fire(events);
+    }
+
+    /**
+     * Cancel all working quotes, as exchange does to day orders at the end of
+     * a trading day.
+     */
+    public void expire() {
+        var events = new ArrayList<Runnable>();
+        synchronized (this) {
+            orders.forEach((id, r) -> {
+                var q = r.remaining;
+                events.add(() -> r.listener.onCancel(id, q));
+            });
+            orders.clear();
+            delayed.clear();
+            books.values().forEach(Book::clear);
+        }
+        fire(events);
+    }
+
+    /**
+     * Get number of quotes not filled or canceled.
+     *
+     * @return working quotes, including the delayed
+     */
+    public synchronized int getWorkingCount() {
+        return orders.size();
+    }
+
+    public synchronized long getTradeCount() {
+        return trades;
+    }
+
+    private void arrive(Resting r, List<Runnable> events) {
+        if (rejectRate > 0 && random.nextDouble() < rejectRate) {
+            orders.remove(r.order.getId());
+            events.add(() -> r.listener.onError(new ExchangeRejectError(r.order.getId())));
+            return;
+        }
+        book(r.order.getSymbol()).match(r, events);
+    }
+
+    private Book book(String symbol) {
+        return books.computeIfAbsent(symbol, k -> new Book());
+    }
+
+    private void fill(Resting r, long quantity, double price, List<Runnable> events) {
+        r.remaining -= quantity;
+        if (r.remaining == 0) {
+            orders.remove(r.order.getId());
+        }
+        var t = trade(r.order, quantity, price);
+        ++trades;
+        events.add(() -> r.listener.onTrade(t));
+    }
+
+    private Trade trade(Order order, long quantity, double price) {
+        var t = new Trade();
+        t.setId("T-" + User.nextId());
+        t.setUser(order.getUser());
+        t.setOrderId(order.getId());
+        t.setSymbol(order.getSymbol());
+        t.setExchange(order.getExchange());
+        t.setPrice(price);
+        t.setQuantity(quantity);
+        t.setDirection(order.getDirection());
+        t.setOffset(order.getOffset());
+        t.setTradingDay(tradingDay);
+        t.setTime(clock.getDateTime());
+        return t;
+    }
+
+    private void fire(List<Runnable> events) {
+        for (var e : events) {
+            try {
+                e.run();
+            } catch (Throwable error) {
+                log("Order listener failed.", error);
+            }
+        }
+    }
+
+    private void log(String message, Throwable error) {
+        try {
+            log.onLog(message, error);
+        } catch (Throwable ignored) {
+        }
+    }
+
+    private class Book {
+        private final TreeMap<Double, Deque<Resting>> bids = new TreeMap<>(Comparator.reverseOrder());
+        private final TreeMap<Double, Deque<Resting>> asks = new TreeMap<>();
+        private Double ask;
+        private Double bid;
+        private Long askVolume;
+        private Long bidVolume;
+
+        void update(Tick tick) {
+            ask = tick.getAskPrice();
+            bid = tick.getBidPrice();
+            askVolume = tick.getAskVolume();
+            bidVolume = tick.getBidVolume();
+        }
+
+        void match(Resting r, List<Runnable> events) {
+            var buy = r.order.getDirection() == Order.BUY;
+            var price = r.order.getPrice();
+            // Resting quotes on the other side have priority over the tick.
+            var other = buy ? asks : bids;
+            while (r.remaining > 0 && !other.isEmpty()) {
+                var level = other.firstEntry();
+                if (buy ? level.getKey() > price : level.getKey() < price) {
+                    break;
+                }
+                var q = level.getValue();
+                var head = q.peekFirst();
+                var n = Math.min(r.remaining, head.remaining);
+                fill(head, n, level.getKey(), events);
+                fill(r, n, level.getKey(), events);
+                if (head.remaining == 0) {
+                    q.pollFirst();
+                    if (q.isEmpty()) {
+                        other.pollFirstEntry();
+                    }
+                }
+            }
+            if (r.remaining > 0) {
+                fillByTick(r, events);
+            }
+            if (r.remaining > 0) {
+                (buy ? bids : asks).computeIfAbsent(price, k -> new ArrayDeque<>()).addLast(r);
+            }
+        }
+
+        void sweep(List<Runnable> events) {
+            sweep(bids, events);
+            sweep(asks, events);
+        }
+
+        private void sweep(TreeMap<Double, Deque<Resting>> side, List<Runnable> events) {
+            var levels = side.entrySet().iterator();
+            while (levels.hasNext()) {
+                var q = levels.next().getValue();
+                var it = q.iterator();
+                while (it.hasNext()) {
+                    var r = it.next();
+                    if (!fillByTick(r, events)) {
+                        // Worse prices can't fill either.
+                        return;
+                    }
+                    if (r.remaining == 0) {
+                        it.remove();
+                    } else {
+                        return;
+                    }
+                }
+                levels.remove();
+            }
+        }
+
+        /**
+         * Fill quote against the last tick.
+         *
+         * @return {@code true} if tick crosses the quote price and has volume
+         */
+        private boolean fillByTick(Resting r, List<Runnable> events) {
+            var buy = r.order.getDirection() == Order.BUY;
+            var p = buy ? ask : bid;
+            if (p == null || (buy ? p > r.order.getPrice() : p < r.order.getPrice())) {
+                return false;
+            }
+            var v = buy ? askVolume : bidVolume;
+            long n = r.remaining;
+            if (partialFills && v != null) {
+                n = Math.min(n, v);
+                if (buy) {
+                    askVolume = v - n;
+                } else {
+                    bidVolume = v - n;
+                }
+            }
+            if (n <= 0) {
+                return false;
+            }
+            // Slippage never fills a quote beyond its limit price.
+            var limit = r.order.getPrice();
+            fill(r, n, buy ? Math.min(p + slippage, limit) : Math.max(p - slippage, limit), events);
+            return true;
+        }
+
+        void clear() {
+            bids.clear();
+            asks.clear();
+        }
+
+        void remove(Resting r) {
+            var side = r.order.getDirection() == Order.BUY ? bids : asks;
+            var q = side.get(r.order.getPrice());
+            if (q != null) {
+                q.remove(r);
+                if (q.isEmpty()) {
+                    side.remove(r.order.getPrice());
+                }
+            }
+        }
+    }
+
+    private static class Resting {
+        private final Order order;
+        private final OrderListener listener;
+        private final LocalDateTime arriveAt;
+        private long remaining;
+
+        Resting(Order order, OrderListener listener, LocalDateTime arriveAt) {
+            this.order = order;
+            this.listener = listener;
+            this.arriveAt = arriveAt;
+            this.remaining = order.getQuantity();
+        }
+    }
+}
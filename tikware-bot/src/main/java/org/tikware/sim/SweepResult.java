@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+public class SweepResult<P> {
+    private final P parameter;
+    private final BacktestResult result;
+    private final double score;
+    private final Throwable error;
+
+    public SweepResult(P parameter, BacktestResult result, double score, Throwable error) {
+        this.parameter = parameter;
+        this.result = result;
+        this.score = score;
+        this.error = error;
+    }
+
+    public P getParameter() {
+        return parameter;
+    }
+
+    /**
+     * Get backtest result.
+     *
+     * @return result, or {@code null} if the run failed
+     */
+    public BacktestResult getResult() {
+        return result;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        if (error != null) {
+            return parameter + " failed: " + error;
+        }
+        return String.format("%s score=%.2f trades=%d drawdown=%.2f", parameter, score,
+                result.getTrades().size(), result.getMaxDrawdown());
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.Tick;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Columns of a block of ticks and their encoding in a tick file.
+ * <p>
+ * A block starts with the magic number, the number of ticks and the length
+ * of the columns that follow. Times are nanoseconds since epoch in local time,
+ * the first stored as is and the rest as varint deltas. Volumes are varint
+ * deltas. Prices are varint deltas of the value scaled by {@link #SCALE} when
+ * all of a column round-trips, or raw doubles otherwise. Deltas are zigzag
+ * encoded. A column with {@code null} is stored raw, with {@link Long#MIN_VALUE}
+ * or NaN standing for {@code null}.
+ */
+class TickBlock {
+    static final int MAGIC = 0x54494B31;
+    static final int HEADER = 12;
+    static final int PRICES = 12;
+    static final int VOLUMES = 4;
+
+    private static final double SCALE = 10_000.0D;
+    private static final byte DELTA = 0;
+    private static final byte RAW = 1;
+
+    final long[] times;
+    final double[][] prices = new double[PRICES][];
+    final long[][] volumes = new long[VOLUMES][];
+    int count;
+
+    TickBlock(int capacity) {
+        times = new long[capacity];
+        for (int i = 0; i < PRICES; ++i) {
+            prices[i] = new double[capacity];
+        }
+        for (int i = 0; i < VOLUMES; ++i) {
+            volumes[i] = new long[capacity];
+        }
+    }
+
+    int capacity() {
+        return times.length;
+    }
+
+    static int maxEncodedSize(int capacity) {
+        return HEADER + 8 + (PRICES + VOLUMES) * (1 + 10 * capacity) + 10 * capacity;
+    }
+
+    void add(Tick tick) {
+        var i = count++;
+        times[i] = toNanos(tick.getTime());
+        prices[0][i] = value(tick.getPrice());
+        prices[1][i] = value(tick.getAskPrice());
+        prices[2][i] = value(tick.getBidPrice());
+        prices[3][i] = value(tick.getDayHighPrice());
+        prices[4][i] = value(tick.getDayLowPrice());
+        prices[5][i] = value(tick.getHighLimitPrice());
+        prices[6][i] = value(tick.getLowLimitPrice());
+        prices[7][i] = value(tick.getPreSettlementPrice());
+        prices[8][i] = value(tick.getPreClosePrice());
+        prices[9][i] = value(tick.getSettlementPrice());
+        prices[10][i] = value(tick.getClosePrice());
+        prices[11][i] = value(tick.getAveragePrice());
+        volumes[0][i] = value(tick.getAskVolume());
+        volumes[1][i] = value(tick.getBidVolume());
+        volumes[2][i] = value(tick.getDayVolume());
+        volumes[3][i] = value(tick.getDayPosition());
+    }
+
+    /**
+     * Fill the tick with the row, symbol and trading day are set by caller.
+     */
+    void fill(int i, Tick tick) {
+        tick.setTime(toTime(times[i]));
+        tick.setPrice(box(prices[0][i]));
+        tick.setAskPrice(box(prices[1][i]));
+        tick.setBidPrice(box(prices[2][i]));
+        tick.setDayHighPrice(box(prices[3][i]));
+        tick.setDayLowPrice(box(prices[4][i]));
+        tick.setHighLimitPrice(box(prices[5][i]));
+        tick.setLowLimitPrice(box(prices[6][i]));
+        tick.setPreSettlementPrice(box(prices[7][i]));
+        tick.setPreClosePrice(box(prices[8][i]));
+        tick.setSettlementPrice(box(prices[9][i]));
+        tick.setClosePrice(box(prices[10][i]));
+        tick.setAveragePrice(box(prices[11][i]));
+        tick.setAskVolume(box(volumes[0][i]));
+        tick.setBidVolume(box(volumes[1][i]));
+        tick.setDayVolume(box(volumes[2][i]));
+        tick.setDayPosition(box(volumes[3][i]));
+    }
+
+    void encode(ByteBuffer buffer) {
+        var start = buffer.position();
+        buffer.position(start + HEADER);
+        buffer.putLong(times[0]);
+        for (int i = 1; i < count; ++i) {
+            putVarLong(buffer, times[i] - times[i - 1]);
+        }
+        for (var column : volumes) {
+            putVolumes(buffer, column);
+        }
+        for (var column : prices) {
+            putPrices(buffer, column);
+        }
+        buffer.putInt(start, MAGIC);
+        buffer.putInt(start + 4, count);
+        buffer.putInt(start + 8, buffer.position() - start - HEADER);
+    }
+
+    /**
+     * Decode the block at the buffer's position and move past it.
+     *
+     * @return {@code false} if there isn't a complete block, e.g. the tail of
+     * a file being written
+     */
+    boolean decode(ByteBuffer buffer) {
+        var start = buffer.position();
+        if (buffer.remaining() < HEADER || buffer.getInt(start) != MAGIC) {
+            return false;
+        }
+        var n = buffer.getInt(start + 4);
+        var length = buffer.getInt(start + 8);
+        if (n < 1 || n > capacity() || length > buffer.remaining() - HEADER) {
+            return false;
+        }
+        count = n;
+        buffer.position(start + HEADER);
+        times[0] = buffer.getLong();
+        for (int i = 1; i < n; ++i) {
+            times[i] = times[i - 1] + getVarLong(buffer);
+        }
+        for (var column : volumes) {
+            getVolumes(buffer, column);
+        }
+        for (var column : prices) {
+            getPrices(buffer, column);
+        }
+        buffer.position(start + HEADER + length);
+        return true;
+    }
+
+    private void putVolumes(ByteBuffer buffer, long[] column) {
+        for (int i = 0; i < count; ++i) {
+            if (column[i] == Long.MIN_VALUE) {
+                buffer.put(RAW);
+                for (int j = 0; j < count; ++j) {
+                    buffer.putLong(column[j]);
+                }
+                return;
+            }
+        }
+        buffer.put(DELTA);
+        long last = 0;
+        for (int i = 0; i < count; ++i) {
+            putVarLong(buffer, column[i] - last);
+            last = column[i];
+        }
+    }
+
+    private void getVolumes(ByteBuffer buffer, long[] column) {
+        if (buffer.get() == RAW) {
+            for (int i = 0; i < count; ++i) {
+                column[i] = buffer.getLong();
+            }
+            return;
+        }
+        long last = 0;
+        for (int i = 0; i < count; ++i) {
+            last += getVarLong(buffer);
+            column[i] = last;
+        }
+    }
+
+    private void putPrices(ByteBuffer buffer, double[] column) {
+        for (int i = 0; i < count; ++i) {
+            var v = column[i];
+            if (Double.isNaN(v) || Math.abs(v) > 1e14 || Math.round(v * SCALE) / SCALE != v) {
+                buffer.put(RAW);
+                for (int j = 0; j < count; ++j) {
+                    buffer.putDouble(column[j]);
+                }
+                return;
+            }
+        }
+        buffer.put(DELTA);
+        long last = 0;
+        for (int i = 0; i < count; ++i) {
+            var m = Math.round(column[i] * SCALE);
+            putVarLong(buffer, m - last);
+            last = m;
+        }
+    }
+
+    private void getPrices(ByteBuffer buffer, double[] column) {
+        if (buffer.get() == RAW) {
+            for (int i = 0; i < count; ++i) {
+                column[i] = buffer.getDouble();
+            }
+            return;
+        }
+        long last = 0;
+        for (int i = 0; i < count; ++i) {
+            last += getVarLong(buffer);
+            column[i] = last / SCALE;
+        }
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long v) {
+        // Zigzag so small negative deltas are short too.
+        var z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0) {
+            buffer.put((byte) ((z & 0x7F) | 0x80));
+            z >>>= 7;
+        }
+        buffer.put((byte) z);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long z = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            z |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    static long toNanos(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + time.getNano();
+    }
+
+    static LocalDateTime toTime(long nanos) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+                (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
+    }
+
+    static LocalDate dayOf(Tick tick) {
+        var d = tick.getTradingDay();
+        return d != null ? d : tick.getTime().toLocalDate();
+    }
+
+    private static double value(Double v) {
+        return v == null ? Double.NaN : v;
+    }
+
+    private static long value(Long v) {
+        return v == null ? Long.MIN_VALUE : v;
+    }
+
+    private static Double box(double v) {
+        return Double.isNaN(v) ? null : v;
+    }
+
+    private static Long box(long v) {
+        return v == Long.MIN_VALUE ? null : v;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.spi.Datafeed;
+import org.tikware.user.DataConnectionError;
+import org.tikware.user.DataInsertionError;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records ticks of a datafeed into columnar files, one file per symbol and
+ * trading day named {@code <symbol>-<yyyyMMdd>.tick}. Ticks are buffered in
+ * blocks of columns and a block is appended when it is full, the trading day
+ * changes, or on {@link #flush()}. A crash loses the ticks of the unwritten
+ * blocks only.
+ * <p>
+ * Symbol and trading day are kept in the file name, and tick ID is not kept.
+ * Ticks without time are skipped.
+ */
+public class TickRecorder implements TickListener, AutoCloseable {
+    public static final int DEFAULT_BLOCK = 4096;
+
+    static final String SUFFIX = ".tick";
+    static final DateTimeFormatter DAY = DateTimeFormatter.BASIC_ISO_DATE;
+
+    private final Path dir;
+    private final int block;
+    private final Map<String, Writer> writers = new ConcurrentHashMap<>();
+
+    public TickRecorder(String directory) {
+        this(directory, DEFAULT_BLOCK);
+    }
+
+    /**
+     * Create recorder writing under the directory.
+     *
+     * @param directory directory of tick files
+     * @param block     number of ticks in a block
+     */
+    public TickRecorder(String directory, int block) {
+        this.dir = Paths.get(directory).toAbsolutePath();
+        this.block = block;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException error) {
+            throw new DataConnectionError("Tick recorder|" + dir, error);
+        }
+    }
+
+    /**
+     * Subscribe ticks of the symbol from the datafeed and record them.
+     *
+     * @param datafeed datafeed
+     * @param symbol   symbol
+     */
+    public void record(Datafeed datafeed, String symbol) {
+        datafeed.subscribe(symbol, this);
+    }
+
+    @Override
+    public void onTick(Tick tick, boolean realtime) {
+        if (tick.getSymbol() == null || tick.getTime() == null) {
+            return;
+        }
+        var w = writers.computeIfAbsent(tick.getSymbol(), Writer::new);
+        synchronized (w) {
+            w.add(tick);
+        }
+    }
+
+    /**
+     * Append buffered ticks of all symbols to their files.
+     */
+    public void flush() {
+        for (var w : writers.values()) {
+            synchronized (w) {
+                w.write();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (var w : writers.values()) {
+            synchronized (w) {
+                w.write();
+                w.closeFile();
+            }
+        }
+    }
+
+    static String fileName(String symbol, LocalDate tradingDay) {
+        return symbol + "-" + DAY.format(tradingDay) + SUFFIX;
+    }
+
+    private class Writer {
+        private final String symbol;
+        private final TickBlock columns = new TickBlock(block);
+        private final ByteBuffer buffer = ByteBuffer.allocate(TickBlock.maxEncodedSize(block));
+        private LocalDate tradingDay;
+        private FileChannel channel;
+
+        Writer(String symbol) {
+            this.symbol = symbol;
+        }
+
+        void add(Tick tick) {
+            var day = TickBlock.dayOf(tick);
+            if (!day.equals(tradingDay)) {
+                write();
+                closeFile();
+                tradingDay = day;
+            }
+            columns.add(tick);
+            if (columns.count == columns.capacity()) {
+                write();
+            }
+        }
+
+        void write() {
+            if (columns.count == 0) {
+                return;
+            }
+            try {
+                if (channel == null) {
+                    channel = FileChannel.open(dir.resolve(fileName(symbol, tradingDay)),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND);
+                }
+                buffer.clear();
+                columns.encode(buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException error) {
+                throw new DataInsertionError("Tick|" + symbol + "|" + tradingDay, error);
+            } finally {
+                columns.count = 0;
+            }
+        }
+
+        void closeFile() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+}
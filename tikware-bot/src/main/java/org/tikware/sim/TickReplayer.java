@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.user.DataQueryError;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays tick files written by {@link TickRecorder}. Files are memory-mapped
+ * and decoded a block at a time, and ticks of several symbols are merged by
+ * time within each trading day.
+ */
+public class TickReplayer {
+    private final Path dir;
+
+    public TickReplayer(String directory) {
+        this.dir = Paths.get(directory).toAbsolutePath();
+    }
+
+    /**
+     * Replay ticks of the symbols to listener on the caller's thread, with
+     * {@code realtime=false}. The tick passed to listener is reused and only
+     * valid inside the call.
+     *
+     * @param symbols  symbols
+     * @param from     first trading day, inclusive
+     * @param to       last trading day, inclusive
+     * @param speed    multiple of the recorded pace, e.g. 1 for wall-clock
+     *                 pace, or 0 for maximum speed. Pace restarts on each
+     *                 trading day.
+     * @param listener tick callback
+     * @return number of ticks replayed
+     */
+    public long replay(Collection<String> symbols, LocalDate from, LocalDate to, double speed,
+            TickListener listener) {
+        var merge = new Merge(files(symbols, from, to));
+        var tick = new Tick();
+        long count = 0;
+        LocalDate day = null;
+        long first = 0;
+        long base = 0;
+        while (merge.next(tick)) {
+            if (speed > 0) {
+                var t = merge.time;
+                if (!tick.getTradingDay().equals(day)) {
+                    day = tick.getTradingDay();
+                    first = t;
+                    base = System.nanoTime();
+                }
+                var due = base + (long) ((t - first) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            listener.onTick(tick, false);
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Get ticks of the symbols in time order, e.g. for
+     * {@link Backtest#run(org.tikware.api.Bot, String, double, Iterable)}.
+     * Files are read lazily when iterating.
+     *
+     * @param symbols symbols
+     * @param from    first trading day, inclusive
+     * @param to      last trading day, inclusive
+     * @return ticks
+     */
+    public Iterable<Tick> ticks(Collection<String> symbols, LocalDate from, LocalDate to) {
+        return () -> new Iterator<>() {
+            private final Merge merge = new Merge(files(symbols, from, to));
+            private Tick next = read();
+
+            private Tick read() {
+                var t = new Tick();
+                return merge.next(t) ? t : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Tick next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                var r = next;
+                next = read();
+                return r;
+            }
+        };
+    }
+
+    private NavigableMap<LocalDate, List<Path>> files(Collection<String> symbols, LocalDate from,
+            LocalDate to) {
+        var r = new TreeMap<LocalDate, List<Path>>();
+        if (!Files.isDirectory(dir)) {
+            return r;
+        }
+        try (var s = Files.list(dir)) {
+            s.forEach(p -> {
+                var name = p.getFileName().toString();
+                var i = name.lastIndexOf('-');
+                if (!name.endsWith(TickRecorder.SUFFIX) || i < 0
+                    || !symbols.contains(name.substring(0, i))) {
+                    return;
+                }
+                LocalDate day;
+                try {
+                    day = LocalDate.parse(name.substring(i + 1,
+                            name.length() - TickRecorder.SUFFIX.length()), TickRecorder.DAY);
+                } catch (DateTimeParseException ignored) {
+                    return;
+                }
+                if (!day.isBefore(from) && !day.isAfter(to)) {
+                    r.computeIfAbsent(day, k -> new ArrayList<>()).add(p);
+                }
+            });
+        } catch (IOException error) {
+            throw new DataQueryError("Tick files|" + dir, error);
+        }
+        return r;
+    }
+
+    /**
+     * Merges cursors of one trading day at a time.
+     */
+    private static class Merge {
+        private final Iterator<Map.Entry<LocalDate, List<Path>>> days;
+        private final List<Cursor> cursors = new ArrayList<>();
+        private long time;
+
+        Merge(NavigableMap<LocalDate, List<Path>> files) {
+            this.days = files.entrySet().iterator();
+        }
+
+        boolean next(Tick tick) {
+            while (cursors.isEmpty()) {
+                if (!days.hasNext()) {
+                    return false;
+                }
+                var e = days.next();
+                for (var p : e.getValue()) {
+                    var c = new Cursor(p, e.getKey());
+                    if (c.advance()) {
+                        cursors.add(c);
+                    }
+                }
+            }
+            // Few symbols are replayed together, linear scan beats a heap.
+            var min = 0;
+            for (int i = 1; i < cursors.size(); ++i) {
+                if (cursors.get(i).time() < cursors.get(min).time()) {
+                    min = i;
+                }
+            }
+            var c = cursors.get(min);
+            time = c.time();
+            c.fill(tick);
+            if (!c.advance()) {
+                cursors.remove(min);
+            }
+            return true;
+        }
+    }
+
+    private static class Cursor {
+        private final String symbol;
+        private final LocalDate tradingDay;
+        private final MappedByteBuffer buffer;
+        private TickBlock block = new TickBlock(TickRecorder.DEFAULT_BLOCK);
+        private int row = -1;
+
+        Cursor(Path file, LocalDate tradingDay) {
+            var name = file.getFileName().toString();
+            this.symbol = name.substring(0, name.lastIndexOf('-'));
+            this.tradingDay = tradingDay;
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException error) {
+                throw new DataQueryError("Tick file|" + file, error);
+            }
+        }
+
+        boolean advance() {
+            if (row >= 0 && ++row < block.count) {
+                return true;
+            }
+            var p = buffer.position();
+            if (buffer.remaining() >= TickBlock.HEADER) {
+                var n = buffer.getInt(p + 4);
+                if (n > block.capacity() && n <= (1 << 24)) {
+                    block = new TickBlock(n);
+                }
+            }
+            if (!block.decode(buffer)) {
+                return false;
+            }
+            row = 0;
+            return true;
+        }
+
+        long time() {
+            return block.times[row];
+        }
+
+        void fill(Tick tick) {
+            block.fill(row, tick);
+            tick.setSymbol(symbol);
+            tick.setTradingDay(tradingDay);
+        }
+    }
+}
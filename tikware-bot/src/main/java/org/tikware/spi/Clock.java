@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.spi;
+
+import java.time.LocalDateTime;
+
+public interface Clock {
+    /**
+     * Get current time.
+     * @return current time
+     */
+    LocalDateTime now();
+
+    /**
+     * Get current time as string.
+     * @return time string in the form of <pre><code>'yyyyMMdd HH:mm:ss.SSS'</code></pre>
+     */
+    String getDateTime();
+}
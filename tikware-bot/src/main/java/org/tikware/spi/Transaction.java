@@ -20,6 +20,8 @@ package org.tikware.spi;
 import org.tikware.api.Order;
 import org.tikware.api.OrderListener;
 
+import java.util.List;
+
 public interface Transaction {
     /**
      * Send quote to exchange.
@@ -28,6 +30,35 @@ public interface Transaction {
      */
     void quote(Order order, OrderListener listener);
 
+    /**
+     * Send quotes to exchange in as few requests as gateway supports. The
+     * default sends them one by one. The lists are only valid during the call.
+     * @param orders quoted orders
+     * @param listeners callbacks for responses of the order at the same index
+     */
+    default void quoteBatch(List<Order> orders, List<OrderListener> listeners) {
+        for (int i = 0; i < orders.size(); ++i) {
+            var listener = listeners.get(i);
+            try {
+                quote(orders.get(i), listener);
+            } catch (Throwable error) {
+                try {
+                    listener.onError(error);
+                } catch (Throwable ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the order sent by {@link #quote(Order, OrderListener)}. Gateway
+     * confirms by {@link OrderListener#onCancel(String, Long)} of the order. An
+     * order that can't be canceled is filled or rejected as usual. A cancel
+     * request the gateway can't send throws a {@link org.tikware.user.TikwareError}.
+     * @param orderId id of the order to cancel
+     */
+    void cancel(String orderId);
+
     /**
      * Get today's trading day.
      * @return trading day string in the form of <pre><code>'yyyyMMdd'</code></pre>
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Record format of archive files. A file is a sequence of gzip members, each
+ * holding records that start with a marker byte, so appending a member to an
+ * existing file keeps it readable.
+ */
+final class ArchiveCodec {
+    static final String TRADE = "TRADE";
+    static final String CASH = "CASH";
+    static final String COMMISSION = "COMMISSION";
+
+    private static final int RECORD = 1;
+
+    private ArchiveCodec() {
+    }
+
+    static Path file(Path dir, String tradingDay, String user, String kind) {
+        return dir.resolve(tradingDay).resolve(
+                user.replaceAll("[^a-zA-Z0-9]", "").toUpperCase() + "_" + kind + ".gz");
+    }
+
+    static <T> void append(Path file, Collection<T> records, Writer<T> writer) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (var fos = new FileOutputStream(file.toFile(), true)) {
+            var gzip = new GZIPOutputStream(fos);
+            var out = new DataOutputStream(new BufferedOutputStream(gzip));
+            for (var r : records) {
+                out.writeByte(RECORD);
+                writer.write(out, r);
+            }
+            out.flush();
+            gzip.finish();
+            fos.getFD().sync();
+        }
+    }
+
+    static <T> Collection<T> read(Path file, Reader<T> reader, Function<T, String> id)
+            throws IOException {
+        // Rows archived again after a failed deletion appear twice, keep the last.
+        var r = new LinkedHashMap<String, T>();
+        if (!Files.exists(file)) {
+            return r.values();
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            int marker;
+            while ((marker = in.read()) == RECORD) {
+                var t = reader.read(in);
+                r.put(id.apply(t), t);
+            }
+            if (marker != -1) {
+                throw new IOException("Corrupted archive " + file);
+            }
+        }
+        return r.values();
+    }
+
+    static void writeTrade(DataOutputStream out, Trade t) throws IOException {
+        writeString(out, t.getId());
+        writeString(out, t.getUser());
+        writeString(out, t.getOrderId());
+        writeString(out, t.getSymbol());
+        writeString(out, t.getExchange());
+        out.writeDouble(t.getPrice());
+        out.writeLong(t.getQuantity());
+        out.writeChar(t.getDirection());
+        out.writeChar(t.getOffset());
+        writeString(out, t.getTradingDay());
+        writeString(out, t.getTime());
+    }
+
+    static Trade readTrade(DataInputStream in) throws IOException {
+        var t = new Trade();
+        t.setId(readString(in));
+        t.setUser(readString(in));
+        t.setOrderId(readString(in));
+        t.setSymbol(readString(in));
+        t.setExchange(readString(in));
+        t.setPrice(in.readDouble());
+        t.setQuantity(in.readLong());
+        t.setDirection(in.readChar());
+        t.setOffset(in.readChar());
+        t.setTradingDay(readString(in));
+        t.setTime(readString(in));
+        return t;
+    }
+
+    static void writeCash(DataOutputStream out, UserCash c) throws IOException {
+        writeString(out, c.getId());
+        writeString(out, c.getUser());
+        out.writeDouble(c.getCash());
+        out.writeChar(c.getSource());
+        writeString(out, c.getTradingDay());
+        writeString(out, c.getTime());
+    }
+
+    static UserCash readCash(DataInputStream in) throws IOException {
+        var c = new UserCash();
+        c.setId(readString(in));
+        c.setUser(readString(in));
+        c.setCash(in.readDouble());
+        c.setSource(in.readChar());
+        c.setTradingDay(readString(in));
+        c.setTime(readString(in));
+        return c;
+    }
+
+    static void writeCommission(DataOutputStream out, UserCommission c) throws IOException {
+        writeString(out, c.getId());
+        writeString(out, c.getUser());
+        writeString(out, c.getSymbol());
+        out.writeChar(c.getDirection());
+        out.writeChar(c.getOffset());
+        out.writeDouble(c.getCommission());
+        writeString(out, c.getTradingDay());
+        writeString(out, c.getTime());
+        out.writeChar(c.getState());
+    }
+
+    static UserCommission readCommission(DataInputStream in) throws IOException {
+        var c = new UserCommission();
+        c.setId(readString(in));
+        c.setUser(readString(in));
+        c.setSymbol(readString(in));
+        c.setDirection(in.readChar());
+        c.setOffset(in.readChar());
+        c.setCommission(in.readDouble());
+        c.setTradingDay(readString(in));
+        c.setTime(readString(in));
+        c.setState(in.readChar());
+        return c;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    interface Writer<T> {
+        void write(DataOutputStream out, T record) throws IOException;
+    }
+
+    interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking view of {@link UserPersistence}. Calls of the same user
+ * complete in the order they are made, calls of global tables complete in
+ * the order they are made. Calls a thread makes inside its unit of work
+ * complete in the order of the unit, global ones included.
+ */
+public interface AsyncUserPersistence {
+    CompletableFuture<Void> begin(String user);
+
+    CompletableFuture<Void> commit(String user);
+
+    CompletableFuture<Void> rollback(String user);
+
+    CompletableFuture<String> getTradingDay();
+
+    CompletableFuture<String> getDateTime();
+
+    CompletableFuture<Double> getPrice(String symbol);
+
+    CompletableFuture<Long> getMultiple(String symbol);
+
+    CompletableFuture<Double> getMargin(String symbol, Double price, Character direction, Character offset);
+
+    CompletableFuture<Double> getCommission(String symbol, Double price, Character direction, Character offset);
+
+    CompletableFuture<Void> addTradingDay(String tradingDay);
+
+    CompletableFuture<Void> addOrUpdatePrice(String symbol, Double price);
+
+    CompletableFuture<Void> addOrUpdateMultiple(String symbol, Long multiple);
+
+    CompletableFuture<Void> addOrUpdateMarginRatio(String symbol, Double ratio, Character direction, Character offset, Character type);
+
+    CompletableFuture<Void> addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction, Character offset, Character type);
+
+    CompletableFuture<Void> addTrade(String user, Trade trade);
+
+    CompletableFuture<Collection<Trade>> getTrades(String user);
+
+    CompletableFuture<UserBalance> getUserBalance(String user);
+
+    CompletableFuture<Void> alterUserBalance(String user, UserBalance balance, Character alter);
+
+    CompletableFuture<Collection<UserPosition>> getUserPositions(String user);
+
+    CompletableFuture<Void> alterUserPosition(String user, UserPosition position, Character alter);
+
+    CompletableFuture<Collection<UserCash>> getUserCashes(String user);
+
+    CompletableFuture<Void> alterUserCash(String user, UserCash cash, Character alter);
+
+    CompletableFuture<Collection<UserCommission>> getUserCommissions(String user);
+
+    CompletableFuture<Void> alterUserCommission(String user, UserCommission commission, Character alter);
+
+    CompletableFuture<Collection<UserInfo>> getUserInfos();
+
+    CompletableFuture<Void> alterUserInfo(UserInfo user, Character alter);
+
+    /**
+     * Get a future that completes after all calls made before it complete.
+     *
+     * @return future of all previous calls
+     */
+    CompletableFuture<Void> flush();
+
+    /**
+     * Stop accepting calls and wait for the submitted ones.
+     */
+    void close();
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache over the rarely changing queries of a
+ * {@link UserPersistence}. Each cached method has its own TTL and size bound,
+ * and writes through this object invalidate the affected entries.
+ */
+public class CachingUserPersistence extends DelegatingUserPersistence {
+    public static final String TRADING_DAY = "getTradingDay";
+    public static final String PRICE = "getPrice";
+    public static final String MULTIPLE = "getMultiple";
+    public static final String MARGIN = "getMargin";
+    public static final String COMMISSION = "getCommission";
+
+    private final Cache<String, String> tradingDays;
+    private final Cache<String, Double> prices;
+    private final Cache<String, Long> multiples;
+    private final Cache<FeeKey, Double> margins;
+    private final Cache<FeeKey, Double> commissions;
+    private final Map<String, Cache<?, ?>> caches = new LinkedHashMap<>();
+
+    public CachingUserPersistence(UserPersistence delegate) {
+        super(delegate);
+        tradingDays = cache(TRADING_DAY, Duration.ofMinutes(1), 1);
+        prices = cache(PRICE, Duration.ofMillis(500), 4096);
+        multiples = cache(MULTIPLE, Duration.ofMinutes(10), 4096);
+        margins = cache(MARGIN, Duration.ofMinutes(10), 16384);
+        commissions = cache(COMMISSION, Duration.ofMinutes(10), 16384);
+    }
+
+    private <K, V> Cache<K, V> cache(String method, Duration ttl, int maxSize) {
+        var c = new Cache<K, V>(ttl, maxSize);
+        caches.put(method, c);
+        return c;
+    }
+
+    /**
+     * Set TTL and maximum number of entries of the specified cached method.
+     *
+     * @param method  method name, one of the constants in this class
+     * @param ttl     time to live of an entry
+     * @param maxSize maximum number of entries, the least recently used entry is
+     *                evicted beyond it
+     */
+    public void configure(String method, Duration ttl, int maxSize) {
+        var c = caches.get(method);
+        if (c == null) {
+            throw new IllegalArgumentException(method);
+        }
+        c.configure(ttl, maxSize);
+    }
+
+    /**
+     * Get statistics snapshot of all cached methods.
+     *
+     * @return statistics keyed by method name
+     */
+    public Map<String, CacheStatistics> getStatistics() {
+        var r = new LinkedHashMap<String, CacheStatistics>();
+        caches.forEach((method, cache) -> r.put(method, cache.statistics()));
+        return r;
+    }
+
+    @Override
+    public String getTradingDay() {
+        return tradingDays.get(TRADING_DAY, super::getTradingDay);
+    }
+
+    @Override
+    public Double getPrice(String symbol) {
+        return prices.get(symbol, () -> super.getPrice(symbol));
+    }
+
+    @Override
+    public Long getMultiple(String symbol) {
+        return multiples.get(symbol, () -> super.getMultiple(symbol));
+    }
+
+    @Override
+    public Double getMargin(String symbol, Double price, Character direction, Character offset) {
+        return margins.get(new FeeKey(symbol, price, direction, offset),
+                () -> super.getMargin(symbol, price, direction, offset));
+    }
+
+    @Override
+    public Double getCommission(String symbol, Double price, Character direction,
+            Character offset) {
+        return commissions.get(new FeeKey(symbol, price, direction, offset),
+                () -> super.getCommission(symbol, price, direction, offset));
+    }
+
+    @Override
+    public void addTradingDay(String tradingDay) {
+        super.addTradingDay(tradingDay);
+        tradingDays.clear();
+    }
+
+    @Override
+    public void addOrUpdatePrice(String symbol, Double price) {
+        super.addOrUpdatePrice(symbol, price);
+        prices.remove(symbol);
+    }
+
+    @Override
+    public void addOrUpdateMultiple(String symbol, Long multiple) {
+        super.addOrUpdateMultiple(symbol, multiple);
+        multiples.remove(symbol);
+        // Fees by amount depend on multiple.
+        margins.removeIf(key -> key.symbol.equals(symbol));
+        commissions.removeIf(key -> key.symbol.equals(symbol));
+    }
+
+    @Override
+    public void addOrUpdateMarginRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        super.addOrUpdateMarginRatio(symbol, ratio, direction, offset, type);
+        margins.removeIf(key -> key.symbol.equals(symbol));
+    }
+
+    @Override
+    public void addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        super.addOrUpdateCommissionRatio(symbol, ratio, direction, offset, type);
+        commissions.removeIf(key -> key.symbol.equals(symbol));
+    }
+
+    public static class CacheStatistics {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+        private final int size;
+
+        CacheStatistics(long hits, long misses, long evictions, long expirations, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.size = size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getExpirations() {
+            return expirations;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public double getHitRate() {
+            var total = hits + misses;
+            return total == 0 ? 0.0D : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, hitRate=%.4f, evictions=%d, " +
+                                 "expirations=%d, size=%d", hits, misses, getHitRate(),
+                    evictions, expirations, size);
+        }
+    }
+
+    private static class Cache<K, V> {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong expirations = new AtomicLong();
+        private final LinkedHashMap<K, Entry<V>> entries;
+        private long ttl;
+        private int maxSize;
+        private long version;
+
+        Cache(Duration ttl, int maxSize) {
+            this.ttl = ttl.toNanos();
+            this.maxSize = maxSize;
+            this.entries = new LinkedHashMap<>(16, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                    if (size() > Cache.this.maxSize) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized void configure(Duration ttl, int maxSize) {
+            this.ttl = ttl.toNanos();
+            this.maxSize = maxSize;
+            var it = entries.entrySet().iterator();
+            while (entries.size() > maxSize && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        V get(K key, Supplier<V> loader) {
+            long v;
+            synchronized (this) {
+                var e = entries.get(key);
+                if (e != null) {
+                    if (System.nanoTime() - e.expireAt < 0) {
+                        hits.incrementAndGet();
+                        return e.value;
+                    }
+                    entries.remove(key);
+                    expirations.incrementAndGet();
+                }
+                v = version;
+            }
+            misses.incrementAndGet();
+            var value = loader.get();
+            synchronized (this) {
+                // Don't cache the value loaded before an invalidation.
+                if (v == version) {
+                    entries.put(key, new Entry<>(value, System.nanoTime() + ttl));
+                }
+            }
+            return value;
+        }
+
+        synchronized void remove(K key) {
+            ++version;
+            entries.remove(key);
+        }
+
+        synchronized void removeIf(Predicate<K> predicate) {
+            ++version;
+            entries.keySet().removeIf(predicate);
+        }
+
+        synchronized void clear() {
+            ++version;
+            entries.clear();
+        }
+
+        synchronized CacheStatistics statistics() {
+            return new CacheStatistics(hits.get(), misses.get(), evictions.get(),
+                    expirations.get(), entries.size());
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expireAt;
+
+        Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static class FeeKey {
+        private final String symbol;
+        private final Double price;
+        private final Character direction;
+        private final Character offset;
+
+        FeeKey(String symbol, Double price, Character direction, Character offset) {
+            this.symbol = symbol;
+            this.price = price;
+            this.direction = direction;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FeeKey)) {
+                return false;
+            }
+            var k = (FeeKey) o;
+            return Objects.equals(symbol, k.symbol) && Objects.equals(price, k.price) &&
+                   Objects.equals(direction, k.direction) && Objects.equals(offset, k.offset);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(symbol, price, direction, offset);
+        }
+    }
+}
@@ -18,4 +18,19 @@
 package org.tikware.user;
 
 public class CloseInfo extends QuoteInfo {
+    private boolean today;
+
+    /**
+     * Whether the frozen lot is opened on current trading day, and closed by
+     * close today order where exchange distinguishes.
+     *
+     * @return {@code true} if opened today
+     */
+    public boolean isToday() {
+        return today;
+    }
+
+    public void setToday(boolean today) {
+        this.today = today;
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.spi.Clock;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Wall clock with millisecond resolution. Time string is formatted at most
+ * once per millisecond and shared by all callers within it.
+ */
+public class CoarseClock implements Clock {
+    private final ZoneId zone;
+    private volatile ClockStamp stamp;
+
+    public CoarseClock() {
+        this(ZoneId.systemDefault());
+    }
+
+    public CoarseClock(ZoneId zone) {
+        this.zone = zone;
+        this.stamp = stamp(System.currentTimeMillis());
+    }
+
+    @Override
+    public LocalDateTime now() {
+        return current().time;
+    }
+
+    @Override
+    public String getDateTime() {
+        return current().text;
+    }
+
+    private ClockStamp current() {
+        var ms = System.currentTimeMillis();
+        var s = stamp;
+        if (s.millis != ms) {
+            // Racing threads may format the same millisecond twice, that is harmless.
+            s = stamp(ms);
+            stamp = s;
+        }
+        return s;
+    }
+
+    private ClockStamp stamp(long millis) {
+        return new ClockStamp(millis, LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone));
+    }
+}
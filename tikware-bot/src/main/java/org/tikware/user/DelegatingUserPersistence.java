@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.util.Collection;
+
+/**
+ * Forwards every call to the wrapped {@link UserPersistence}. Decorators
+ * extend this class and only override the methods they change.
+ */
+public class DelegatingUserPersistence implements UserPersistence {
+    private final UserPersistence delegate;
+
+    public DelegatingUserPersistence(UserPersistence delegate) {
+        this.delegate = delegate;
+    }
+
+    protected UserPersistence delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void begin(String user) {
+        delegate.begin(user);
+    }
+
+    @Override
+    public void commit(String user) {
+        delegate.commit(user);
+    }
+
+    @Override
+    public void rollback(String user) {
+        delegate.rollback(user);
+    }
+
+    @Override
+    public String getTradingDay() {
+        return delegate.getTradingDay();
+    }
+
+    @Override
+    public String getDateTime() {
+        return delegate.getDateTime();
+    }
+
+    @Override
+    public Double getPrice(String symbol) {
+        return delegate.getPrice(symbol);
+    }
+
+    @Override
+    public Long getMultiple(String symbol) {
+        return delegate.getMultiple(symbol);
+    }
+
+    @Override
+    public Double getMargin(String symbol, Double price, Character direction, Character offset) {
+        return delegate.getMargin(symbol, price, direction, offset);
+    }
+
+    @Override
+    public Double getCommission(String symbol, Double price, Character direction,
+            Character offset) {
+        return delegate.getCommission(symbol, price, direction, offset);
+    }
+
+    @Override
+    public void addTradingDay(String tradingDay) {
+        delegate.addTradingDay(tradingDay);
+    }
+
+    @Override
+    public void addOrUpdatePrice(String symbol, Double price) {
+        delegate.addOrUpdatePrice(symbol, price);
+    }
+
+    @Override
+    public void addOrUpdateMultiple(String symbol, Long multiple) {
+        delegate.addOrUpdateMultiple(symbol, multiple);
+    }
+
+    @Override
+    public void addOrUpdateMarginRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        delegate.addOrUpdateMarginRatio(symbol, ratio, direction, offset, type);
+    }
+
+    @Override
+    public void addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        delegate.addOrUpdateCommissionRatio(symbol, ratio, direction, offset, type);
+    }
+
+    @Override
+    public void addTrade(String user, Trade trade) {
+        delegate.addTrade(user, trade);
+    }
+
+    @Override
+    public Collection<Trade> getTrades(String user) {
+        return delegate.getTrades(user);
+    }
+
+    @Override
+    public UserBalance getUserBalance(String user) {
+        return delegate.getUserBalance(user);
+    }
+
+    @Override
+    public void alterUserBalance(String user, UserBalance balance, Character alter) {
+        delegate.alterUserBalance(user, balance, alter);
+    }
+
+    @Override
+    public Collection<UserPosition> getUserPositions(String user) {
+        return delegate.getUserPositions(user);
+    }
+
+    @Override
+    public void alterUserPosition(String user, UserPosition position, Character alter) {
+        delegate.alterUserPosition(user, position, alter);
+    }
+
+    @Override
+    public Collection<UserCash> getUserCashes(String user) {
+        return delegate.getUserCashes(user);
+    }
+
+    @Override
+    public void alterUserCash(String user, UserCash cash, Character alter) {
+        delegate.alterUserCash(user, cash, alter);
+    }
+
+    @Override
+    public Collection<UserCommission> getUserCommissions(String user) {
+        return delegate.getUserCommissions(user);
+    }
+
+    @Override
+    public void alterUserCommission(String user, UserCommission commission, Character alter) {
+        delegate.alterUserCommission(user, commission, alter);
+    }
+
+    @Override
+    public Collection<UserInfo> getUserInfos() {
+        return delegate.getUserInfos();
+    }
+
+    @Override
+    public void alterUserInfo(UserInfo user, Character alter) {
+        delegate.alterUserInfo(user, alter);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Runs calls of a blocking {@link UserPersistence} on dedicated I/O threads.
+ * Users are hashed to single-threaded stripes so calls of a user run in
+ * order, and global tables have a thread of their own so reading them never
+ * waits for units of work of users.
+ * <p>
+ * A unit of work holds its stripe from begin to the outermost commit or
+ * rollback, so units of different users on one stripe never interleave. Calls
+ * made by the thread that began the unit, including calls of global tables,
+ * run inside the unit in the order they are made. Like the wrapped
+ * persistence, a thread can't begin a unit of another user while its unit is
+ * open, and it must end the unit before the stripe serves other calls. A unit
+ * with a failed call is rolled back on commit.
+ */
+public class ExecutorAsyncUserPersistence implements AsyncUserPersistence {
+    private final UserPersistence persistence;
+    private final ExecutorService[] stripes;
+    private final ExecutorService global;
+    private final ThreadLocal<Unit> units = new ThreadLocal<>();
+
+    public ExecutorAsyncUserPersistence(UserPersistence persistence) {
+        this(persistence, 1);
+    }
+
+    public ExecutorAsyncUserPersistence(UserPersistence persistence, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be positive.");
+        }
+        this.persistence = persistence;
+        this.stripes = new ExecutorService[threads];
+        for (int i = 0; i < threads; ++i) {
+            stripes[i] = executor("persistence-io-" + i);
+        }
+        this.global = executor("persistence-io-global");
+    }
+
+    private static ExecutorService executor(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            var t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public UserPersistence getPersistence() {
+        return persistence;
+    }
+
+    private Executor stripe(String user) {
+        return user == null ? global : stripes[Math.floorMod(user.hashCode(), stripes.length)];
+    }
+
+    private <T> CompletableFuture<T> supply(String user, Supplier<T> call) {
+        var u = units.get();
+        if (u == null) {
+            return CompletableFuture.supplyAsync(call, stripe(user));
+        }
+        // Inside the unit on its stripe.
+        var f = new CompletableFuture<T>();
+        u.calls.add(() -> {
+            try {
+                f.complete(call.get());
+            } catch (Throwable error) {
+                if (u.failure == null) {
+                    u.failure = error;
+                }
+                f.completeExceptionally(error);
+            }
+        });
+        return f;
+    }
+
+    private CompletableFuture<Void> run(String user, Runnable call) {
+        return supply(user, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> begin(String user) {
+        var u = units.get();
+        if (u == null) {
+            var unit = new Unit(user);
+            stripe(user).execute(() -> drain(unit));
+            units.set(unit);
+        } else if (!Objects.equals(u.user, user)) {
+            throw new DataCommitError("Unit of work of another user is open|" + u.user + "|" +
+                                      user, null);
+        } else {
+            ++u.depth;
+        }
+        return run(user, () -> persistence.begin(user));
+    }
+
+    /**
+     * Commit the unit of work, or roll it back if a call in the unit failed.
+     * The unit is rolled back as a whole so the remaining writes of the unit
+     * are never committed alone, and the returned future completes
+     * exceptionally with {@link DataCommitError}.
+     *
+     * @param user user
+     * @return future of the commit
+     */
+    @Override
+    public CompletableFuture<Void> commit(String user) {
+        var u = units.get();
+        if (u == null || !Objects.equals(u.user, user)) {
+            return end(user, () -> persistence.commit(user));
+        }
+        return end(user, () -> {
+            if (u.failure == null) {
+                persistence.commit(user);
+                return;
+            }
+            persistence.rollback(user);
+            throw new DataCommitError("Unit of work rolled back|" + user, u.failure);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> rollback(String user) {
+        return end(user, () -> persistence.rollback(user));
+    }
+
+    private CompletableFuture<Void> end(String user, Runnable call) {
+        var f = run(user, call);
+        var u = units.get();
+        if (u != null && Objects.equals(u.user, user) && --u.depth == 0) {
+            // Release the stripe.
+            units.remove();
+            u.calls.add(Unit.END);
+        }
+        return f;
+    }
+
+    private static void drain(Unit unit) {
+        while (true) {
+            Runnable call;
+            try {
+                call = unit.calls.take();
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (call == Unit.END) {
+                return;
+            }
+            call.run();
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> getTradingDay() {
+        return supply(null, persistence::getTradingDay);
+    }
+
+    @Override
+    public CompletableFuture<String> getDateTime() {
+        return CompletableFuture.completedFuture(persistence.getDateTime());
+    }
+
+    @Override
+    public CompletableFuture<Double> getPrice(String symbol) {
+        return supply(null, () -> persistence.getPrice(symbol));
+    }
+
+    @Override
+    public CompletableFuture<Long> getMultiple(String symbol) {
+        return supply(null, () -> persistence.getMultiple(symbol));
+    }
+
+    @Override
+    public CompletableFuture<Double> getMargin(String symbol, Double price, Character direction,
+            Character offset) {
+        return supply(null, () -> persistence.getMargin(symbol, price, direction, offset));
+    }
+
+    @Override
+    public CompletableFuture<Double> getCommission(String symbol, Double price,
+            Character direction, Character offset) {
+        return supply(null, () -> persistence.getCommission(symbol, price, direction, offset));
+    }
+
+    @Override
+    public CompletableFuture<Void> addTradingDay(String tradingDay) {
+        return run(null, () -> persistence.addTradingDay(tradingDay));
+    }
+
+    @Override
+    public CompletableFuture<Void> addOrUpdatePrice(String symbol, Double price) {
+        return run(null, () -> persistence.addOrUpdatePrice(symbol, price));
+    }
+
+    @Override
+    public CompletableFuture<Void> addOrUpdateMultiple(String symbol, Long multiple) {
+        return run(null, () -> persistence.addOrUpdateMultiple(symbol, multiple));
+    }
+
+    @Override
+    public CompletableFuture<Void> addOrUpdateMarginRatio(String symbol, Double ratio,
+            Character direction, Character offset, Character type) {
+        return run(null, () -> persistence.addOrUpdateMarginRatio(symbol, ratio, direction,
+                offset, type));
+    }
+
+    @Override
+    public CompletableFuture<Void> addOrUpdateCommissionRatio(String symbol, Double ratio,
+            Character direction, Character offset, Character type) {
+        return run(null, () -> persistence.addOrUpdateCommissionRatio(symbol, ratio, direction,
+                offset, type));
+    }
+
+    @Override
+    public CompletableFuture<Void> addTrade(String user, Trade trade) {
+        return run(user, () -> persistence.addTrade(user, trade));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Trade>> getTrades(String user) {
+        return supply(user, () -> persistence.getTrades(user));
+    }
+
+    @Override
+    public CompletableFuture<UserBalance> getUserBalance(String user) {
+        return supply(user, () -> persistence.getUserBalance(user));
+    }
+
+    @Override
+    public CompletableFuture<Void> alterUserBalance(String user, UserBalance balance,
+            Character alter) {
+        return run(user, () -> persistence.alterUserBalance(user, balance, alter));
+    }
+
+    @Override
+    public CompletableFuture<Collection<UserPosition>> getUserPositions(String user) {
+        return supply(user, () -> persistence.getUserPositions(user));
+    }
+
+    @Override
+    public CompletableFuture<Void> alterUserPosition(String user, UserPosition position,
+            Character alter) {
+        return run(user, () -> persistence.alterUserPosition(user, position, alter));
+    }
+
+    @Override
+    public CompletableFuture<Collection<UserCash>> getUserCashes(String user) {
+        return supply(user, () -> persistence.getUserCashes(user));
+    }
+
+    @Override
+    public CompletableFuture<Void> alterUserCash(String user, UserCash cash, Character alter) {
+        return run(user, () -> persistence.alterUserCash(user, cash, alter));
+    }
+
+    @Override
+    public CompletableFuture<Collection<UserCommission>> getUserCommissions(String user) {
+        return supply(user, () -> persistence.getUserCommissions(user));
+    }
+
+    @Override
+    public CompletableFuture<Void> alterUserCommission(String user, UserCommission commission,
+            Character alter) {
+        return run(user, () -> persistence.alterUserCommission(user, commission, alter));
+    }
+
+    @Override
+    public CompletableFuture<Collection<UserInfo>> getUserInfos() {
+        return supply(null, persistence::getUserInfos);
+    }
+
+    @Override
+    public CompletableFuture<Void> alterUserInfo(UserInfo user, Character alter) {
+        return run(null, () -> persistence.alterUserInfo(user, alter));
+    }
+
+    @Override
+    public CompletableFuture<Void> flush() {
+        // Executors are FIFO, so a no-op on each completes after earlier calls.
+        var all = new CompletableFuture<?>[stripes.length + 1];
+        for (int i = 0; i < stripes.length; ++i) {
+            all[i] = CompletableFuture.runAsync(() -> {}, stripes[i]);
+        }
+        all[stripes.length] = CompletableFuture.runAsync(() -> {}, global);
+        return CompletableFuture.allOf(all);
+    }
+
+    /**
+     * Stop accepting calls and wait for the queued ones. Units of work must be
+     * ended before close.
+     */
+    @Override
+    public void close() {
+        for (var s : stripes) {
+            s.shutdown();
+        }
+        global.shutdown();
+        try {
+            for (var s : stripes) {
+                s.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            global.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Unit {
+        private static final Runnable END = () -> {};
+
+        private final String user;
+        private final BlockingQueue<Runnable> calls = new LinkedBlockingQueue<>();
+        private int depth = 1;
+        // First failed call, set and read on the stripe.
+        private Throwable failure;
+
+        Unit(String user) {
+            this.user = user;
+        }
+    }
+}
@@ -18,18 +18,26 @@
 package org.tikware.user;
 
 import org.tikware.api.Trade;
+import org.tikware.spi.Clock;
 
 import java.sql.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class JdbcUserPersistence implements UserPersistence {
-    private static final DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyyMMdd HH:mm:ss.SSS");
+    private static final int MAX_GROUP = 64;
+
+    private final ReentrantLock unitLock = new ReentrantLock();
+    private final ThreadLocal<Scope> scopes = new ThreadLocal<>();
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+    private Group group;
     private Connection dbc;
+    private volatile Clock clock = new CoarseClock();
 
     /**
      * Provide connection to custom data source.
@@ -38,7 +46,20 @@ public abstract class JdbcUserPersistence implements UserPersistence {
      */
     public abstract Connection open();
 
-    protected Connection connection() {
+    /**
+     * Set clock for time stamps of the entities created by this persistence.
+     *
+     * @param clock {@link Clock}
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /*
+     * Synchronized so threads sharing the persistence never open a connection
+     * each and lose the writes made on the replaced one.
+     */
+    protected synchronized Connection connection() {
         try {
             if (dbc == null || !dbc.isValid(1)) {
                 dbc = open();
@@ -49,6 +70,170 @@ public abstract class JdbcUserPersistence implements UserPersistence {
         }
     }
 
+    /**
+     * Open a unit of work of the user on the calling thread. Units run one at a
+     * time on the connection, each from its own savepoint, so a rollback only
+     * undoes the writes of its unit. Units that commit while others are
+     * waiting share one group commit, done by the last unit of the group.
+     * <p>
+     * A nested unit of the same user joins the outer one, and a unit of
+     * another user can't be opened on the thread until the outer one ends.
+     */
+    @Override
+    public void begin(String user) {
+        var s = scopes.get();
+        if (s != null) {
+            if (!Objects.equals(s.user, user)) {
+                throw new DataCommitError("Unit of work of another user is open|" + s.user
+                                          + "|" + user, null);
+            }
+            ++s.depth;
+            return;
+        }
+        if (user != null) {
+            // Create tables first because DDL commits the open transaction.
+            ensureUserTables(user);
+        }
+        unitLock.lock();
+        try {
+            if (group == null) {
+                group = new Group();
+                setAutoCommit(false);
+            }
+            scopes.set(new Scope(user, group, connection().setSavepoint()));
+        } catch (SQLException error) {
+            leave(group, false);
+            throw new DataCommitError("Unit of work|" + user, error);
+        } catch (RuntimeException | Error error) {
+            leave(group, false);
+            throw error;
+        }
+    }
+
+    @Override
+    public void commit(String user) {
+        end(user, false);
+    }
+
+    @Override
+    public void rollback(String user) {
+        end(user, true);
+    }
+
+    private void end(String user, boolean rollback) {
+        var s = scopes.get();
+        if (s == null || !Objects.equals(s.user, user)) {
+            throw new DataCommitError("No unit of work|" + user, null);
+        }
+        s.failed |= rollback;
+        if (--s.depth > 0) {
+            return;
+        }
+        scopes.remove();
+        var g = s.group;
+        if (s.failed) {
+            try {
+                connection().rollback(s.savepoint);
+            } catch (SQLException error) {
+                // Can't undo the unit alone, roll back the whole group.
+                g.error = error;
+            }
+        }
+        if (!s.failed) {
+            ++g.members;
+        }
+        leave(g, !s.failed);
+        if (s.failed && !rollback) {
+            throw new DataCommitError("Unit of work rolled back|" + user, g.error);
+        }
+        if (!s.failed && g.error != null) {
+            throw new DataCommitError("Unit of work rolled back|" + user, g.error);
+        }
+    }
+
+    /*
+     * Hand the connection to a waiting unit so it joins the group, or finish
+     * the group. Called with unit lock held, and a committed unit returns after
+     * its group is finished.
+     */
+    private void leave(Group g, boolean committed) {
+        if (g.error == null && unitLock.hasQueuedThreads() && g.members < MAX_GROUP) {
+            unitLock.unlock();
+            if (committed) {
+                g.await();
+            }
+            return;
+        }
+        try {
+            finishGroup(g);
+        } finally {
+            unitLock.unlock();
+        }
+    }
+
+    private void finishGroup(Group g) {
+        try {
+            if (g.error == null) {
+                connection().commit();
+            } else {
+                connection().rollback();
+            }
+        } catch (SQLException error) {
+            g.error = error;
+            try {
+                connection().rollback();
+            } catch (SQLException ignored) {
+            }
+        } finally {
+            group = null;
+            try {
+                setAutoCommit(true);
+            } finally {
+                g.finish();
+            }
+        }
+    }
+
+    private void ensureUserTables(String user) {
+        if (users.contains(user)) {
+            return;
+        }
+        ensureTrade(user);
+        ensureUserBalance(user);
+        ensureUserPosition(user);
+        ensureUserCash(user);
+        ensureUserCommission(user);
+        users.add(user);
+    }
+
+    private void setAutoCommit(boolean autoCommit) {
+        try {
+            connection().setAutoCommit(autoCommit);
+        } catch (SQLException error) {
+            throw new DataConnectionError(error.getMessage(), error);
+        }
+    }
+
+    /**
+     * Run the alter inside the unit of work open on the current thread, or in
+     * a unit of its own.
+     */
+    private void scoped(String user, Runnable alter) {
+        var s = scopes.get();
+        if (s != null) {
+            alter.run();
+            return;
+        }
+        begin(user);
+        try {
+            alter.run();
+        } catch (Throwable error) {
+            rollback(user);
+            throw error;
+        }
+        commit(user);
+    }
+
     @Override
     public String getTradingDay() {
         ensureTradingDay();
@@ -68,7 +253,7 @@ public abstract class JdbcUserPersistence implements UserPersistence {
 
     @Override
     public String getDateTime() {
-        return LocalDateTime.now().format(fmt);
+        return clock.getDateTime();
     }
 
     @Override
@@ -268,14 +453,37 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     }
 
     private void createTable(String sql) throws SQLException {
+        if (unitLock.isHeldByCurrentThread()) {
+            // DDL commits the open transaction, so restart the unit from here.
+            try (Statement stmt = connection().createStatement()) {
+                stmt.execute(sql);
+            }
+            var s = scopes.get();
+            if (s != null) {
+                s.savepoint = connection().setSavepoint();
+            }
+            return;
+        }
+        // Wait for the running unit so DDL doesn't commit it halfway.
+        unitLock.lock();
         try (Statement stmt = connection().createStatement()) {
             stmt.execute(sql);
+        } finally {
+            if (group != null) {
+                leave(group, false);
+            } else {
+                unitLock.unlock();
+            }
         }
     }
 
     @Override
     public void addTrade(String user, Trade trade) {
-       var table = ensureTrade(user);
+        scoped(user, () -> insertTrade(user, trade));
+    }
+
+    private void insertTrade(String user, Trade trade) {
+        var table = ensureTrade(user);
         try (PreparedStatement stmt = connection().prepareStatement(
                 "INSERT INTO " + table + " (_ID, _USER, _ORDER_ID, _SYMBOL, _EXCHANGE, _PRICE, " +
                 "_QUANTITY, _DIRECTION, _OFFSET, _TRADING_DAY, _TIME) VALUES " +
@@ -350,6 +558,10 @@ public abstract class JdbcUserPersistence implements UserPersistence {
 
     @Override
     public void addTradingDay(String tradingDay) {
+        scoped(null, () -> insertTradingDay(tradingDay));
+    }
+
+    private void insertTradingDay(String tradingDay) {
         ensureTradingDay();
         try (PreparedStatement stmt = connection().prepareStatement(
                 "INSERT INTO _TRADING_DAY_TABLE(_TIME, _TRADING_DAY) VALUES (?, ?)")) {
@@ -369,11 +581,13 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     public void addOrUpdatePrice(String symbol, Double price) {
         ensurePrice();
         var p = getPrice(symbol);
-        if (p.isNaN()) {
-            addPrice(symbol, price);
-        } else {
-            updatePrice(symbol, price);
-        }
+        scoped(null, () -> {
+            if (p.isNaN()) {
+                addPrice(symbol, price);
+            } else {
+                updatePrice(symbol, price);
+            }
+        });
     }
 
     private void addPrice(String symbol, Double price) {
@@ -408,11 +622,13 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     @Override
     public void addOrUpdateMultiple(String symbol, Long multiple) {
         var m = getMultiple(symbol);
-        if (m == null) {
-            addMultiple(symbol, multiple);
-        } else {
-            updateMultiple(symbol, multiple);
-        }
+        scoped(null, () -> {
+            if (m == null) {
+                addMultiple(symbol, multiple);
+            } else {
+                updateMultiple(symbol, multiple);
+            }
+        });
     }
 
     private void addMultiple(String symbol, Long multiple) {
@@ -447,16 +663,19 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     @Override
     public void addOrUpdateMarginRatio(String symbol, Double ratio, Character direction,
             Character offset, Character type) {
+        ensureMargin();
         var rs = getMarginRatio(symbol, direction, offset);
-        if (rs == null) {
-            addMarginRatio(symbol, ratio, direction, offset, type);
-        } else {
-            updateMarginRatio(symbol, ratio, direction, offset, type);
-            try {
-                rs.close();
-            } catch (SQLException ignored) {
+        scoped(null, () -> {
+            if (rs == null) {
+                addMarginRatio(symbol, ratio, direction, offset, type);
+            } else {
+                updateMarginRatio(symbol, ratio, direction, offset, type);
+                try {
+                    rs.close();
+                } catch (SQLException ignored) {
+                }
             }
-        }
+        });
     }
 
     private void addMarginRatio(String symbol, Double ratio, Character direction,
@@ -502,16 +721,19 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     @Override
     public void addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction,
             Character offset, Character type) {
+        ensureCommission();
         var rs = getCommissionRatio(symbol, direction, offset);
-        if (rs == null) {
-            addCommissionRatio(symbol, ratio, direction, offset, type);
-        } else {
-            updateCommissionRatio(symbol, ratio, direction, offset, type);
-            try {
-                rs.close();
-            } catch (SQLException ignored) {
+        scoped(null, () -> {
+            if (rs == null) {
+                addCommissionRatio(symbol, ratio, direction, offset, type);
+            } else {
+                updateCommissionRatio(symbol, ratio, direction, offset, type);
+                try {
+                    rs.close();
+                } catch (SQLException ignored) {
+                }
             }
-        }
+        });
     }
 
     private void addCommissionRatio(String symbol, Double ratio, Character direction,
@@ -585,11 +807,11 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     public void alterUserBalance(String user, UserBalance balance, Character alter) {
         ensureUserBalance(user);
         if (Objects.equals(alter, ALTER_ADD)) {
-            addUserBalance(user, balance);
+            scoped(user, () -> addUserBalance(user, balance));
         } else if (Objects.equals(alter, ALTER_UPDATE)) {
-            updateUserBalance(user, balance);
+            scoped(user, () -> updateUserBalance(user, balance));
         } else if (Objects.equals(alter, ALTER_DELETE)) {
-            deleteUserBalance(user, balance);
+            scoped(user, () -> deleteUserBalance(user, balance));
         } else {
             throw new UnsupportedAlterError("User balance|" + user + "|" + alter.toString(), null);
         }
@@ -663,8 +885,19 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     }
 
     private String userTableName(String user, String table) {
+        return "_" + userKey(user) + table;
+    }
+
+    /**
+     * Get the key of user that names its tables. Users of the same key share
+     * tables.
+     *
+     * @param user user
+     * @return user with non alphanumeric characters removed, in upper case
+     */
+    public static String userKey(String user) {
         // Need remove all non alphabetic or non numeric characters.
-        return "_" + user.replaceAll("[^a-zA-Z0-9]", "").toUpperCase() + table;
+        return user.replaceAll("[^a-zA-Z0-9]", "").toUpperCase();
     }
 
 
@@ -705,11 +938,11 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     public void alterUserPosition(String user, UserPosition position, Character alter) {
         ensureUserPosition(user);
         if (Objects.equals(alter, ALTER_ADD)) {
-            addUserPosition(user, position);
+            scoped(user, () -> addUserPosition(user, position));
         } else if (Objects.equals(alter, ALTER_UPDATE)) {
-            updateUserPosition(user, position);
+            scoped(user, () -> updateUserPosition(user, position));
         } else if (Objects.equals(alter, ALTER_DELETE)) {
-            deleteUserPosition(user, position);
+            scoped(user, () -> deleteUserPosition(user, position));
         } else {
             throw new UnsupportedAlterError("User position|" + user + "|" + alter.toString(), null);
         }
@@ -830,11 +1063,11 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     public void alterUserCash(String user, UserCash cash, Character alter) {
         ensureUserCash(user);
         if (Objects.equals(alter, ALTER_ADD)) {
-            addUserCash(user, cash);
+            scoped(user, () -> addUserCash(user, cash));
         } else if (Objects.equals(alter, ALTER_UPDATE)) {
-            updateUserCash(user, cash);
+            scoped(user, () -> updateUserCash(user, cash));
         } else if (Objects.equals(alter, ALTER_DELETE)) {
-            deleteUserCash(user, cash);
+            scoped(user, () -> deleteUserCash(user, cash));
         } else {
             throw new UnsupportedAlterError("User cash|" + user + "|" + alter.toString(), null);
         }
@@ -945,11 +1178,11 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     public void alterUserCommission(String user, UserCommission commission, Character alter) {
         ensureUserCommission(user);
         if (Objects.equals(alter, ALTER_ADD)) {
-            addUserCommission(user, commission);
+            scoped(user, () -> addUserCommission(user, commission));
         } else if (Objects.equals(alter, ALTER_UPDATE)) {
-            updateUserCommission(user, commission);
+            scoped(user, () -> updateUserCommission(user, commission));
         } else if (Objects.equals(alter, ALTER_DELETE)) {
-            deleteUserCommission(user, commission);
+            scoped(user, () -> deleteUserCommission(user, commission));
         } else {
             throw new UnsupportedAlterError("User commission|" + user + "|" + alter.toString(), null);
         }
@@ -1062,12 +1295,13 @@ public abstract class JdbcUserPersistence implements UserPersistence {
     @Override
     public void alterUserInfo(UserInfo user, Character alter) {
         ensureUserInfo();
+        var u = user.getUser();
         if (Objects.equals(alter, ALTER_ADD)) {
-            addUserInfo(user);
+            scoped(null, () -> addUserInfo(user));
         } else if (Objects.equals(alter, ALTER_UPDATE)) {
-            updateUserInfo(user);
+            scoped(null, () -> updateUserInfo(user));
         } else if (Objects.equals(alter, ALTER_DELETE)) {
-            deleteUserInfo(user);
+            scoped(null, () -> deleteUserInfo(user));
         } else {
             throw new UnsupportedAlterError("User info|" + user.getUser() + "|" + alter.toString(), null);
         }
@@ -1137,4 +1371,121 @@ public abstract class JdbcUserPersistence implements UserPersistence {
             throw new TableCreationError("User info.", error);
         }
     }
+
+    /**
+     * Get all trading days in ascending order.
+     */
+    Collection<String> getTradingDays() {
+        ensureTradingDay();
+        try (Statement stmt = connection().createStatement()) {
+            var rs = stmt.executeQuery("SELECT DISTINCT _TRADING_DAY FROM _TRADING_DAY_TABLE " +
+                                       "ORDER BY _TRADING_DAY");
+            var r = new LinkedList<String>();
+            while (rs.next()) {
+                r.add(rs.getString("_TRADING_DAY"));
+            }
+            return r;
+        } catch (SQLException error) {
+            throw new DataQueryError("Trading day.", error);
+        }
+    }
+
+    Collection<Trade> getTradesBefore(String user, String tradingDay) {
+        return selectBefore(ensureTrade(user), tradingDay, this::buildTrade, "Trade|" + user);
+    }
+
+    Collection<UserCash> getUserCashesBefore(String user, String tradingDay) {
+        return selectBefore(ensureUserCash(user), tradingDay, this::buildUserCash,
+                "User cash|" + user);
+    }
+
+    Collection<UserCommission> getUserCommissionsBefore(String user, String tradingDay) {
+        return selectBefore(ensureUserCommission(user), tradingDay, this::buildUserCommission,
+                "User commission|" + user);
+    }
+
+    private <T> Collection<T> selectBefore(String table, String tradingDay, RowBuilder<T> builder,
+            String message) {
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "SELECT * FROM " + table + " WHERE _TRADING_DAY < ?")) {
+            stmt.setString(1, tradingDay);
+            var rs = stmt.executeQuery();
+            var r = new LinkedList<T>();
+            while (rs.next()) {
+                r.add(builder.build(rs));
+            }
+            return r;
+        } catch (SQLException error) {
+            throw new DataQueryError(message, error);
+        }
+    }
+
+    /**
+     * Delete trades, cashes and commissions of the user before the specified
+     * trading day.
+     *
+     * @return number of rows deleted
+     */
+    int deleteBefore(String user, String tradingDay) {
+        var tables = new String[]{ensureTrade(user), ensureUserCash(user),
+                ensureUserCommission(user)};
+        var count = new int[1];
+        scoped(user, () -> {
+            for (var table : tables) {
+                try (PreparedStatement stmt = connection().prepareStatement(
+                        "DELETE FROM " + table + " WHERE _TRADING_DAY < ?")) {
+                    stmt.setString(1, tradingDay);
+                    count[0] += stmt.executeUpdate();
+                } catch (SQLException error) {
+                    throw new DataRemovalError(table + "|" + user, error);
+                }
+            }
+        });
+        return count[0];
+    }
+
+    private interface RowBuilder<T> {
+        T build(ResultSet rs) throws SQLException;
+    }
+
+    private static class Group {
+        // Units committed in the group.
+        private int members;
+        private boolean done;
+        private Throwable error;
+
+        synchronized void await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Result of the unit must be known before returning.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+    }
+
+    private static class Scope {
+        private final String user;
+        private final Group group;
+        private Savepoint savepoint;
+        private int depth = 1;
+        private boolean failed;
+
+        Scope(String user, Group group, Savepoint savepoint) {
+            this.user = user;
+            this.group = group;
+            this.savepoint = savepoint;
+        }
+    }
 }
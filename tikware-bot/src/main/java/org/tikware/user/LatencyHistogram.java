@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values. Each power of two is split into
+ * {@code 2^(SUB_BITS - 1)} linear buckets, so relative error is about 3%.
+ * Recording doesn't allocate and is safe for concurrent writers.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final long SUB_MASK = (1L << SUB_BITS) - 1;
+    private static final int SIZE = (64 - SUB_BITS + 2) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        var m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    private static int index(long value) {
+        var magnitude = 63 - Long.numberOfLeadingZeros(value | SUB_MASK);
+        var shift = magnitude - (SUB_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long value(int index) {
+        var shift = Math.max(0, index / HALF - 1);
+        return (long) (index - shift * HALF) << shift;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        var c = count.get();
+        return c == 0 ? 0.0D : (double) sum.get() / c;
+    }
+
+    /**
+     * Get the lower bound of the bucket holding the value at the percentile.
+     *
+     * @param percentile percentile in [0, 100]
+     * @return value at percentile
+     */
+    public long getValueAtPercentile(double percentile) {
+        var total = 0L;
+        for (int i = 0; i < SIZE; ++i) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        var rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0D));
+        var seen = 0L;
+        for (int i = 0; i < SIZE; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(value(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < SIZE; ++i) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
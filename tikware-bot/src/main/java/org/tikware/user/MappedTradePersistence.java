@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps trades in a {@link MappedTradeStore} and everything else in the
+ * wrapped persistence.
+ * <p>
+ * Trades added inside a unit of work are held until the unit commits in the
+ * wrapped persistence, then appended and forced to the storage device. Trades
+ * of a rolled back unit are never stored, so the store can back trade
+ * de-duplication after restart. Trades are visible to {@link #getTrades(String)}
+ * after commit.
+ */
+public class MappedTradePersistence extends DelegatingUserPersistence {
+    private final MappedTradeStore store;
+    private final ThreadLocal<Unit> units = new ThreadLocal<>();
+
+    public MappedTradePersistence(UserPersistence delegate, MappedTradeStore store) {
+        super(delegate);
+        this.store = store;
+    }
+
+    public MappedTradeStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void begin(String user) {
+        super.begin(user);
+        var u = units.get();
+        if (u != null) {
+            ++u.depth;
+        } else {
+            units.set(new Unit());
+        }
+    }
+
+    @Override
+    public void commit(String user) {
+        end(user, false);
+    }
+
+    @Override
+    public void rollback(String user) {
+        end(user, true);
+    }
+
+    private void end(String user, boolean rollback) {
+        var u = units.get();
+        if (u == null) {
+            // Let the wrapped persistence report the missing unit.
+            if (rollback) {
+                super.rollback(user);
+            } else {
+                super.commit(user);
+            }
+            return;
+        }
+        u.failed |= rollback;
+        var outer = --u.depth == 0;
+        if (outer) {
+            units.remove();
+        }
+        if (rollback) {
+            super.rollback(user);
+            return;
+        }
+        super.commit(user);
+        if (outer && !u.failed && !u.trades.isEmpty()) {
+            for (int i = 0; i < u.trades.size(); ++i) {
+                store.append(u.users.get(i), u.trades.get(i));
+            }
+            store.force();
+        }
+    }
+
+    @Override
+    public void addTrade(String user, Trade trade) {
+        if (trade.getTradingDay() == null || trade.getTradingDay().isBlank()) {
+            trade.setTradingDay(getTradingDay());
+        }
+        MappedTradeStore.check(user, trade);
+        var u = units.get();
+        if (u != null) {
+            u.users.add(user);
+            u.trades.add(trade);
+            return;
+        }
+        store.append(user, trade);
+        store.force();
+    }
+
+    @Override
+    public Collection<Trade> getTrades(String user) {
+        return store.getTrades(user);
+    }
+
+    private static class Unit {
+        private final List<String> users = new ArrayList<>();
+        private final List<Trade> trades = new ArrayList<>();
+        private int depth = 1;
+        private boolean failed;
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only trade store keeping fixed-layout binary records in memory-mapped
+ * segment files, one or more segments per trading day. Trades are indexed in
+ * memory by user and by order ID, and are read in place through
+ * {@link TradeRecord}.
+ */
+public class MappedTradeStore {
+    public static final int RECORD_SIZE = 320;
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private static final String SUFFIX = ".trade";
+    private static final int COMMITTED = 0x54524431;
+
+    // Record layout. Strings are a length byte followed by UTF-8 bytes, and a
+    // length of -1 stands for null.
+    private static final int FLAG = 0;
+    private static final int PRICE = 8;
+    private static final int QUANTITY = 16;
+    private static final int DIRECTION = 24;
+    private static final int OFFSET = 26;
+    private static final int ID = 28;
+    private static final int ID_WIDTH = 64;
+    private static final int USER = ID + 1 + ID_WIDTH;
+    private static final int USER_WIDTH = 48;
+    private static final int ORDER_ID = USER + 1 + USER_WIDTH;
+    private static final int ORDER_ID_WIDTH = 64;
+    private static final int SYMBOL = ORDER_ID + 1 + ORDER_ID_WIDTH;
+    private static final int SYMBOL_WIDTH = 32;
+    private static final int EXCHANGE = SYMBOL + 1 + SYMBOL_WIDTH;
+    private static final int EXCHANGE_WIDTH = 16;
+    private static final int TRADING_DAY = EXCHANGE + 1 + EXCHANGE_WIDTH;
+    private static final int TRADING_DAY_WIDTH = 8;
+    private static final int TIME = TRADING_DAY + 1 + TRADING_DAY_WIDTH;
+    private static final int TIME_WIDTH = 32;
+
+    private final Path dir;
+    private final int capacity;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Map<String, Segment> writing = new HashMap<>();
+    private final Map<String, Handles> users = new ConcurrentHashMap<>();
+    private final Map<String, Handles> orders = new ConcurrentHashMap<>();
+
+    public MappedTradeStore(String directory) {
+        this(directory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Open the store under the specified directory and rebuild index from the
+     * existing segments.
+     *
+     * @param directory directory of segment files
+     * @param capacity  number of records per segment
+     */
+    public MappedTradeStore(String directory, int capacity) {
+        this.dir = Paths.get(directory).toAbsolutePath();
+        this.capacity = capacity;
+        load();
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(dir);
+            List<Path> files;
+            try (var s = Files.list(dir)) {
+                files = s.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+                         .sorted().collect(Collectors.toList());
+            }
+            for (var f : files) {
+                var name = f.getFileName().toString();
+                var day = name.substring(0, name.indexOf('-'));
+                var records = (int) (Files.size(f) / RECORD_SIZE);
+                var segment = map(f, day, records);
+                // Count committed records and index them.
+                while (segment.count < records && segment.buffer.getInt(
+                        segment.count * RECORD_SIZE + FLAG) == COMMITTED) {
+                    index(segment, segment.count++);
+                }
+                writing.put(day, segment);
+            }
+        } catch (IOException error) {
+            throw new DataConnectionError("Trade store|" + dir, error);
+        }
+    }
+
+    private Segment map(Path file, String tradingDay, int records) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) records * RECORD_SIZE);
+            var segment = new Segment(segments.size(), tradingDay, buffer, records);
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+    private Segment segment(String tradingDay) throws IOException {
+        var s = writing.get(tradingDay);
+        if (s == null || s.count >= s.capacity) {
+            var sequence = s == null ? 0 : sequence(s) + 1;
+            var name = String.format("%s-%04d%s", tradingDay, sequence, SUFFIX);
+            s = map(dir.resolve(name), tradingDay, capacity);
+            writing.put(tradingDay, s);
+        }
+        return s;
+    }
+
+    private int sequence(Segment segment) {
+        var n = 0;
+        for (var s : segments) {
+            if (s.tradingDay.equals(segment.tradingDay)) {
+                ++n;
+            }
+        }
+        return n - 1;
+    }
+
+    private void index(Segment segment, int record) {
+        var handle = ((long) segment.index << 32) | record;
+        var base = record * RECORD_SIZE;
+        var u = getString(segment.buffer, base + USER);
+        var o = getString(segment.buffer, base + ORDER_ID);
+        if (u != null) {
+            users.computeIfAbsent(u, k -> new Handles()).add(handle);
+        }
+        if (o != null) {
+            orders.computeIfAbsent(o, k -> new Handles()).add(handle);
+        }
+    }
+
+    /**
+     * Append trade to the segment of its trading day. The record is stored under
+     * the specified user regardless of the user field in trade.
+     *
+     * @param user  owner of the trade
+     * @param trade trade
+     */
+    public synchronized void append(String user, Trade trade) {
+        check(user, trade);
+        var day = trade.getTradingDay();
+        try {
+            var segment = segment(day);
+            var buffer = segment.buffer;
+            var base = segment.count * RECORD_SIZE;
+            buffer.putDouble(base + PRICE, trade.getPrice());
+            buffer.putLong(base + QUANTITY, trade.getQuantity());
+            buffer.putChar(base + DIRECTION, toChar(trade.getDirection()));
+            buffer.putChar(base + OFFSET, toChar(trade.getOffset()));
+            putString(buffer, base + ID, trade.getId());
+            putString(buffer, base + USER, user);
+            putString(buffer, base + ORDER_ID, trade.getOrderId());
+            putString(buffer, base + SYMBOL, trade.getSymbol());
+            putString(buffer, base + EXCHANGE, trade.getExchange());
+            putString(buffer, base + TRADING_DAY, day);
+            putString(buffer, base + TIME, trade.getTime());
+            // Flag is written last so a torn record is never read back.
+            buffer.putInt(base + FLAG, COMMITTED);
+            segment.dirty = true;
+            index(segment, segment.count++);
+        } catch (IOException error) {
+            throw new DataInsertionError("Trade|" + user, error);
+        }
+    }
+
+    /**
+     * Check the trade can be stored without writing it.
+     *
+     * @param user  owner of the trade
+     * @param trade trade
+     * @throws DataInsertionError if the trading day, price or quantity is
+     *                            missing, or a field is wider than its slot
+     */
+    static void check(String user, Trade trade) {
+        var day = trade.getTradingDay();
+        if (day == null || day.length() != TRADING_DAY_WIDTH) {
+            throw new DataInsertionError("Trade|" + user + "|" + day, null);
+        }
+        if (trade.getPrice() == null || trade.getQuantity() == null) {
+            throw new DataInsertionError("Trade without price or quantity|" + user + "|"
+                                         + trade.getId(), null);
+        }
+        checkWidth(trade.getId(), ID_WIDTH);
+        checkWidth(user, USER_WIDTH);
+        checkWidth(trade.getOrderId(), ORDER_ID_WIDTH);
+        checkWidth(trade.getSymbol(), SYMBOL_WIDTH);
+        checkWidth(trade.getExchange(), EXCHANGE_WIDTH);
+        checkWidth(day, TRADING_DAY_WIDTH);
+        checkWidth(trade.getTime(), TIME_WIDTH);
+    }
+
+    private static void checkWidth(String s, int width) {
+        if (s != null && s.getBytes(StandardCharsets.UTF_8).length > width) {
+            throw new DataInsertionError("Trade field too long|" + s, null);
+        }
+    }
+
+    public Collection<Trade> getTrades(String user) {
+        var r = new ArrayList<Trade>();
+        forEachOfUser(user, record -> r.add(record.toTrade()));
+        return r;
+    }
+
+    public Collection<Trade> getTradesOfOrder(String orderId) {
+        var r = new ArrayList<Trade>();
+        forEachOfOrder(orderId, record -> r.add(record.toTrade()));
+        return r;
+    }
+
+    /**
+     * Visit trades of the specified user in appending order. The record passed
+     * to consumer is reused and only valid inside the call.
+     *
+     * @param user     user
+     * @param consumer record visitor
+     */
+    public void forEachOfUser(String user, Consumer<TradeRecord> consumer) {
+        visit(users.get(user), consumer);
+    }
+
+    public void forEachOfOrder(String orderId, Consumer<TradeRecord> consumer) {
+        visit(orders.get(orderId), consumer);
+    }
+
+    private void visit(Handles handles, Consumer<TradeRecord> consumer) {
+        if (handles == null) {
+            return;
+        }
+        var record = new TradeRecord();
+        for (var h : handles.snapshot()) {
+            record.buffer = segments.get((int) (h >>> 32)).buffer;
+            record.base = (int) h * RECORD_SIZE;
+            consumer.accept(record);
+        }
+    }
+
+    /**
+     * Flush segments appended since last force to storage device.
+     */
+    public synchronized void force() {
+        for (var segment : segments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    private static char toChar(Character c) {
+        return c == null ? 0 : c;
+    }
+
+    private static Character fromChar(char c) {
+        return c == 0 ? null : c;
+    }
+
+    private static void putString(ByteBuffer buffer, int offset, String s) {
+        if (s == null) {
+            buffer.put(offset, (byte) -1);
+            return;
+        }
+        // Width is checked before writing.
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.put(offset, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; ++i) {
+            buffer.put(offset + 1 + i, bytes[i]);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer, int offset) {
+        int length = buffer.get(offset);
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = buffer.get(offset + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * View of a trade record inside the mapped segment. Numeric fields are read
+     * directly from the mapping.
+     */
+    public static class TradeRecord {
+        private ByteBuffer buffer;
+        private int base;
+
+        public String getId() {
+            return getString(buffer, base + ID);
+        }
+
+        public String getUser() {
+            return getString(buffer, base + USER);
+        }
+
+        public String getOrderId() {
+            return getString(buffer, base + ORDER_ID);
+        }
+
+        public String getSymbol() {
+            return getString(buffer, base + SYMBOL);
+        }
+
+        public String getExchange() {
+            return getString(buffer, base + EXCHANGE);
+        }
+
+        public double getPrice() {
+            return buffer.getDouble(base + PRICE);
+        }
+
+        public long getQuantity() {
+            return buffer.getLong(base + QUANTITY);
+        }
+
+        public Character getDirection() {
+            return fromChar(buffer.getChar(base + DIRECTION));
+        }
+
+        public Character getOffset() {
+            return fromChar(buffer.getChar(base + OFFSET));
+        }
+
+        public String getTradingDay() {
+            return getString(buffer, base + TRADING_DAY);
+        }
+
+        public String getTime() {
+            return getString(buffer, base + TIME);
+        }
+
+        public Trade toTrade() {
+            var t = new Trade();
+            t.setId(getId());
+            t.setUser(getUser());
+            t.setOrderId(getOrderId());
+            t.setSymbol(getSymbol());
+            t.setExchange(getExchange());
+            t.setPrice(getPrice());
+            t.setQuantity(getQuantity());
+            t.setDirection(getDirection());
+            t.setOffset(getOffset());
+            t.setTradingDay(getTradingDay());
+            t.setTime(getTime());
+            return t;
+        }
+    }
+
+    private static class Segment {
+        private final int index;
+        private final String tradingDay;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int count;
+        private boolean dirty;
+
+        Segment(int index, String tradingDay, MappedByteBuffer buffer, int capacity) {
+            this.index = index;
+            this.tradingDay = tradingDay;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    private static class Handles {
+        private long[] values = new long[8];
+        private int size;
+
+        synchronized void add(long handle) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = handle;
+        }
+
+        synchronized long[] snapshot() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+import org.tikware.spi.Clock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * {@link UserPersistence} kept in hash maps, for backtests and simulations
+ * that don't need data to survive the process.
+ * <p>
+ * Objects are stored as passed and returned without copy. Units of work are
+ * accepted but not isolated, so rollback doesn't revert changes.
+ */
+public class MemoryUserPersistence implements UserPersistence {
+    private final Clock clock;
+    private final List<String> tradingDays = new ArrayList<>();
+    private final Map<String, Double> prices = new ConcurrentHashMap<>();
+    private final Map<String, Long> multiples = new ConcurrentHashMap<>();
+    private final Map<String, Ratio> margins = new ConcurrentHashMap<>();
+    private final Map<String, Ratio> commissions = new ConcurrentHashMap<>();
+    private final Map<String, UserData> users = new ConcurrentHashMap<>();
+    private final Map<String, UserInfo> infos = new ConcurrentHashMap<>();
+
+    public MemoryUserPersistence() {
+        this(new CoarseClock());
+    }
+
+    public MemoryUserPersistence(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public void begin(String user) {
+    }
+
+    @Override
+    public void commit(String user) {
+    }
+
+    @Override
+    public void rollback(String user) {
+    }
+
+    @Override
+    public synchronized String getTradingDay() {
+        return tradingDays.isEmpty() ? "" : tradingDays.get(tradingDays.size() - 1);
+    }
+
+    @Override
+    public String getDateTime() {
+        return clock.getDateTime();
+    }
+
+    @Override
+    public Double getPrice(String symbol) {
+        return prices.getOrDefault(symbol, Double.NaN);
+    }
+
+    @Override
+    public Long getMultiple(String symbol) {
+        return multiples.get(symbol);
+    }
+
+    @Override
+    public Double getMargin(String symbol, Double price, Character direction, Character offset) {
+        return fee(margins.get(key(symbol, direction, offset)), symbol, price);
+    }
+
+    @Override
+    public Double getCommission(String symbol, Double price, Character direction,
+            Character offset) {
+        return fee(commissions.get(key(symbol, direction, offset)), symbol, price);
+    }
+
+    private Double fee(Ratio r, String symbol, Double price) {
+        if (r == null) {
+            return Double.NaN;
+        }
+        if (Objects.equals(r.type, RATIO_BY_AMOUNT)) {
+            var m = getMultiple(symbol);
+            if (m == null) {
+                throw new MultipleNotFoundError(symbol);
+            }
+            return price * m * r.ratio;
+        } else if (Objects.equals(r.type, RATIO_BY_VOLUME)) {
+            return r.ratio;
+        } else {
+            throw new IllegalRatioTypeError(r.type.toString());
+        }
+    }
+
+    @Override
+    public synchronized void addTradingDay(String tradingDay) {
+        tradingDays.add(tradingDay);
+    }
+
+    @Override
+    public void addOrUpdatePrice(String symbol, Double price) {
+        prices.put(symbol, price);
+    }
+
+    @Override
+    public void addOrUpdateMultiple(String symbol, Long multiple) {
+        multiples.put(symbol, multiple);
+    }
+
+    @Override
+    public void addOrUpdateMarginRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        margins.put(key(symbol, direction, offset), new Ratio(ratio, type));
+    }
+
+    @Override
+    public void addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        commissions.put(key(symbol, direction, offset), new Ratio(ratio, type));
+    }
+
+    private static String key(String symbol, Character direction, Character offset) {
+        return symbol + "|" + direction + "|" + offset;
+    }
+
+    @Override
+    public void addTrade(String user, Trade trade) {
+        data(user).trades.add(trade);
+    }
+
+    @Override
+    public Collection<Trade> getTrades(String user) {
+        return new ArrayList<>(data(user).trades);
+    }
+
+    @Override
+    public UserBalance getUserBalance(String user) {
+        return data(user).balance;
+    }
+
+    @Override
+    public void alterUserBalance(String user, UserBalance balance, Character alter) {
+        var d = data(user);
+        synchronized (d) {
+            if (Objects.equals(alter, ALTER_ADD) || Objects.equals(alter, ALTER_UPDATE)) {
+                d.balance = balance;
+            } else if (Objects.equals(alter, ALTER_DELETE)) {
+                if (d.balance == null) {
+                    throw new DataRemovalError("User balance|" + user, null);
+                }
+                d.balance = null;
+            } else {
+                throw new UnsupportedAlterError("User balance|" + user + "|" + alter, null);
+            }
+        }
+    }
+
+    @Override
+    public Collection<UserPosition> getUserPositions(String user) {
+        return new ArrayList<>(data(user).positions.values());
+    }
+
+    @Override
+    public void alterUserPosition(String user, UserPosition position, Character alter) {
+        alter(data(user).positions, position.getId(), position, alter, "User position|" + user);
+    }
+
+    @Override
+    public Collection<UserCash> getUserCashes(String user) {
+        return new ArrayList<>(data(user).cashes.values());
+    }
+
+    @Override
+    public void alterUserCash(String user, UserCash cash, Character alter) {
+        alter(data(user).cashes, cash.getId(), cash, alter, "User cash|" + user);
+    }
+
+    @Override
+    public Collection<UserCommission> getUserCommissions(String user) {
+        return new ArrayList<>(data(user).commissions.values());
+    }
+
+    @Override
+    public void alterUserCommission(String user, UserCommission commission, Character alter) {
+        alter(data(user).commissions, commission.getId(), commission, alter,
+                "User commission|" + user);
+    }
+
+    @Override
+    public Collection<UserInfo> getUserInfos() {
+        return new HashSet<>(infos.values());
+    }
+
+    @Override
+    public void alterUserInfo(UserInfo user, Character alter) {
+        alter(infos, user.getUser(), user, alter, "User info|" + user.getUser());
+    }
+
+    private <T> void alter(Map<String, T> map, String id, T value, Character alter,
+            String message) {
+        if (Objects.equals(alter, ALTER_ADD)) {
+            if (map.putIfAbsent(id, value) != null) {
+                throw new DataInsertionError(message, null);
+            }
+        } else if (Objects.equals(alter, ALTER_UPDATE)) {
+            if (map.replace(id, value) == null) {
+                throw new DataUpdateError(message, null);
+            }
+        } else if (Objects.equals(alter, ALTER_DELETE)) {
+            if (map.remove(id) == null) {
+                throw new DataRemovalError(message, null);
+            }
+        } else {
+            throw new UnsupportedAlterError(message + "|" + alter, null);
+        }
+    }
+
+    private UserData data(String user) {
+        return users.computeIfAbsent(user, k -> new UserData());
+    }
+
+    private static class Ratio {
+        private final double ratio;
+        private final Character type;
+
+        Ratio(double ratio, Character type) {
+            this.ratio = ratio;
+            this.type = type;
+        }
+    }
+
+    private static class UserData {
+        private final Collection<Trade> trades = new ConcurrentLinkedQueue<>();
+        private final Map<String, UserPosition> positions = new ConcurrentHashMap<>();
+        private final Map<String, UserCash> cashes = new ConcurrentHashMap<>();
+        private final Map<String, UserCommission> commissions = new ConcurrentHashMap<>();
+        private volatile UserBalance balance;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call count, error count and latency of a group of persistence calls.
+ */
+public class PersistenceStatistics implements PersistenceStatisticsMBean {
+    private final AtomicLong errors = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    void record(long nanos, boolean error) {
+        latency.record(nanos);
+        if (error) {
+            errors.incrementAndGet();
+        }
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / 1000.0D;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latency.getValueAtPercentile(50) / 1000.0D;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latency.getValueAtPercentile(99) / 1000.0D;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latency.getMax() / 1000.0D;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, errors=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, " +
+                             "max=%.1fus", getCount(), getErrors(), getMeanMicros(),
+                getP50Micros(), getP99Micros(), getMaxMicros());
+    }
+}
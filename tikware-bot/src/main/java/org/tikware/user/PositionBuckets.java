@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Closable lots of a user, kept per symbol and direction in a bucket of lots
+ * opened today and a bucket of lots opened on prior days. Lots opened today
+ * move to prior days when trading day changes.
+ */
+class PositionBuckets {
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    private final TradingCalendar calendar;
+
+    PositionBuckets(TradingCalendar calendar) {
+        this.calendar = calendar;
+    }
+
+    /**
+     * Add lot that becomes closable.
+     */
+    synchronized void add(UserPosition position) {
+        bucket(position.getSymbol(), position.getDirection()).add(position, false);
+    }
+
+    /**
+     * Add lot back to the head of its bucket after its close is undone.
+     */
+    synchronized void addFirst(UserPosition position) {
+        bucket(position.getSymbol(), position.getDirection()).add(position, true);
+    }
+
+    /**
+     * Remove lot that is no longer closable.
+     */
+    synchronized void remove(UserPosition position) {
+        var b = buckets.get(key(position.getSymbol(), position.getDirection()));
+        if (b != null && !b.today.remove(position)) {
+            b.yd.remove(position);
+        }
+    }
+
+    /**
+     * Remove the oldest lot of prior days, or of today if there is none.
+     *
+     * @return lot, or {@code null} if no closable lot
+     */
+    synchronized UserPosition poll(String symbol, Character direction) {
+        var b = buckets.get(key(symbol, direction));
+        if (b == null) {
+            return null;
+        }
+        b.rollover(calendar.getTradingDay());
+        var p = b.yd.pollFirst();
+        return p != null ? p : b.today.pollFirst();
+    }
+
+    private Bucket bucket(String symbol, Character direction) {
+        return buckets.computeIfAbsent(key(symbol, direction), k -> new Bucket());
+    }
+
+    private static String key(String symbol, Character direction) {
+        return symbol + "|" + direction;
+    }
+
+    private static class Bucket {
+        private final Deque<UserPosition> today = new ArrayDeque<>();
+        private final Deque<UserPosition> yd = new ArrayDeque<>();
+        private String day;
+
+        void add(UserPosition position, boolean first) {
+            var d = position.getOpenTradingDay();
+            rollover(d);
+            var q = d.equals(day) ? today : yd;
+            if (first) {
+                q.addFirst(position);
+            } else {
+                q.addLast(position);
+            }
+        }
+
+        void rollover(String tradingDay) {
+            if (day != null && tradingDay.compareTo(day) <= 0) {
+                return;
+            }
+            // Lots opened before the new day become prior-day lots.
+            yd.addAll(today);
+            today.clear();
+            day = tradingDay;
+        }
+    }
+}
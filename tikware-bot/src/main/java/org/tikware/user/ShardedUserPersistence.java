@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Spreads users over several persistences by hash of user, so writers of
+ * different users don't contend on one store. Global tables, including
+ * trading day, price, multiple, margin, commission and user info, are kept in
+ * the first shard.
+ * <p>
+ * A unit of work spans the shard of its user only, so a rollback never undoes
+ * units of other users, in the same shard or not. Global writes made inside
+ * it commit on the first shard by themselves, unless the user is kept in the
+ * first shard too and they join the unit.
+ */
+public class ShardedUserPersistence implements UserPersistence {
+    private final List<UserPersistence> shards;
+
+    public ShardedUserPersistence(List<? extends UserPersistence> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one shard.");
+        }
+        this.shards = new ArrayList<>(shards);
+    }
+
+    public List<UserPersistence> getShards() {
+        return new ArrayList<>(shards);
+    }
+
+    /**
+     * Get the shard keeping tables of the specified user. Users are hashed by
+     * {@link JdbcUserPersistence#userKey(String)}, so names sharing tables
+     * share a shard.
+     *
+     * @param user user
+     * @return shard of user
+     */
+    public UserPersistence getShard(String user) {
+        var key = JdbcUserPersistence.userKey(user);
+        return shards.get(Math.floorMod(key.hashCode(), shards.size()));
+    }
+
+    /**
+     * Get the shard keeping global tables.
+     *
+     * @return global shard
+     */
+    public UserPersistence getGlobalShard() {
+        return shards.get(0);
+    }
+
+    @Override
+    public void begin(String user) {
+        getShard(user).begin(user);
+    }
+
+    @Override
+    public void commit(String user) {
+        getShard(user).commit(user);
+    }
+
+    @Override
+    public void rollback(String user) {
+        getShard(user).rollback(user);
+    }
+
+    @Override
+    public String getTradingDay() {
+        return getGlobalShard().getTradingDay();
+    }
+
+    @Override
+    public String getDateTime() {
+        return getGlobalShard().getDateTime();
+    }
+
+    @Override
+    public Double getPrice(String symbol) {
+        return getGlobalShard().getPrice(symbol);
+    }
+
+    @Override
+    public Long getMultiple(String symbol) {
+        return getGlobalShard().getMultiple(symbol);
+    }
+
+    @Override
+    public Double getMargin(String symbol, Double price, Character direction, Character offset) {
+        return getGlobalShard().getMargin(symbol, price, direction, offset);
+    }
+
+    @Override
+    public Double getCommission(String symbol, Double price, Character direction,
+            Character offset) {
+        return getGlobalShard().getCommission(symbol, price, direction, offset);
+    }
+
+    @Override
+    public void addTradingDay(String tradingDay) {
+        getGlobalShard().addTradingDay(tradingDay);
+    }
+
+    @Override
+    public void addOrUpdatePrice(String symbol, Double price) {
+        getGlobalShard().addOrUpdatePrice(symbol, price);
+    }
+
+    @Override
+    public void addOrUpdateMultiple(String symbol, Long multiple) {
+        getGlobalShard().addOrUpdateMultiple(symbol, multiple);
+    }
+
+    @Override
+    public void addOrUpdateMarginRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        getGlobalShard().addOrUpdateMarginRatio(symbol, ratio, direction, offset, type);
+    }
+
+    @Override
+    public void addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        getGlobalShard().addOrUpdateCommissionRatio(symbol, ratio, direction, offset, type);
+    }
+
+    @Override
+    public void addTrade(String user, Trade trade) {
+        getShard(user).addTrade(user, trade);
+    }
+
+    @Override
+    public Collection<Trade> getTrades(String user) {
+        return getShard(user).getTrades(user);
+    }
+
+    @Override
+    public UserBalance getUserBalance(String user) {
+        return getShard(user).getUserBalance(user);
+    }
+
+    @Override
+    public void alterUserBalance(String user, UserBalance balance, Character alter) {
+        getShard(user).alterUserBalance(user, balance, alter);
+    }
+
+    @Override
+    public Collection<UserPosition> getUserPositions(String user) {
+        return getShard(user).getUserPositions(user);
+    }
+
+    @Override
+    public void alterUserPosition(String user, UserPosition position, Character alter) {
+        getShard(user).alterUserPosition(user, position, alter);
+    }
+
+    @Override
+    public Collection<UserCash> getUserCashes(String user) {
+        return getShard(user).getUserCashes(user);
+    }
+
+    @Override
+    public void alterUserCash(String user, UserCash cash, Character alter) {
+        getShard(user).alterUserCash(user, cash, alter);
+    }
+
+    @Override
+    public Collection<UserCommission> getUserCommissions(String user) {
+        return getShard(user).getUserCommissions(user);
+    }
+
+    @Override
+    public void alterUserCommission(String user, UserCommission commission, Character alter) {
+        getShard(user).alterUserCommission(user, commission, alter);
+    }
+
+    @Override
+    public Collection<UserInfo> getUserInfos() {
+        return getGlobalShard().getUserInfos();
+    }
+
+    @Override
+    public void alterUserInfo(UserInfo user, Character alter) {
+        getGlobalShard().alterUserInfo(user, alter);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.spi.Clock;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Clock driven by replayed data. Subscribe it for ticks and it follows tick
+ * time. Time never goes backward.
+ */
+public class SimulatedClock implements Clock, TickListener {
+    private volatile ClockStamp stamp;
+
+    public SimulatedClock(LocalDateTime start) {
+        this.stamp = stamp(start);
+    }
+
+    public synchronized void setTime(LocalDateTime time) {
+        if (time == null || !time.isAfter(stamp.time)) {
+            return;
+        }
+        stamp = stamp(time);
+    }
+
+    @Override
+    public void onTick(Tick tick, boolean realtime) {
+        setTime(tick.getTime());
+    }
+
+    @Override
+    public LocalDateTime now() {
+        return stamp.time;
+    }
+
+    @Override
+    public String getDateTime() {
+        return stamp.text;
+    }
+
+    private ClockStamp stamp(LocalDateTime time) {
+        return new ClockStamp(time.toInstant(ZoneOffset.UTC).toEpochMilli(), time);
+    }
+}
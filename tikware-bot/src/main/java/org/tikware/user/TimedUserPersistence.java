@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Records call count, error count and latency of every {@link UserPersistence}
+ * method, broken down by method, table and user. Statistics can be exported
+ * through JMX and summarized to a log periodically.
+ */
+public class TimedUserPersistence extends DelegatingUserPersistence {
+    private static final String DOMAIN = "org.tikware";
+
+    private final PersistenceStatistics[] calls = newCalls();
+    private final Map<String, PersistenceStatistics> tables = new LinkedHashMap<>();
+    private final Map<String, UserStatistics> users = new ConcurrentHashMap<>();
+    private final Set<ObjectName> names = ConcurrentHashMap.newKeySet();
+    private volatile String name;
+    private ScheduledExecutorService timer;
+
+    public TimedUserPersistence(UserPersistence delegate) {
+        super(delegate);
+        for (var c : Call.values()) {
+            if (c.table != null) {
+                tables.putIfAbsent(c.table, new PersistenceStatistics());
+            }
+        }
+    }
+
+    private static PersistenceStatistics[] newCalls() {
+        var r = new PersistenceStatistics[Call.values().length];
+        for (int i = 0; i < r.length; ++i) {
+            r[i] = new PersistenceStatistics();
+        }
+        return r;
+    }
+
+    /**
+     * Get statistics of all methods that have been called.
+     *
+     * @return statistics keyed by method name
+     */
+    public Map<String, PersistenceStatistics> getMethodStatistics() {
+        var r = new LinkedHashMap<String, PersistenceStatistics>();
+        for (var c : Call.values()) {
+            if (calls[c.ordinal()].getCount() > 0) {
+                r.put(c.method, calls[c.ordinal()]);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Get statistics of the tables that have been accessed. User tables are
+     * keyed by their name without user prefix.
+     *
+     * @return statistics keyed by table name
+     */
+    public Map<String, PersistenceStatistics> getTableStatistics() {
+        var r = new LinkedHashMap<String, PersistenceStatistics>();
+        tables.forEach((table, s) -> {
+            if (s.getCount() > 0) {
+                r.put(table, s);
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Get statistics of the methods called for the specified user.
+     *
+     * @param user user
+     * @return statistics keyed by method name, or empty map if the user has no
+     * call yet
+     */
+    public Map<String, PersistenceStatistics> getUserStatistics(String user) {
+        var r = new LinkedHashMap<String, PersistenceStatistics>();
+        var u = users.get(user);
+        if (u != null) {
+            for (var c : Call.values()) {
+                if (u.calls[c.ordinal()].getCount() > 0) {
+                    r.put(c.method, u.calls[c.ordinal()]);
+                }
+            }
+        }
+        return r;
+    }
+
+    public Set<String> getUsers() {
+        return new TreeSet<>(users.keySet());
+    }
+
+    /**
+     * Register an MBean for each method, table and user under
+     * {@code org.tikware:type=UserPersistence,name=<name>}. Users seen later
+     * are registered on their first call.
+     *
+     * @param name name distinguishing this instance
+     */
+    public synchronized void register(String name) {
+        if (this.name != null) {
+            throw new IllegalStateException("Already registered as " + this.name + ".");
+        }
+        this.name = name;
+        for (var c : Call.values()) {
+            export("method", c.method, calls[c.ordinal()]);
+        }
+        tables.forEach((table, s) -> export("table", table, s));
+        users.forEach((user, u) -> {
+            u.exported = true;
+            export("user", user, u.total);
+        });
+    }
+
+    public synchronized void unregister() {
+        var server = ManagementFactory.getPlatformMBeanServer();
+        for (var n : names) {
+            try {
+                server.unregisterMBean(n);
+            } catch (JMException ignored) {
+            }
+        }
+        names.clear();
+        users.values().forEach(u -> u.exported = false);
+        name = null;
+    }
+
+    private void export(String key, String value, PersistenceStatistics s) {
+        var n = name;
+        if (n == null) {
+            return;
+        }
+        try {
+            var objectName = new ObjectName(DOMAIN + ":type=UserPersistence,name=" +
+                                            ObjectName.quote(n) + "," + key + "=" +
+                                            ObjectName.quote(value));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(s, objectName);
+            names.add(objectName);
+        } catch (JMException error) {
+            throw new IllegalStateException(error.getMessage(), error);
+        }
+    }
+
+    /**
+     * Write a summary of the statistics to the log at fixed rate.
+     *
+     * @param log    receiver of summary text
+     * @param period period between summaries
+     */
+    public synchronized void startSummary(Consumer<String> log, Duration period) {
+        stopSummary();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "persistence-summary");
+            t.setDaemon(true);
+            return t;
+        });
+        var millis = period.toMillis();
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                log.accept(getSummary());
+            } catch (Throwable ignored) {
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSummary() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    public String getSummary() {
+        var b = new StringBuilder("Persistence statistics:");
+        getMethodStatistics().forEach((method, s) -> line(b, "method", method, s));
+        getTableStatistics().forEach((table, s) -> line(b, "table", table, s));
+        for (var user : getUsers()) {
+            line(b, "user", user, users.get(user).total);
+        }
+        return b.toString();
+    }
+
+    private static void line(StringBuilder b, String key, String value, PersistenceStatistics s) {
+        b.append(System.lineSeparator()).append(key).append('=').append(value).append(", ")
+         .append(s);
+    }
+
+    private void record(Call call, String user, long start, boolean ok) {
+        var nanos = System.nanoTime() - start;
+        calls[call.ordinal()].record(nanos, !ok);
+        if (call.table != null) {
+            tables.get(call.table).record(nanos, !ok);
+        }
+        if (user != null) {
+            var u = users.get(user);
+            if (u == null) {
+                u = users.computeIfAbsent(user, k -> new UserStatistics());
+                synchronized (this) {
+                    if (!u.exported) {
+                        u.exported = true;
+                        try {
+                            export("user", user, u.total);
+                        } catch (IllegalStateException ignored) {
+                            // Monitoring must not fail the call.
+                        }
+                    }
+                }
+            }
+            u.calls[call.ordinal()].record(nanos, !ok);
+            u.total.record(nanos, !ok);
+        }
+    }
+
+    private <T> T timed(Call call, String user, Supplier<T> operation) {
+        var s = System.nanoTime();
+        var ok = false;
+        try {
+            var r = operation.get();
+            ok = true;
+            return r;
+        } finally {
+            record(call, user, s, ok);
+        }
+    }
+
+    private void timed(Call call, String user, Runnable operation) {
+        timed(call, user, () -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    @Override
+    public void begin(String user) {
+        timed(Call.BEGIN, user, () -> super.begin(user));
+    }
+
+    @Override
+    public void commit(String user) {
+        timed(Call.COMMIT, user, () -> super.commit(user));
+    }
+
+    @Override
+    public void rollback(String user) {
+        timed(Call.ROLLBACK, user, () -> super.rollback(user));
+    }
+
+    @Override
+    public String getTradingDay() {
+        return timed(Call.GET_TRADING_DAY, null, () -> super.getTradingDay());
+    }
+
+    @Override
+    public String getDateTime() {
+        return timed(Call.GET_DATE_TIME, null, () -> super.getDateTime());
+    }
+
+    @Override
+    public Double getPrice(String symbol) {
+        return timed(Call.GET_PRICE, null, () -> super.getPrice(symbol));
+    }
+
+    @Override
+    public Long getMultiple(String symbol) {
+        return timed(Call.GET_MULTIPLE, null, () -> super.getMultiple(symbol));
+    }
+
+    @Override
+    public Double getMargin(String symbol, Double price, Character direction, Character offset) {
+        return timed(Call.GET_MARGIN, null,
+                () -> super.getMargin(symbol, price, direction, offset));
+    }
+
+    @Override
+    public Double getCommission(String symbol, Double price, Character direction,
+            Character offset) {
+        return timed(Call.GET_COMMISSION, null,
+                () -> super.getCommission(symbol, price, direction, offset));
+    }
+
+    @Override
+    public void addTradingDay(String tradingDay) {
+        timed(Call.ADD_TRADING_DAY, null, () -> super.addTradingDay(tradingDay));
+    }
+
+    @Override
+    public void addOrUpdatePrice(String symbol, Double price) {
+        timed(Call.ADD_OR_UPDATE_PRICE, null, () -> super.addOrUpdatePrice(symbol, price));
+    }
+
+    @Override
+    public void addOrUpdateMultiple(String symbol, Long multiple) {
+        timed(Call.ADD_OR_UPDATE_MULTIPLE, null, () -> super.addOrUpdateMultiple(symbol, multiple));
+    }
+
+    @Override
+    public void addOrUpdateMarginRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        timed(Call.ADD_OR_UPDATE_MARGIN_RATIO, null,
+                () -> super.addOrUpdateMarginRatio(symbol, ratio, direction, offset, type));
+    }
+
+    @Override
+    public void addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        timed(Call.ADD_OR_UPDATE_COMMISSION_RATIO, null,
+                () -> super.addOrUpdateCommissionRatio(symbol, ratio, direction, offset, type));
+    }
+
+    @Override
+    public void addTrade(String user, Trade trade) {
+        timed(Call.ADD_TRADE, user, () -> super.addTrade(user, trade));
+    }
+
+    @Override
+    public Collection<Trade> getTrades(String user) {
+        return timed(Call.GET_TRADES, user, () -> super.getTrades(user));
+    }
+
+    @Override
+    public UserBalance getUserBalance(String user) {
+        return timed(Call.GET_USER_BALANCE, user, () -> super.getUserBalance(user));
+    }
+
+    @Override
+    public void alterUserBalance(String user, UserBalance balance, Character alter) {
+        timed(Call.ALTER_USER_BALANCE, user, () -> super.alterUserBalance(user, balance, alter));
+    }
+
+    @Override
+    public Collection<UserPosition> getUserPositions(String user) {
+        return timed(Call.GET_USER_POSITIONS, user, () -> super.getUserPositions(user));
+    }
+
+    @Override
+    public void alterUserPosition(String user, UserPosition position, Character alter) {
+        timed(Call.ALTER_USER_POSITION, user, () -> super.alterUserPosition(user, position, alter));
+    }
+
+    @Override
+    public Collection<UserCash> getUserCashes(String user) {
+        return timed(Call.GET_USER_CASHES, user, () -> super.getUserCashes(user));
+    }
+
+    @Override
+    public void alterUserCash(String user, UserCash cash, Character alter) {
+        timed(Call.ALTER_USER_CASH, user, () -> super.alterUserCash(user, cash, alter));
+    }
+
+    @Override
+    public Collection<UserCommission> getUserCommissions(String user) {
+        return timed(Call.GET_USER_COMMISSIONS, user, () -> super.getUserCommissions(user));
+    }
+
+    @Override
+    public void alterUserCommission(String user, UserCommission commission, Character alter) {
+        timed(Call.ALTER_USER_COMMISSION, user,
+                () -> super.alterUserCommission(user, commission, alter));
+    }
+
+    @Override
+    public Collection<UserInfo> getUserInfos() {
+        return timed(Call.GET_USER_INFOS, null, () -> super.getUserInfos());
+    }
+
+    @Override
+    public void alterUserInfo(UserInfo user, Character alter) {
+        timed(Call.ALTER_USER_INFO, null, () -> super.alterUserInfo(user, alter));
+    }
+
+    private enum Call {
+        BEGIN("begin", null),
+        COMMIT("commit", null),
+        ROLLBACK("rollback", null),
+        GET_TRADING_DAY("getTradingDay", "_TRADING_DAY_TABLE"),
+        GET_DATE_TIME("getDateTime", null),
+        GET_PRICE("getPrice", "_PRICE_TABLE"),
+        GET_MULTIPLE("getMultiple", "_MULTIPLE_TABLE"),
+        GET_MARGIN("getMargin", "_MARGIN_TABLE"),
+        GET_COMMISSION("getCommission", "_COMMISSION_TABLE"),
+        ADD_TRADING_DAY("addTradingDay", "_TRADING_DAY_TABLE"),
+        ADD_OR_UPDATE_PRICE("addOrUpdatePrice", "_PRICE_TABLE"),
+        ADD_OR_UPDATE_MULTIPLE("addOrUpdateMultiple", "_MULTIPLE_TABLE"),
+        ADD_OR_UPDATE_MARGIN_RATIO("addOrUpdateMarginRatio", "_MARGIN_TABLE"),
+        ADD_OR_UPDATE_COMMISSION_RATIO("addOrUpdateCommissionRatio", "_COMMISSION_TABLE"),
+        ADD_TRADE("addTrade", "_TRADE_TABLE"),
+        GET_TRADES("getTrades", "_TRADE_TABLE"),
+        GET_USER_BALANCE("getUserBalance", "_USER_BALANCE_TABLE"),
+        ALTER_USER_BALANCE("alterUserBalance", "_USER_BALANCE_TABLE"),
+        GET_USER_POSITIONS("getUserPositions", "_USER_POSITION_TABLE"),
+        ALTER_USER_POSITION("alterUserPosition", "_USER_POSITION_TABLE"),
+        GET_USER_CASHES("getUserCashes", "_USER_CASH_TABLE"),
+        ALTER_USER_CASH("alterUserCash", "_USER_CASH_TABLE"),
+        GET_USER_COMMISSIONS("getUserCommissions", "_USER_COMMISSION_TABLE"),
+        ALTER_USER_COMMISSION("alterUserCommission", "_USER_COMMISSION_TABLE"),
+        GET_USER_INFOS("getUserInfos", "_USER_INFO_TABLE"),
+        ALTER_USER_INFO("alterUserInfo", "_USER_INFO_TABLE");
+
+        private final String method;
+        private final String table;
+
+        Call(String method, String table) {
+            this.method = method;
+            this.table = table;
+        }
+    }
+
+    private static class UserStatistics {
+        private final PersistenceStatistics[] calls = newCalls();
+        private final PersistenceStatistics total = new PersistenceStatistics();
+        private boolean exported;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * Remembers trade ids of recent trading days to recognize trades replayed by
+ * gateway. Ids are kept as 64-bit hashes in an open-addressing set behind a
+ * Bloom filter, so a new id is mostly rejected by the filter without probing
+ * the set. Checks never query persistence.
+ * <p>
+ * Trades older than the kept trading days are taken as seen, since their ids
+ * are no longer known. Trades without trading day are kept apart and never
+ * dropped.
+ */
+public class TradeFilter {
+    private static final int DAYS = 2;
+
+    private final TreeMap<String, Day> days = new TreeMap<>();
+    private final Day undated;
+    private final int expected;
+    private final double fpp;
+    private long duplicates;
+    private long falsePositives;
+
+    /**
+     * Create filter.
+     *
+     * @param expected expected trades of a day
+     * @param fpp      false positive probability of the Bloom filter
+     */
+    public TradeFilter(int expected, double fpp) {
+        this.expected = Math.max(expected, 64);
+        this.fpp = fpp;
+        this.undated = new Day(this.expected, fpp);
+    }
+
+    /**
+     * Add id of the trade.
+     *
+     * @param trade trade
+     * @return {@code true} if the trade is new, {@code false} if it is seen
+     * before or older than the kept days. Trade without id is always new.
+     */
+    public synchronized boolean add(Trade trade) {
+        if (trade.getId() == null) {
+            return true;
+        }
+        var d = day(trade.getTradingDay());
+        if (d == null) {
+            ++duplicates;
+            return false;
+        }
+        var h = hash(trade.getId());
+        if (d.bloom.mightContain(h)) {
+            if (d.ids.contains(h)) {
+                ++duplicates;
+                return false;
+            }
+            if (d.removed.contains(h)) {
+                // Forgotten trade, its bits are still set.
+                d.removed.remove(h);
+            } else {
+                ++falsePositives;
+            }
+        }
+        d.bloom.put(h);
+        d.ids.add(h);
+        return true;
+    }
+
+    /**
+     * Forget the trade so it is accepted again, used when it is not applied.
+     *
+     * @param trade trade
+     */
+    public synchronized void remove(Trade trade) {
+        if (trade.getId() == null) {
+            return;
+        }
+        var day = trade.getTradingDay();
+        var d = day == null ? undated : days.get(day);
+        var h = hash(trade.getId());
+        if (d != null && d.ids.contains(h)) {
+            d.ids.remove(h);
+            d.removed.add(h);
+        }
+    }
+
+    /**
+     * Add ids of the persisted trades, only the most recent trading days are
+     * kept.
+     *
+     * @param trades trades
+     */
+    public synchronized void load(Collection<Trade> trades) {
+        trades.forEach(this::add);
+        duplicates = 0;
+        falsePositives = 0;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Get number of new ids the Bloom filter didn't rule out.
+     *
+     * @return false positives
+     */
+    public synchronized long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * Get ids of the trading day.
+     *
+     * @param tradingDay trading day, or {@code null}
+     * @return ids of the day, or {@code null} if the day is older than the
+     * kept days
+     */
+    private Day day(String tradingDay) {
+        if (tradingDay == null) {
+            return undated;
+        }
+        var d = days.get(tradingDay);
+        if (d == null) {
+            if (days.size() >= DAYS && tradingDay.compareTo(days.firstKey()) < 0) {
+                return null;
+            }
+            d = new Day(expected, fpp);
+            days.put(tradingDay, d);
+            // Keep the latest days.
+            while (days.size() > DAYS) {
+                days.pollFirstEntry();
+            }
+        }
+        return d;
+    }
+
+    static long hash(String id) {
+        // FNV-1a, then mixed by the finalizer of MurmurHash3.
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); ++i) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Day {
+        private final Bloom bloom;
+        private final LongSet ids;
+        // Removed ids whose bits are set in the Bloom filter.
+        private final LongSet removed = new LongSet(16);
+
+        Day(int expected, double fpp) {
+            this.bloom = new Bloom(expected, fpp);
+            this.ids = new LongSet(expected);
+        }
+    }
+
+    private static class Bloom {
+        private final long[] bits;
+        private final int size;
+        private final int hashes;
+
+        Bloom(int expected, double fpp) {
+            var m = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            size = (int) Math.min(Math.max(m, 64), Integer.MAX_VALUE - 63);
+            bits = new long[(size + 63) >>> 6];
+            hashes = Math.max(1, (int) Math.round((double) size / expected * Math.log(2)));
+        }
+
+        void put(long h) {
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < hashes; ++i) {
+                var bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(long h) {
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < hashes; ++i) {
+                var bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Open-addressing set of longs with linear probing. Zero marks an empty
+     * slot, so zero itself is kept in a flag.
+     */
+    private static class LongSet {
+        private long[] slots;
+        private int size;
+        private boolean zero;
+
+        LongSet(int expected) {
+            int c = 16;
+            while (c < expected * 2) {
+                c <<= 1;
+            }
+            slots = new long[c];
+        }
+
+        boolean contains(long v) {
+            if (v == 0) {
+                return zero;
+            }
+            var mask = slots.length - 1;
+            for (int i = (int) v & mask; ; i = (i + 1) & mask) {
+                var s = slots[i];
+                if (s == 0) {
+                    return false;
+                } else if (s == v) {
+                    return true;
+                }
+            }
+        }
+
+        void add(long v) {
+            if (v == 0) {
+                zero = true;
+                return;
+            }
+            if ((size + 1) * 2 > slots.length) {
+                grow();
+            }
+            if (insert(slots, v)) {
+                ++size;
+            }
+        }
+
+        void remove(long v) {
+            if (v == 0) {
+                zero = false;
+                return;
+            }
+            var mask = slots.length - 1;
+            int i = (int) v & mask;
+            while (slots[i] != v) {
+                if (slots[i] == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = 0;
+            --size;
+            // Reinsert the following cluster so probing doesn't stop early.
+            for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+                var s = slots[j];
+                slots[j] = 0;
+                insert(slots, s);
+            }
+        }
+
+        private void grow() {
+            var old = slots;
+            slots = new long[old.length << 1];
+            for (var s : old) {
+                if (s != 0) {
+                    insert(slots, s);
+                }
+            }
+        }
+
+        private static boolean insert(long[] slots, long v) {
+            var mask = slots.length - 1;
+            for (int i = (int) v & mask; ; i = (i + 1) & mask) {
+                var s = slots[i];
+                if (s == 0) {
+                    slots[i] = v;
+                    return true;
+                } else if (s == v) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.spi.Clock;
+
+import java.lang.ref.WeakReference;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps current trading day and trading sessions in memory. The trading day is
+ * loaded from persistence once and written back on change, and the change is
+ * sent to {@link TradingDayListener}s.
+ * <p>
+ * Users of one persistence share the calendar returned by
+ * {@link #of(UserPersistence)}, so a day change is persisted and sent once.
+ */
+public class TradingCalendar {
+    private static final DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final Map<UserPersistence, WeakReference<TradingCalendar>> shared =
+            new WeakHashMap<>();
+    private final UserPersistence persistence;
+    private final Clock clock;
+    private final List<TradingSession> sessions = new CopyOnWriteArrayList<>();
+    private final List<TradingDayListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile String tradingDay;
+
+    public TradingCalendar(UserPersistence persistence) {
+        this(persistence, new CoarseClock());
+    }
+
+    public TradingCalendar(UserPersistence persistence, Clock clock) {
+        this.persistence = persistence;
+        this.clock = clock;
+        this.tradingDay = persistence.getTradingDay();
+    }
+
+    /**
+     * Get the calendar shared by users of the persistence, creating one over a
+     * {@link CoarseClock} on first call.
+     *
+     * @param persistence persistence
+     * @return shared calendar
+     */
+    public static TradingCalendar of(UserPersistence persistence) {
+        synchronized (shared) {
+            // Calendar refers to its persistence, so it is held weakly too.
+            var r = shared.get(persistence);
+            var c = r == null ? null : r.get();
+            if (c == null) {
+                c = new TradingCalendar(persistence);
+                shared.put(persistence, new WeakReference<>(c));
+            }
+            return c;
+        }
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public String getTradingDay() {
+        return tradingDay;
+    }
+
+    /**
+     * Change current trading day, persist it and notify listeners. Nothing
+     * happens if the day is not changed.
+     *
+     * @param day trading day in the form of <pre><code>'yyyyMMdd'</code></pre>
+     */
+    public void setTradingDay(String day) {
+        String previous;
+        synchronized (this) {
+            previous = tradingDay;
+            if (day.equals(previous)) {
+                return;
+            }
+            persistence.addTradingDay(day);
+            tradingDay = day;
+        }
+        Throwable error = null;
+        for (var listener : listeners) {
+            try {
+                listener.onTradingDay(previous, day);
+            } catch (Throwable throwable) {
+                if (error == null) {
+                    error = throwable;
+                }
+            }
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new TradingDayError(error.getMessage(), error);
+        }
+    }
+
+    /**
+     * Take the trading day reported by gateway as authority. Blank day is
+     * ignored.
+     *
+     * @param day trading day from {@link org.tikware.spi.Transaction}
+     */
+    public void reconcile(String day) {
+        if (day != null && !day.isBlank()) {
+            setTradingDay(day);
+        }
+    }
+
+    public void addListener(TradingDayListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(TradingDayListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addSession(LocalTime begin, LocalTime end) {
+        sessions.add(new TradingSession(begin, end));
+    }
+
+    public Collection<TradingSession> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Get the session containing the specified time.
+     *
+     * @param time time
+     * @return session, or {@code null} if the time is out of all sessions
+     */
+    public TradingSession getSession(LocalTime time) {
+        for (var s : sessions) {
+            if (s.contains(time)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    public boolean isTrading(LocalTime time) {
+        return getSession(time) != null;
+    }
+
+    public boolean isTrading() {
+        return isTrading(clock.now().toLocalTime());
+    }
+
+    /**
+     * Compute trading day of the specified time. Night session belongs to the
+     * next weekday, holidays are not considered.
+     *
+     * @param time time
+     * @return trading day in the form of <pre><code>'yyyyMMdd'</code></pre>
+     */
+    public String getTradingDay(LocalDateTime time) {
+        var date = time.toLocalDate();
+        var s = getSession(time.toLocalTime());
+        if (s != null && s.isNight()) {
+            if (time.toLocalTime().isBefore(s.getBegin())) {
+                // After midnight part of the session.
+                date = date.minusDays(1);
+            }
+            date = nextWeekday(date);
+        }
+        return date.format(fmt);
+    }
+
+    private LocalDate nextWeekday(LocalDate date) {
+        var d = date.plusDays(1);
+        while (d.getDayOfWeek() == DayOfWeek.SATURDAY || d.getDayOfWeek() == DayOfWeek.SUNDAY) {
+            d = d.plusDays(1);
+        }
+        return d;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Reads rows archived by {@link TradingDayArchiver}.
+ */
+public class TradingDayArchive {
+    private final Path dir;
+
+    public TradingDayArchive(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get archived trading days in ascending order.
+     *
+     * @return trading days
+     */
+    public Collection<String> getTradingDays() {
+        var r = new TreeSet<String>();
+        if (!Files.isDirectory(dir)) {
+            return r;
+        }
+        try (var s = Files.list(dir)) {
+            s.filter(Files::isDirectory).forEach(p -> r.add(p.getFileName().toString()));
+        } catch (IOException error) {
+            throw new DataArchiveError(dir.toString(), error);
+        }
+        return r;
+    }
+
+    public Collection<Trade> getTrades(String user, String tradingDay) {
+        return read(user, tradingDay, ArchiveCodec.TRADE, ArchiveCodec::readTrade, Trade::getId);
+    }
+
+    public Collection<UserCash> getUserCashes(String user, String tradingDay) {
+        return read(user, tradingDay, ArchiveCodec.CASH, ArchiveCodec::readCash, UserCash::getId);
+    }
+
+    public Collection<UserCommission> getUserCommissions(String user, String tradingDay) {
+        return read(user, tradingDay, ArchiveCodec.COMMISSION, ArchiveCodec::readCommission,
+                UserCommission::getId);
+    }
+
+    /**
+     * Get archived trades of the user in the trading day range, both ends
+     * included.
+     *
+     * @param user user
+     * @param from first trading day
+     * @param to   last trading day
+     * @return trades in the range
+     */
+    public Collection<Trade> getTrades(String user, String from, String to) {
+        var r = new LinkedList<Trade>();
+        for (var day : range(from, to)) {
+            r.addAll(getTrades(user, day));
+        }
+        return r;
+    }
+
+    public Collection<UserCash> getUserCashes(String user, String from, String to) {
+        var r = new LinkedList<UserCash>();
+        for (var day : range(from, to)) {
+            r.addAll(getUserCashes(user, day));
+        }
+        return r;
+    }
+
+    public Collection<UserCommission> getUserCommissions(String user, String from, String to) {
+        var r = new LinkedList<UserCommission>();
+        for (var day : range(from, to)) {
+            r.addAll(getUserCommissions(user, day));
+        }
+        return r;
+    }
+
+    private Collection<String> range(String from, String to) {
+        return ((TreeSet<String>) getTradingDays()).subSet(from, true, to, true);
+    }
+
+    private <T> Collection<T> read(String user, String tradingDay, String kind,
+            ArchiveCodec.Reader<T> reader, Function<T, String> id) {
+        var file = ArchiveCodec.file(dir, tradingDay, user, kind);
+        try {
+            return ArchiveCodec.read(file, reader, id);
+        } catch (IOException error) {
+            throw new DataArchiveError(file.toString(), error);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Moves trades, cashes and commissions older than the most recent N trading
+ * days out of the per-user tables into gzip files under
+ * {@code <dir>/<trading day>/<USER>_<TRADE|CASH|COMMISSION>.gz}, so full scans
+ * of the hot tables only see live state. Old rows are read back by
+ * {@link TradingDayArchive}.
+ * <p>
+ * Registered to {@link TradingCalendar}, it archives all users on day change.
+ */
+public class TradingDayArchiver implements TradingDayListener {
+    private final JdbcUserPersistence persistence;
+    private final Path dir;
+    private final int keepDays;
+
+    public TradingDayArchiver(JdbcUserPersistence persistence, Path dir, int keepDays) {
+        if (keepDays < 1) {
+            throw new IllegalArgumentException("Must keep at least one trading day.");
+        }
+        this.persistence = persistence;
+        this.dir = dir;
+        this.keepDays = keepDays;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public void onTradingDay(String previous, String current) {
+        archive();
+    }
+
+    /**
+     * Archive rows of all users.
+     *
+     * @return number of rows archived
+     */
+    public int archive() {
+        var count = 0;
+        for (var info : persistence.getUserInfos()) {
+            count += archive(info.getUser());
+        }
+        return count;
+    }
+
+    /**
+     * Archive rows of the user before the oldest kept trading day. Files are
+     * written and synced before the rows are deleted in one unit of work.
+     *
+     * @param user user
+     * @return number of rows archived
+     */
+    public int archive(String user) {
+        var cutoff = getCutoff();
+        if (cutoff == null) {
+            return 0;
+        }
+        persistence.begin(user);
+        int count;
+        try {
+            var trades = persistence.getTradesBefore(user, cutoff);
+            var cashes = persistence.getUserCashesBefore(user, cutoff);
+            var commissions = persistence.getUserCommissionsBefore(user, cutoff);
+            write(user, ArchiveCodec.TRADE, trades, Trade::getTradingDay,
+                    ArchiveCodec::writeTrade);
+            write(user, ArchiveCodec.CASH, cashes, UserCash::getTradingDay,
+                    ArchiveCodec::writeCash);
+            write(user, ArchiveCodec.COMMISSION, commissions, UserCommission::getTradingDay,
+                    ArchiveCodec::writeCommission);
+            count = persistence.deleteBefore(user, cutoff);
+        } catch (Throwable error) {
+            persistence.rollback(user);
+            throw error;
+        }
+        persistence.commit(user);
+        return count;
+    }
+
+    /**
+     * Get the oldest trading day kept in tables.
+     *
+     * @return oldest kept trading day, or {@code null} if there aren't more than
+     * N trading days
+     */
+    public String getCutoff() {
+        var days = new ArrayList<>(persistence.getTradingDays());
+        if (days.size() <= keepDays) {
+            return null;
+        }
+        return days.get(days.size() - keepDays);
+    }
+
+    private <T> void write(String user, String kind, Collection<T> records,
+            Function<T, String> tradingDay, ArchiveCodec.Writer<T> writer) {
+        var days = new TreeMap<String, List<T>>();
+        for (var r : records) {
+            var day = tradingDay.apply(r);
+            days.computeIfAbsent(day == null ? "" : day, k -> new LinkedList<>()).add(r);
+        }
+        days.forEach((day, rows) -> {
+            var file = ArchiveCodec.file(dir, day.isBlank() ? "unknown" : day, user, kind);
+            try {
+                ArchiveCodec.append(file, rows, writer);
+            } catch (IOException error) {
+                throw new DataArchiveError(file.toString(), error);
+            }
+        });
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import java.time.LocalTime;
+
+/**
+ * Continuous trading session of a day. Session that ends before it begins
+ * crosses midnight.
+ */
+public class TradingSession {
+    /**
+     * Sessions beginning at or after this time belong to next trading day.
+     */
+    public static final LocalTime NIGHT_BEGIN = LocalTime.of(18, 0);
+
+    private final LocalTime begin;
+    private final LocalTime end;
+
+    public TradingSession(LocalTime begin, LocalTime end) {
+        this.begin = begin;
+        this.end = end;
+    }
+
+    public LocalTime getBegin() {
+        return begin;
+    }
+
+    public LocalTime getEnd() {
+        return end;
+    }
+
+    public boolean isNight() {
+        return !begin.isBefore(NIGHT_BEGIN);
+    }
+
+    public boolean isCrossingMidnight() {
+        return end.isBefore(begin);
+    }
+
+    public boolean contains(LocalTime time) {
+        if (isCrossingMidnight()) {
+            return !time.isBefore(begin) || time.isBefore(end);
+        } else {
+            return !time.isBefore(begin) && time.isBefore(end);
+        }
+    }
+}
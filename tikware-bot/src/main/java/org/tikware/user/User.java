@@ -18,23 +18,41 @@
 package org.tikware.user;
 
 import org.tikware.api.Order;
+import org.tikware.api.Trade;
+import org.tikware.spi.Clock;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class User {
     private final UserBalance balance = new UserBalance();
     private final Map<String, UserPosition> positions = new ConcurrentHashMap<>();
+    private final PositionBuckets closable;
+    private final TradeFilter trades = new TradeFilter(4096, 0.001D);
+    private volatile boolean tradesLoaded;
     private final Map<String, UserCommission> commissions = new ConcurrentHashMap<>();
     private final Collection<UserCash> cashes = new ConcurrentLinkedQueue<>();
     private final UserPersistence persistence;
+    private final TradingCalendar calendar;
+    private final Clock clock;
 
     public User(UserBalance balance, Collection<UserPosition> positions,
             Collection<UserCommission> commissions, Collection<UserCash> cashes,
             UserPersistence userCommon) {
+        this(balance, positions, commissions, cashes, userCommon,
+                TradingCalendar.of(userCommon));
+    }
+
+    public User(UserBalance balance, Collection<UserPosition> positions,
+            Collection<UserCommission> commissions, Collection<UserCash> cashes,
+            UserPersistence userCommon, TradingCalendar calendar) {
         this.persistence = userCommon;
+        this.calendar = calendar;
+        this.clock = calendar.getClock();
+        this.closable = new PositionBuckets(calendar);
         this.cashes.addAll(cashes);
         copyBalance(this.balance, balance);
         copyCommissions(this.commissions, commissions);
@@ -68,17 +86,57 @@ public class User {
         return persistence;
     }
 
+    public TradingCalendar getCalendar() {
+        return calendar;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
     public User settle() {
-        clearFrozen();
-        var b = new UserBalance();
-        b.setId(balance.getId());
-        b.setUser(balance.getUser());
-        b.setBalance(getDynamicBalance());
-        b.setTradingDay(persistence.getTradingDay());
-        b.setTime(persistence.getDateTime());
-        // Add new user balance to database.
-        persistence.alterUserBalance(balance.getUser(), b, UserPersistence.ALTER_ADD);
-        return new User(b, positions.values(), commissions.values(), cashes, persistence);
+        return unitOfWork(() -> {
+            clearFrozen();
+            var b = new UserBalance();
+            b.setId(balance.getId());
+            b.setUser(balance.getUser());
+            b.setBalance(getDynamicBalance());
+            b.setTradingDay(calendar.getTradingDay());
+            b.setTime(clock.getDateTime());
+            // Add new user balance to database.
+            persistence.alterUserBalance(balance.getUser(), b, UserPersistence.ALTER_ADD);
+            return new User(b, positions.values(), commissions.values(), cashes, persistence,
+                    calendar);
+        });
+    }
+
+    /**
+     * Run the operation in one unit of work so all its changes are committed
+     * together. Operations of this user called inside join the unit.
+     *
+     * @param operation operation
+     * @param <T> return type
+     * @return result of operation
+     */
+    public <T> T unitOfWork(Supplier<T> operation) {
+        var u = balance.getUser();
+        persistence.begin(u);
+        T r;
+        try {
+            r = operation.get();
+        } catch (Throwable error) {
+            persistence.rollback(u);
+            throw error;
+        }
+        persistence.commit(u);
+        return r;
+    }
+
+    public void unitOfWork(Runnable operation) {
+        unitOfWork(() -> {
+            operation.run();
+            return null;
+        });
     }
 
     private void clearFrozen() {
@@ -103,6 +161,7 @@ public class User {
                 persistence.alterUserPosition(balance.getUser(), p, UserPersistence.ALTER_DELETE);
             } else if (p.getState() == UserPosition.FROZEN_CLOSE) {
                 p.setState(UserPosition.NORMAL);
+                closable.add(p);
                 // Update position state in database.
                 persistence.alterUserPosition(balance.getUser(), p, UserPersistence.ALTER_UPDATE);
             }
@@ -110,8 +169,10 @@ public class User {
     }
 
     public void undo(OpenInfo info) {
-        removePosition(info.getPositionId());
-        removeCommission(info.getCommissionId());
+        unitOfWork(() -> {
+            removePosition(info.getPositionId());
+            removeCommission(info.getCommissionId());
+        });
     }
 
     private void removePosition(String positionId) {
@@ -125,11 +186,14 @@ public class User {
     }
 
     public void undo(CloseInfo info) {
-        var p = position(info.getPositionId());
-        p.setState(UserPosition.NORMAL);
-        // Update position state.
-        persistence.alterUserPosition(balance.getUser(), p, UserPersistence.ALTER_UPDATE);
-        removeCommission(info.getCommissionId());
+        unitOfWork(() -> {
+            var p = position(info.getPositionId());
+            p.setState(UserPosition.NORMAL);
+            closable.addFirst(p);
+            // Update position state.
+            persistence.alterUserPosition(balance.getUser(), p, UserPersistence.ALTER_UPDATE);
+            removeCommission(info.getCommissionId());
+        });
     }
 
     private void removeCommission(String commissionId) {
@@ -153,19 +217,29 @@ public class User {
         to.setId(from.getId());
         to.setUser(from.getUser());
         to.setBalance(from.getBalance());
-        to.setTradingDay(persistence.getTradingDay());
-        to.setTime(persistence.getDateTime());
+        to.setTradingDay(calendar.getTradingDay());
+        to.setTime(clock.getDateTime());
     }
 
     private void copyPositions(Map<String, UserPosition> to, Collection<UserPosition> from) {
         if (from == null || from.isEmpty()) {
             return;
         }
-        from.forEach(position -> to.put(position.getId(), position));
+        from.forEach(position -> {
+            to.put(position.getId(), position);
+            if (position.getState() == UserPosition.NORMAL) {
+                closable.add(position);
+            }
+        });
     }
 
     public CloseInfo freezeClose(String user, String symbol, Character direction, Double price)
             throws IllegalCommissionError {
+        return unitOfWork(() -> doFreezeClose(user, symbol, direction, price));
+    }
+
+    private CloseInfo doFreezeClose(String user, String symbol, Character direction,
+            Double price) {
         checkUser(user);
         var positionDirection = closeDirection(direction);
         var commission = persistence.getCommission(symbol, price, positionDirection,
@@ -194,27 +268,66 @@ public class User {
 
     private CloseInfo findPosition(String symbol, Character direction) {
         var info = new CloseInfo();
-        List<UserPosition> p = positions
-                .values().stream()
-                .filter(position -> position.getState() == UserPosition.NORMAL &&
-                                    position.getDirection() == direction)
-                .collect(Collectors.toCollection(LinkedList::new));
-        if (p.isEmpty()) {
+        // Close prior-day lots first, oldest first.
+        var px = closable.poll(symbol, direction);
+        if (px == null) {
             info.setError(new InsufficientPositionError(symbol + "|" + direction.toString()));
         } else {
-            var px = p.get(0);
             px.setState(UserPosition.FROZEN_CLOSE);
             // Update position state in database.
             persistence.alterUserPosition(balance.getUser(), px, UserPersistence.ALTER_UPDATE);
             info.setPositionId(px.getId());
+            info.setToday(px.getOpenTradingDay().equals(calendar.getTradingDay()));
         }
         return info;
     }
 
     public void close(String user, String positionId, String commissionId, Double price) {
         checkUser(user);
-        setCommission(commissionId, price);
-        closePosition(user, positionId, price);
+        fill(changes -> {
+            setCommission(commissionId, price, changes);
+            closePosition(user, positionId, price, changes);
+        });
+    }
+
+    /**
+     * Close the lots filled by one trade in one unit of work.
+     *
+     * @param user  user
+     * @param infos frozen lots, one per filled contract
+     * @param price trade price
+     */
+    public void close(String user, Collection<CloseInfo> infos, Double price) {
+        checkUser(user);
+        fill(changes -> {
+            Double commission = null;
+            for (var info : infos) {
+                var c = commission(info.getCommissionId());
+                if (commission == null) {
+                    commission = persistence.getCommission(c.getSymbol(), price,
+                            c.getDirection(), c.getOffset());
+                }
+                setCommission(c, commission, changes);
+                closePosition(user, info.getPositionId(), price, changes);
+            }
+        });
+    }
+
+    /**
+     * Apply a fill in one unit of work. If the unit fails, lots and
+     * commissions changed in memory are restored, so the replayed trade finds
+     * them frozen as before.
+     *
+     * @param fill changes of the fill
+     */
+    private void fill(Consumer<Changes> fill) {
+        var changes = new Changes();
+        try {
+            unitOfWork(() -> fill.accept(changes));
+        } catch (Throwable error) {
+            changes.restore();
+            throw error;
+        }
     }
 
     private void checkUser(String user) {
@@ -223,13 +336,14 @@ public class User {
         }
     }
 
-    private void closePosition(String user, String positionId, Double price) {
+    private void closePosition(String user, String positionId, Double price, Changes changes) {
         var p = this.positions.get(positionId);
         if (p == null) {
             throw new PositionNotFoundError(positionId);
         } else if (p.getState() != UserPosition.FROZEN_CLOSE) {
             throw new InvalidPositionStateError(p.getState().toString());
         } else {
+            changes.save(p);
             positions.values().remove(p);
             //Remove position from database.
             persistence.alterUserPosition(balance.getUser(), p, UserPersistence.ALTER_DELETE);
@@ -240,9 +354,10 @@ public class User {
             cash.setCash(profit);
             cash.setSource(UserCash.CLOSE);
             cash.setUser(user);
-            cash.setTradingDay(persistence.getTradingDay());
-            cash.setTime(persistence.getDateTime());
+            cash.setTradingDay(calendar.getTradingDay());
+            cash.setTime(clock.getDateTime());
             cashes.add(cash);
+            changes.added(cash);
             // Add cash to database.
             persistence.alterUserCash(balance.getUser(), cash, UserPersistence.ALTER_ADD);
         }
@@ -250,6 +365,11 @@ public class User {
 
     public OpenInfo freezeOpen(String user, String symbol, String exchange, Character direction,
             Double price) throws IllegalMarginError, IllegalCommissionError {
+        return unitOfWork(() -> doFreezeOpen(user, symbol, exchange, direction, price));
+    }
+
+    private OpenInfo doFreezeOpen(String user, String symbol, String exchange,
+            Character direction, Double price) {
         checkUser(user);
         var positionDirection = positionDirection(direction);
         var multiple = persistence.getMultiple(symbol);
@@ -315,8 +435,8 @@ public class User {
         c.setOffset(offset);
         c.setDirection(direction);
         c.setCommission(commission);
-        c.setTradingDay(persistence.getTradingDay());
-        c.setTime(persistence.getDateTime());
+        c.setTradingDay(calendar.getTradingDay());
+        c.setTime(clock.getDateTime());
         c.setState(UserCommission.FROZEN);
         commissions.put(id, c);
         // Add commissions to database.
@@ -336,8 +456,8 @@ public class User {
         p.setMultiple(multiple);
         p.setMargin(margin);
         p.setDirection(direction);
-        p.setOpenTradingDay(persistence.getTradingDay());
-        p.setOpenTime(persistence.getDateTime());
+        p.setOpenTradingDay(calendar.getTradingDay());
+        p.setOpenTime(clock.getDateTime());
         p.setState(UserPosition.FROZEN_OPEN);
         positions.put(id, p);
         // Add position into database.
@@ -347,16 +467,53 @@ public class User {
 
     public void open(String user, String positionId, String commissionId, Double price) {
         checkUser(user);
-        setCommission(commissionId, price);
-        openPosition(positionId, price);
+        fill(changes -> {
+            setCommission(commissionId, price, changes);
+            openPosition(positionId, price, changes);
+        });
+    }
+
+    /**
+     * Open the lots filled by one trade in one unit of work. Lots of a trade
+     * share symbol and price, so fees are queried once.
+     *
+     * @param user  user
+     * @param infos frozen lots, one per filled contract
+     * @param price trade price
+     */
+    public void open(String user, Collection<OpenInfo> infos, Double price) {
+        checkUser(user);
+        fill(changes -> {
+            Double commission = null;
+            Double margin = null;
+            for (var info : infos) {
+                var c = commission(info.getCommissionId());
+                if (commission == null) {
+                    commission = persistence.getCommission(c.getSymbol(), price,
+                            c.getDirection(), c.getOffset());
+                }
+                setCommission(c, commission, changes);
+                var p = position(info.getPositionId());
+                if (margin == null) {
+                    margin = persistence.getMargin(p.getSymbol(), price, p.getDirection(),
+                            Order.OPEN);
+                }
+                openPosition(p, price, margin, changes);
+            }
+        });
     }
 
-    private void setCommission(String commissionId, Double price) {
+    private void setCommission(String commissionId, Double price, Changes changes) {
         var c = commission(commissionId);
         var commission = persistence.getCommission(c.getSymbol(), price, c.getDirection(), c.getOffset());
+        setCommission(c, commission, changes);
+    }
+
+    private void setCommission(UserCommission c, Double commission, Changes changes) {
+        changes.save(c);
         c.setCommission(commission);
         c.setState(UserCommission.NORMAL);
-        c.setTime(persistence.getDateTime());
+        c.setTime(clock.getDateTime());
         // Update commission in database.
         persistence.alterUserCommission(balance.getUser(), c, UserPersistence.ALTER_UPDATE);
     }
@@ -370,16 +527,23 @@ public class User {
         }
     }
 
-    private void openPosition(String positionId, Double price) {
+    private void openPosition(String positionId, Double price, Changes changes) {
         var p = position(positionId);
+        var margin = persistence.getMargin(p.getSymbol(), price, p.getDirection(), Order.OPEN);
+        openPosition(p, price, margin, changes);
+    }
+
+    private void openPosition(UserPosition p, Double price, Double margin, Changes changes) {
         if (p.getState() != UserPosition.FROZEN_OPEN) {
             throw new InvalidPositionStateError(p.getState().toString());
         } else {
-            var margin = persistence.getMargin(p.getSymbol(), price, p.getDirection(), Order.OPEN);
+            changes.save(p);
             p.setPrice(price);
             p.setMargin(margin);
             p.setState(UserPosition.NORMAL);
-            p.setOpenTime(persistence.getDateTime());
+            p.setOpenTime(clock.getDateTime());
+            closable.add(p);
+            changes.opened(p);
             // Update position state in database.
             persistence.alterUserPosition(balance.getUser(), p, UserPersistence.ALTER_UPDATE);
         }
@@ -465,6 +629,39 @@ public class User {
         return b;
     }
 
+    /**
+     * Record the trade and tell whether it is new. Trades replayed by gateway
+     * are recognized in memory, persisted trades are loaded on first call, so
+     * persistence must not keep trades of rolled back units of work.
+     *
+     * @param trade trade
+     * @return {@code true} if the trade is not seen before
+     */
+    public boolean acceptTrade(Trade trade) {
+        if (!tradesLoaded) {
+            synchronized (trades) {
+                if (!tradesLoaded) {
+                    trades.load(persistence.getTrades(balance.getUser()));
+                    tradesLoaded = true;
+                }
+            }
+        }
+        return trades.add(trade);
+    }
+
+    /**
+     * Forget the accepted trade that fails to apply, so its replay is accepted.
+     *
+     * @param trade trade
+     */
+    public void forgetTrade(Trade trade) {
+        trades.remove(trade);
+    }
+
+    public TradeFilter getTradeFilter() {
+        return trades;
+    }
+
     public Map<String, UserPosition> getPositions() {
         return new HashMap<>(positions);
     }
@@ -476,4 +673,50 @@ public class User {
     public Collection<UserCash> getCashes() {
         return new HashSet<>(cashes);
     }
+
+    /**
+     * Memory changes of a fill, restored in reverse order.
+     */
+    private class Changes {
+        private final Deque<Runnable> undo = new ArrayDeque<>();
+
+        void save(UserCommission c) {
+            var commission = c.getCommission();
+            var state = c.getState();
+            var time = c.getTime();
+            undo.push(() -> {
+                c.setCommission(commission);
+                c.setState(state);
+                c.setTime(time);
+            });
+        }
+
+        void save(UserPosition p) {
+            var price = p.getPrice();
+            var margin = p.getMargin();
+            var state = p.getState();
+            var time = p.getOpenTime();
+            undo.push(() -> {
+                p.setPrice(price);
+                p.setMargin(margin);
+                p.setState(state);
+                p.setOpenTime(time);
+                positions.putIfAbsent(p.getId(), p);
+            });
+        }
+
+        void opened(UserPosition p) {
+            undo.push(() -> closable.remove(p));
+        }
+
+        void added(UserCash cash) {
+            undo.push(() -> cashes.remove(cash));
+        }
+
+        void restore() {
+            while (!undo.isEmpty()) {
+                undo.pop().run();
+            }
+        }
+    }
 }
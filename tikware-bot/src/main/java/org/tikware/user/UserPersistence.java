@@ -45,6 +45,33 @@ public interface UserPersistence {
 
     Character ALTER_ADD = 'S';
 
+    /**
+     * Open a unit of work for the specified user. Changes made before the
+     * matching {@link #commit(String)} are committed together. Units can be
+     * nested and the nested unit joins the outer one. A unit belongs to the
+     * calling thread, and a unit of another user can't be opened on the thread
+     * before it ends.
+     *
+     * @param user user
+     */
+    void begin(String user);
+
+    /**
+     * Close the unit of work opened by {@link #begin(String)} and commit
+     * changes.
+     *
+     * @param user user
+     */
+    void commit(String user);
+
+    /**
+     * Close the unit of work opened by {@link #begin(String)} and discard
+     * changes. Units of other users are not affected.
+     *
+     * @param user user
+     */
+    void rollback(String user);
+
     String getTradingDay();
 
     String getDateTime();
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.tikware.api.Trade;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Blocking {@link UserPersistence} over an {@link AsyncUserPersistence} that
+ * returns from writes as soon as they are queued. {@link User} can keep its
+ * in-memory update on the calling thread and track durability by
+ * {@link #flush()}.
+ * <p>
+ * Reads wait for the queued writes of the same user or global tables so they
+ * see the effect. A failed write is reported to the error listener, and the
+ * first failure since last flush fails the next flush. A unit of work with a
+ * failed write is rolled back instead of committed.
+ */
+public class WriteBehindUserPersistence implements UserPersistence {
+    private final AsyncUserPersistence async;
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile Consumer<Throwable> errorListener = e -> {};
+
+    public WriteBehindUserPersistence(AsyncUserPersistence async) {
+        this.async = async;
+    }
+
+    public AsyncUserPersistence getAsync() {
+        return async;
+    }
+
+    public void setErrorListener(Consumer<Throwable> listener) {
+        this.errorListener = listener;
+    }
+
+    /**
+     * Get number of writes queued but not completed.
+     *
+     * @return number of pending writes
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Get a future that completes after all previous writes are durable, or
+     * completes exceptionally with {@link DataCommitError} if any write failed
+     * since last flush.
+     *
+     * @return future of previous writes
+     */
+    public CompletableFuture<Void> flush() {
+        return async.flush().thenRun(() -> {
+            var e = error.getAndSet(null);
+            if (e != null) {
+                throw new DataCommitError("Write behind failed", e);
+            }
+        });
+    }
+
+    private void write(CompletableFuture<Void> future) {
+        pending.incrementAndGet();
+        future.whenComplete((r, e) -> {
+            pending.decrementAndGet();
+            if (e != null) {
+                var cause = e instanceof CompletionException && e.getCause() != null ?
+                            e.getCause() : e;
+                error.compareAndSet(null, cause);
+                try {
+                    errorListener.accept(cause);
+                } catch (Throwable ignored) {
+                }
+            }
+        });
+    }
+
+    private static <T> T read(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void begin(String user) {
+        write(async.begin(user));
+    }
+
+    @Override
+    public void commit(String user) {
+        write(async.commit(user));
+    }
+
+    @Override
+    public void rollback(String user) {
+        write(async.rollback(user));
+    }
+
+    @Override
+    public String getTradingDay() {
+        return read(async.getTradingDay());
+    }
+
+    @Override
+    public String getDateTime() {
+        return read(async.getDateTime());
+    }
+
+    @Override
+    public Double getPrice(String symbol) {
+        return read(async.getPrice(symbol));
+    }
+
+    @Override
+    public Long getMultiple(String symbol) {
+        return read(async.getMultiple(symbol));
+    }
+
+    @Override
+    public Double getMargin(String symbol, Double price, Character direction, Character offset) {
+        return read(async.getMargin(symbol, price, direction, offset));
+    }
+
+    @Override
+    public Double getCommission(String symbol, Double price, Character direction,
+            Character offset) {
+        return read(async.getCommission(symbol, price, direction, offset));
+    }
+
+    @Override
+    public void addTradingDay(String tradingDay) {
+        write(async.addTradingDay(tradingDay));
+    }
+
+    @Override
+    public void addOrUpdatePrice(String symbol, Double price) {
+        write(async.addOrUpdatePrice(symbol, price));
+    }
+
+    @Override
+    public void addOrUpdateMultiple(String symbol, Long multiple) {
+        write(async.addOrUpdateMultiple(symbol, multiple));
+    }
+
+    @Override
+    public void addOrUpdateMarginRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        write(async.addOrUpdateMarginRatio(symbol, ratio, direction, offset, type));
+    }
+
+    @Override
+    public void addOrUpdateCommissionRatio(String symbol, Double ratio, Character direction,
+            Character offset, Character type) {
+        write(async.addOrUpdateCommissionRatio(symbol, ratio, direction, offset, type));
+    }
+
+    @Override
+    public void addTrade(String user, Trade trade) {
+        write(async.addTrade(user, trade));
+    }
+
+    @Override
+    public Collection<Trade> getTrades(String user) {
+        return read(async.getTrades(user));
+    }
+
+    @Override
+    public UserBalance getUserBalance(String user) {
+        return read(async.getUserBalance(user));
+    }
+
+    @Override
+    public void alterUserBalance(String user, UserBalance balance, Character alter) {
+        write(async.alterUserBalance(user, balance, alter));
+    }
+
+    @Override
+    public Collection<UserPosition> getUserPositions(String user) {
+        return read(async.getUserPositions(user));
+    }
+
+    @Override
+    public void alterUserPosition(String user, UserPosition position, Character alter) {
+        write(async.alterUserPosition(user, position, alter));
+    }
+
+    @Override
+    public Collection<UserCash> getUserCashes(String user) {
+        return read(async.getUserCashes(user));
+    }
+
+    @Override
+    public void alterUserCash(String user, UserCash cash, Character alter) {
+        write(async.alterUserCash(user, cash, alter));
+    }
+
+    @Override
+    public Collection<UserCommission> getUserCommissions(String user) {
+        return read(async.getUserCommissions(user));
+    }
+
+    @Override
+    public void alterUserCommission(String user, UserCommission commission, Character alter) {
+        write(async.alterUserCommission(user, commission, alter));
+    }
+
+    @Override
+    public Collection<UserInfo> getUserInfos() {
+        return read(async.getUserInfos());
+    }
+
+    @Override
+    public void alterUserInfo(UserInfo user, Character alter) {
+        write(async.alterUserInfo(user, alter));
+    }
+}
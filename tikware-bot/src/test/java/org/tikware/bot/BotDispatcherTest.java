@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.api.OrderListener;
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.api.Trade;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BotDispatcherTest {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void conflateTicks() throws InterruptedException {
+        var d = new BotDispatcher("conflate", 2, BotDispatcher.CONFLATE, new ErrorLogger());
+        var prices = new ConcurrentLinkedQueue<Double>();
+        var listener = d.wrap(blocked(prices));
+        // First tick holds the thread, following ticks of a symbol merge.
+        listener.onTick(tick("c2109", 0.0D), true);
+        started.await();
+        for (int i = 1; i <= 10; ++i) {
+            listener.onTick(tick("c2109", i), true);
+            listener.onTick(tick("m2109", 100.0D + i), true);
+        }
+        assertEquals(2, d.getDepth());
+        assertEquals(18, d.getConflated());
+        release.countDown();
+        d.close();
+        assertEquals(List.of(0.0D, 10.0D, 110.0D), List.copyOf(prices));
+    }
+
+    @Test
+    public void dropOldestTick() throws InterruptedException {
+        var d = new BotDispatcher("drop", 2, BotDispatcher.DROP_OLDEST_TICK, new ErrorLogger());
+        var prices = new ConcurrentLinkedQueue<Double>();
+        var listener = d.wrap(blocked(prices));
+        listener.onTick(tick("c2109", 0.0D), true);
+        started.await();
+        for (int i = 1; i <= 5; ++i) {
+            listener.onTick(tick("c2109", i), true);
+        }
+        assertEquals(3, d.getDropped());
+        assertEquals(2, d.getMaxDepth());
+        release.countDown();
+        d.close();
+        assertEquals(List.of(0.0D, 4.0D, 5.0D), List.copyOf(prices));
+    }
+
+    @Test
+    public void offerOnOwnThread() throws InterruptedException {
+        var d = new BotDispatcher("self", 1, BotDispatcher.BLOCK, new ErrorLogger());
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var done = new CountDownLatch(3);
+        var orders = d.wrap(new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                errors.add(error);
+                done.countDown();
+            }
+        });
+        // Callback on the dispatcher thread fills the queue and keeps offering.
+        d.wrap((TickListener) (tick, realtime) -> {
+            for (int i = 0; i < 3; ++i) {
+                orders.onError(new IllegalStateException("e-" + i));
+            }
+        }).onTick(tick("c2109", 0.0D), true);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, d.getMaxDepth());
+        d.close();
+        assertEquals(3, errors.size());
+    }
+
+    private TickListener blocked(ConcurrentLinkedQueue<Double> prices) {
+        return (tick, realtime) -> {
+            prices.add(tick.getPrice());
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        };
+    }
+
+    private Tick tick(String symbol, double price) {
+        var t = new Tick();
+        t.setSymbol(symbol);
+        t.setPrice(price);
+        return t;
+    }
+}
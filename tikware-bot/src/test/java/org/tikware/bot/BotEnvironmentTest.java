@@ -20,16 +20,25 @@ package org.tikware.bot;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.tikware.bot.mem.InMemoryPersistence;
-import org.tikware.user.JdbcUserPersistence;
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.api.Trade;
+import org.tikware.bot.mem.InMemoryDatafeed;
+import org.tikware.bot.mem.InMemoryTransaction;
+import org.tikware.user.*;
 
-public class BotEnvironmentTest {
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.tikware.bot.mem.Fixture.*;
 
+public class BotEnvironmentTest {
     private JdbcUserPersistence p;
 
     @BeforeEach
     public void prepare() {
-        p = new InMemoryPersistence();
+        p = persistence();
     }
 
     @AfterEach
@@ -41,7 +50,323 @@ public class BotEnvironmentTest {
 
     }
 
+    @Test
+    public void fillLots() {
+        var user = user("lots", db());
+        var sent = new LinkedList<Order>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                super.quote(order, listener);
+            }
+        };
+        var errors = new LinkedList<Throwable>();
+        var env = new BotEnvironment(user, new ErrorLogger(), tx, new InMemoryDatafeed());
+        // Open 5 lots filled by two trades.
+        env.quote(order("lots", "open", Order.BUY, Order.OPEN, 5L), listener(errors));
+        assertEquals(5, count(user, UserPosition.FROZEN_OPEN));
+        tx.fill(sent.getLast(), 3, 2651.0D);
+        tx.fill(sent.getLast(), 2, 2652.0D);
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(5, count(user, UserPosition.NORMAL));
+        // Close today's lots, sent as close today order.
+        env.quote(order("lots", "close", Order.SELL, Order.CLOSE, 5L), listener(errors));
+        var close = sent.getLast();
+        assertEquals(Order.CLOSE_TODAY, close.getOffset());
+        assertEquals(5, count(user, UserPosition.FROZEN_CLOSE));
+        tx.fill(close, 5, 2660.0D);
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertTrue(user.getPositions().isEmpty());
+        // Trades keep their quantity.
+        var trades = db().getTrades("lots");
+        assertEquals(3, trades.size());
+        assertEquals(10L, trades.stream().mapToLong(Trade::getQuantity).sum());
+    }
+
+    @Test
+    public void closeYesterdayFirst() {
+        p.addOrUpdatePrice("m2109", 3600.0D);
+        var lots = List.of(lot(SYMBOL, "20210528"), lot(SYMBOL, "20210528"),
+                lot("m2109", "20210528"));
+        lots.forEach(x -> db().alterUserPosition("yd", x, UserPersistence.ALTER_ADD));
+        var user = user("yd", lots, db());
+        var sent = new LinkedList<Order>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                super.quote(order, listener);
+            }
+        };
+        var errors = new LinkedList<Throwable>();
+        var env = new BotEnvironment(user, new ErrorLogger(), tx, new InMemoryDatafeed());
+        var open = order("yd", "open", Order.BUY, Order.OPEN, 2L);
+        env.quote(open, listener(errors));
+        tx.fill(sent.getLast(), 2, 2651.0D);
+        // Prior-day lots are closed first, other symbol is untouched.
+        var close = order("yd", "close", Order.SELL, Order.CLOSE, 3L);
+        env.quote(close, listener(errors));
+        assertTrue(errors.isEmpty(), errors.toString());
+        var today = sent.get(1);
+        var yd = sent.get(2);
+        assertEquals(Order.CLOSE_TODAY, today.getOffset());
+        assertEquals(1L, today.getQuantity());
+        assertEquals(Order.CLOSE_YD, yd.getOffset());
+        assertEquals(2L, yd.getQuantity());
+        assertEquals(3, count(user, UserPosition.FROZEN_CLOSE));
+        assertTrue(user.getPositions().values().stream()
+                       .filter(x -> x.getState() == UserPosition.FROZEN_CLOSE)
+                       .allMatch(x -> x.getSymbol().equals(SYMBOL)));
+    }
+
+    @Test
+    public void cancelAndModify() {
+        var user = user("lots", db());
+        var sent = new LinkedList<Order>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                super.quote(order, listener);
+            }
+        };
+        var errors = new LinkedList<Throwable>();
+        var canceled = new LinkedList<Long>();
+        var listener = new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                errors.add(error);
+            }
+
+            @Override
+            public void onCancel(String orderId, Long quantity) {
+                canceled.add(quantity);
+            }
+        };
+        var env = new BotEnvironment(user, new ErrorLogger(), tx, new InMemoryDatafeed());
+        // Fill part of the order and cancel the rest.
+        env.quote(order("lots", "cancel", Order.BUY, Order.OPEN, 5L), listener);
+        tx.fill(sent.getLast(), 2, 2651.0D);
+        assertEquals(3, env.getOrderBook().get("cancel").getRemaining());
+        env.cancel("cancel");
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(List.of(3L), canceled);
+        assertNull(env.getOrderBook().get("cancel"));
+        // Frozen lots are released on confirm.
+        assertEquals(2, count(user, UserPosition.NORMAL));
+        assertEquals(0, count(user, UserPosition.FROZEN_OPEN));
+        assertEquals(0.0D, user.getTotalFrozenCommission());
+        // Modify re-quotes under a versioned gateway id, found by the quoted id.
+        env.quote(order("lots", "modify", Order.BUY, Order.OPEN, 4L), listener);
+        env.modify("modify", 2640.0D, 1L);
+        var w = env.getOrderBook().get("modify");
+        assertNotNull(w);
+        assertEquals(WorkingOrder.WORKING, w.getState());
+        assertEquals("modify#1", sent.getLast().getId());
+        assertEquals("modify#1", w.getOrder().getId());
+        assertEquals(1, w.getRemaining());
+        assertEquals(2640.0D, sent.getLast().getPrice());
+        assertEquals(1, count(user, UserPosition.FROZEN_OPEN));
+        tx.fill(sent.getLast(), 1, 2640.0D);
+        assertNull(env.getOrderBook().get("modify"));
+        assertEquals(WorkingOrder.FILLED, w.getState());
+        assertEquals(3, count(user, UserPosition.NORMAL));
+        assertEquals(List.of(3L), canceled);
+        // Unknown order.
+        assertThrows(OrderNotFoundError.class, () -> env.cancel("modify"));
+    }
+
+    @Test
+    public void rejectPartlyFilled() {
+        var user = user("rejected", db());
+        var sent = new LinkedList<Order>();
+        var listeners = new LinkedList<OrderListener>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                listeners.add(listener);
+                super.quote(order, listener);
+            }
+        };
+        var errors = new LinkedList<Throwable>();
+        var env = new BotEnvironment(user, new ErrorLogger(), tx, new InMemoryDatafeed());
+        var open = order("rejected", "rejected", Order.BUY, Order.OPEN, 3L);
+        env.quote(open, listener(errors));
+        var w = env.getOrderBook().get("rejected");
+        tx.fill(sent.getLast(), 1, 2651.0D);
+        // Gateway rejects the rest after a partial fill.
+        listeners.getLast().onError(new IllegalStateException("Rejected."));
+        assertEquals(WorkingOrder.REJECTED, w.getState());
+        assertEquals(1, w.getFilled());
+        assertEquals(0, w.getRemaining());
+        assertNull(env.getOrderBook().get("rejected"));
+        assertEquals(1, errors.size());
+        assertEquals(1, count(user, UserPosition.NORMAL));
+        assertEquals(0, count(user, UserPosition.FROZEN_OPEN));
+        // Error of the done leg is ignored.
+        listeners.getLast().onError(new IllegalStateException("Rejected."));
+        assertEquals(WorkingOrder.REJECTED, w.getState());
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void replayFailedTrade() {
+        // Fee query fails once when the trade is applied.
+        var failures = new int[]{0};
+        var persistence = new DelegatingUserPersistence(db()) {
+            @Override
+            public Double getCommission(String symbol, Double price, Character direction,
+                    Character offset) {
+                if (failures[0]-- > 0) {
+                    throw new DataQueryError("Commission", null);
+                }
+                return super.getCommission(symbol, price, direction, offset);
+            }
+        };
+        var user = user("replay", persistence);
+        var listeners = new LinkedList<OrderListener>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                listeners.add(listener);
+            }
+        };
+        var errors = new LinkedList<Throwable>();
+        var trades = new LinkedList<Trade>();
+        var env = new BotEnvironment(user, new ErrorLogger(), tx, new InMemoryDatafeed());
+        var open = order("replay", "replay", Order.BUY, Order.OPEN, 2L);
+        env.quote(open, new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+                trades.add(trade);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                errors.add(error);
+            }
+        });
+        var trade = trade("T-replay", open, 2651.0D);
+        // Failed trade is not applied nor forwarded, lots stay frozen.
+        failures[0] = 1;
+        listeners.getLast().onTrade(trade);
+        assertEquals(1, errors.size());
+        assertTrue(trades.isEmpty());
+        assertEquals(2, count(user, UserPosition.FROZEN_OPEN));
+        assertTrue(db().getTrades("replay").isEmpty());
+        // Replay applies the same lots.
+        listeners.getLast().onTrade(trade);
+        assertEquals(1, errors.size());
+        assertEquals(1, trades.size());
+        assertEquals(2, count(user, UserPosition.NORMAL));
+        assertEquals(0, count(user, UserPosition.FROZEN_OPEN));
+        // Second replay is a duplicate.
+        listeners.getLast().onTrade(trade);
+        assertEquals(1, trades.size());
+        assertEquals(1, db().getTrades("replay").size());
+    }
+
+    @Test
+    public void replayPartlyAppliedTrade() {
+        // Writes of the second lot fail after the first lot is changed.
+        var positionCalls = new int[]{-1};
+        var cashCalls = new int[]{-1};
+        var persistence = new DelegatingUserPersistence(db()) {
+            @Override
+            public void alterUserPosition(String user, UserPosition position, Character alter) {
+                if (--positionCalls[0] == 0) {
+                    throw new DataUpdateError("Position", null);
+                }
+                super.alterUserPosition(user, position, alter);
+            }
+
+            @Override
+            public void alterUserCash(String user, UserCash cash, Character alter) {
+                if (--cashCalls[0] == 0) {
+                    throw new DataInsertionError("Cash", null);
+                }
+                super.alterUserCash(user, cash, alter);
+            }
+        };
+        var user = user("partial", persistence);
+        var listeners = new LinkedList<OrderListener>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                listeners.add(listener);
+            }
+        };
+        var errors = new LinkedList<Throwable>();
+        var env = new BotEnvironment(user, new ErrorLogger(), tx, new InMemoryDatafeed());
+        var open = order("partial", "partial-open", Order.BUY, Order.OPEN, 2L);
+        env.quote(open, listener(errors));
+        var trade = trade("T-partial-open", open, 2651.0D);
+        positionCalls[0] = 2;
+        listeners.getLast().onTrade(trade);
+        assertEquals(1, errors.size());
+        assertEquals(2, count(user, UserPosition.FROZEN_OPEN));
+        assertEquals(0.0D, user.getTotalCommission());
+        // Replay opens both lots once.
+        listeners.getLast().onTrade(trade);
+        listeners.getLast().onTrade(trade);
+        assertEquals(1, errors.size());
+        assertEquals(2, count(user, UserPosition.NORMAL));
+        assertEquals(2.0D, user.getTotalCommission());
+        var close = order("partial", "partial-close", Order.SELL, Order.CLOSE, 2L);
+        env.quote(close, listener(errors));
+        trade = trade("T-partial-close", close, 2661.0D);
+        cashCalls[0] = 2;
+        listeners.getLast().onTrade(trade);
+        assertEquals(2, errors.size());
+        assertEquals(2, count(user, UserPosition.FROZEN_CLOSE));
+        assertTrue(user.getCashes().isEmpty());
+        // Replay closes both lots once.
+        listeners.getLast().onTrade(trade);
+        listeners.getLast().onTrade(trade);
+        assertEquals(2, errors.size(), errors.toString());
+        assertTrue(user.getPositions().isEmpty());
+        assertEquals(2, user.getCashes().size());
+        assertEquals(200.0D, user.getTotalCloseProfit());
+        assertEquals(2, db().getTrades("partial").size());
+    }
+
+    private Trade trade(String id, Order order, Double price) {
+        var t = new Trade();
+        t.setId(id);
+        t.setOrderId(order.getId());
+        t.setSymbol(order.getSymbol());
+        t.setExchange(order.getExchange());
+        t.setDirection(order.getDirection());
+        t.setOffset(order.getOffset());
+        t.setPrice(price);
+        t.setQuantity(order.getQuantity());
+        t.setTradingDay(TRADING_DAY);
+        return t;
+    }
+
+    private UserPosition lot(String symbol, String tradingDay) {
+        var x = new UserPosition();
+        x.setId(User.nextId());
+        x.setUser("yd");
+        x.setSymbol(symbol);
+        x.setExchange("DCE");
+        x.setPrice(2600.0D);
+        x.setMultiple(10L);
+        x.setMargin(2600.0D);
+        x.setDirection(UserPosition.LONG);
+        x.setOpenTradingDay(tradingDay);
+        x.setOpenTime(tradingDay + " 14:00:00 000");
+        x.setState(UserPosition.NORMAL);
+        return x;
+    }
+
     private JdbcUserPersistence db() {
         return p;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Candle;
+import org.tikware.api.CandleListener;
+import org.tikware.api.Tick;
+import org.tikware.sim.ReplayDatafeed;
+import org.tikware.user.MemoryUserPersistence;
+import org.tikware.user.TradingCalendar;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CandleAggregatorTest {
+    private final LocalDate day = LocalDate.of(2021, 5, 31);
+
+    @Test
+    public void buildFromTicks() {
+        var feed = new ReplayDatafeed(new ErrorLogger());
+        var a = new CandleAggregator(feed, CandleAggregator.FROM_TICK, new ErrorLogger());
+        var candles = new LinkedList<String>();
+        for (var m : new int[]{1, 5, CandleListener.DAILY}) {
+            a.subscribe("c2109", m, listener(candles));
+        }
+        feed.publish(tick("09:00:10", 10, 100));
+        feed.publish(tick("09:01:20", 12, 130));
+        feed.publish(tick("09:03:00", 9, 150));
+        feed.publish(tick("09:04:59", 11, 160));
+        // Next minute ends the 5-minute candle.
+        feed.publish(tick("09:05:01", 13, 170));
+        assertEquals(List.of("1@09:00 10.0/10.0/10.0/10.0/0", "1@09:01 12.0/12.0/12.0/12.0/30",
+                "1@09:03 9.0/9.0/9.0/9.0/20", "1@09:04 11.0/11.0/11.0/11.0/10",
+                "5@09:00 10.0/12.0/9.0/11.0/60"), candles);
+        candles.clear();
+        a.closeTradingDay("c2109");
+        assertEquals(List.of("1@09:05 13.0/13.0/13.0/13.0/10", "5@09:05 13.0/13.0/13.0/13.0/10",
+                "1440@09:00 10.0/13.0/9.0/13.0/70"), candles);
+    }
+
+    @Test
+    public void buildFromCandles() {
+        var feed = new ReplayDatafeed(new ErrorLogger());
+        var a = new CandleAggregator(feed, CandleAggregator.FROM_CANDLE, new ErrorLogger());
+        var candles = new LinkedList<String>();
+        a.subscribe("c2109", 30, listener(candles));
+        feed.publish(candle("11:28", 10, 5));
+        // Last minute of the session ends the candle without waiting for afternoon.
+        feed.publish(candle("11:29", 11, 5));
+        assertEquals(List.of("30@11:00 10.0/11.0/10.0/11.0/10"), candles);
+        feed.publish(candle("13:30", 12, 5));
+        a.closeSession("c2109");
+        assertEquals(List.of("30@11:00 10.0/11.0/10.0/11.0/10", "30@13:30 12.0/12.0/12.0/12.0/5"),
+                candles);
+    }
+
+    @Test
+    public void closeAllSymbols() {
+        var feed = new ReplayDatafeed(new ErrorLogger());
+        var a = new CandleAggregator(feed, CandleAggregator.FROM_CANDLE, new ErrorLogger());
+        var calendar = new TradingCalendar(new MemoryUserPersistence());
+        calendar.addListener(a);
+        var candles = new LinkedList<String>();
+        for (var s : new String[]{"c2109", "m2109"}) {
+            a.subscribe(s, 5, listener(candles));
+            a.subscribe(s, CandleListener.DAILY, listener(candles));
+            var c = candle("14:58", 10, 5);
+            c.setSymbol(s);
+            feed.publish(c);
+        }
+        // Session close publishes intraday candles of every symbol.
+        a.closeSession();
+        assertEquals(List.of("5@14:55 10.0/10.0/10.0/10.0/5", "5@14:55 10.0/10.0/10.0/10.0/5"),
+                candles);
+        candles.clear();
+        // Calendar moving to next day publishes daily candles.
+        calendar.setTradingDay("20210601");
+        assertEquals(List.of("1440@14:58 10.0/10.0/10.0/10.0/5",
+                "1440@14:58 10.0/10.0/10.0/10.0/5"), candles);
+    }
+
+    private CandleListener listener(List<String> candles) {
+        return (c, minutes, realtime) -> candles.add(
+                minutes + "@" + c.getTime().toLocalTime() + " " + c.getOpenPrice() + "/"
+                + c.getHighPrice() + "/" + c.getLowPrice() + "/" + c.getClosePrice() + "/"
+                + c.getVolume());
+    }
+
+    private Tick tick(String time, double price, long dayVolume) {
+        var t = new Tick();
+        t.setSymbol("c2109");
+        t.setPrice(price);
+        t.setDayVolume(dayVolume);
+        t.setTradingDay(day);
+        t.setTime(LocalDateTime.parse(day + "T" + time));
+        return t;
+    }
+
+    private Candle candle(String time, double price, long volume) {
+        var c = new Candle();
+        c.setSymbol("c2109");
+        c.setOpenPrice(price);
+        c.setHighPrice(price);
+        c.setLowPrice(price);
+        c.setClosePrice(price);
+        c.setVolume(volume);
+        c.setTradingDay(day);
+        c.setTime(LocalDateTime.parse(day + "T" + time));
+        return c;
+    }
+}
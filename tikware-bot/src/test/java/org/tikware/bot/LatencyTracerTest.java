@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.bot.mem.InMemoryDatafeed;
+import org.tikware.bot.mem.InMemoryTransaction;
+import org.tikware.user.DataQueryError;
+import org.tikware.user.DelegatingUserPersistence;
+import org.tikware.user.JdbcUserPersistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.tikware.bot.mem.Fixture.*;
+
+public class LatencyTracerTest {
+    private JdbcUserPersistence p;
+
+    @BeforeEach
+    public void prepare() {
+        p = persistence();
+    }
+
+    @Test
+    public void reuseSlot() {
+        // Two slots, the third trace takes the slot of the first.
+        var tracer = new LatencyTracer(2, 2);
+        tracer.begin("a");
+        tracer.begin("b");
+        tracer.begin("c");
+        assertEquals(2, tracer.getActive());
+        tracer.mark("a", LatencyTracer.PERSIST);
+        assertEquals(0, tracer.getTotal().getCount());
+        tracer.mark("c", LatencyTracer.PERSIST);
+        tracer.mark("b", LatencyTracer.PERSIST);
+        assertEquals(0, tracer.getActive());
+        assertEquals(2, tracer.getTotal().getCount());
+        assertEquals(List.of("b", "c"), ids(tracer).stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void evictFastest() throws InterruptedException {
+        var tracer = new LatencyTracer(8, 2);
+        trace(tracer, "fast-1", 0);
+        trace(tracer, "slow-1", 20);
+        trace(tracer, "fast-2", 0);
+        trace(tracer, "slow-2", 10);
+        trace(tracer, "fast-3", 0);
+        assertEquals(5, tracer.getTotal().getCount());
+        assertEquals(List.of("slow-1", "slow-2"), ids(tracer));
+    }
+
+    @Test
+    public void traceLatency() {
+        var user = user("trace", p);
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var tx = new InMemoryTransaction();
+        var pipeline = QuotePipeline.direct(tx);
+        var tracer = new LatencyTracer(4, 2);
+        pipeline.setTracer(tracer);
+        var env = new BotEnvironment(user, new ErrorLogger(), pipeline, new InMemoryDatafeed());
+        var orders = new ArrayList<Order>();
+        for (int i = 0; i < 3; ++i) {
+            var o = order("trace", "t-" + i, Order.BUY, Order.OPEN, 2L);
+            orders.add(o);
+            env.quote(o, listener(errors));
+        }
+        assertEquals(3, tracer.getActive());
+        for (var o : orders) {
+            tx.fill(o, 1, 2650.0D);
+            tx.fill(o, 1, 2650.0D);
+        }
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(0, tracer.getActive());
+        assertEquals(3, tracer.getTotal().getCount());
+        assertEquals(3, tracer.getHistogram(LatencyTracer.SEND).getCount());
+        // Slowest two with all stages.
+        var slowest = tracer.getSlowest();
+        assertEquals(2, slowest.size());
+        assertTrue(slowest.get(0).getTotal() >= slowest.get(1).getTotal());
+        for (int i = LatencyTracer.QUOTE; i < LatencyTracer.PERSIST; ++i) {
+            assertTrue(slowest.get(0).getLatency(i, i + 1) >= 0, slowest.get(0).toString());
+        }
+    }
+
+    @Test
+    public void traceOnlyAppliedFill() {
+        var failures = new int[]{0};
+        var user = user("trace-fail", new DelegatingUserPersistence(p) {
+            @Override
+            public Double getCommission(String symbol, Double price, Character direction,
+                    Character offset) {
+                if (failures[0]-- > 0) {
+                    throw new DataQueryError("Commission", null);
+                }
+                return super.getCommission(symbol, price, direction, offset);
+            }
+        });
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var tx = new InMemoryTransaction();
+        var pipeline = QuotePipeline.direct(tx);
+        var tracer = new LatencyTracer(4, 2);
+        pipeline.setTracer(tracer);
+        var env = new BotEnvironment(user, new ErrorLogger(), pipeline, new InMemoryDatafeed());
+        var o = order("trace-fail", "tf-0", Order.BUY, Order.OPEN, 2L);
+        env.quote(o, listener(errors));
+        // Fill that fails to apply is not persisted.
+        failures[0] = 1;
+        tx.fill(o, 1, 2650.0D);
+        assertEquals(1, errors.size());
+        assertEquals(1, tracer.getActive());
+        assertEquals(0, tracer.getTotal().getCount());
+        tx.fill(o, 1, 2650.0D);
+        assertEquals(0, tracer.getActive());
+        assertEquals(1, tracer.getTotal().getCount());
+    }
+
+    @Test
+    public void traceModifiedOrder() {
+        var user = user("trace-modify", p);
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var sent = new ArrayList<Order>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                super.quote(order, listener);
+            }
+        };
+        var pipeline = QuotePipeline.direct(tx);
+        var tracer = new LatencyTracer(4, 2);
+        pipeline.setTracer(tracer);
+        var env = new BotEnvironment(user, new ErrorLogger(), pipeline, new InMemoryDatafeed());
+        env.quote(order("trace-modify", "tm-0", Order.BUY, Order.OPEN, 2L), listener(errors));
+        env.modify("tm-0", 2640.0D, 1L);
+        assertEquals("tm-0#1", sent.get(1).getId());
+        // Fill of the new quote completes the trace of the quoted id.
+        tx.fill(sent.get(1), 1, 2640.0D);
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(0, tracer.getActive());
+        assertEquals(1, tracer.getTotal().getCount());
+        assertEquals("tm-0", tracer.getSlowest().get(0).getOrderId());
+    }
+
+    private static void trace(LatencyTracer tracer, String id, long millis)
+            throws InterruptedException {
+        tracer.begin(id);
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+        tracer.mark(id, LatencyTracer.PERSIST);
+    }
+
+    private static List<String> ids(LatencyTracer tracer) {
+        return tracer.getSlowest().stream().map(LatencyTracer.TraceRecord::getOrderId)
+                     .collect(Collectors.toList());
+    }
+}
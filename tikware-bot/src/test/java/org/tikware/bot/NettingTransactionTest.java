@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.api.Trade;
+import org.tikware.bot.mem.InMemoryDatafeed;
+import org.tikware.bot.mem.InMemoryTransaction;
+import org.tikware.user.*;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.tikware.bot.mem.Fixture.*;
+
+public class NettingTransactionTest {
+    private JdbcUserPersistence p;
+
+    @BeforeEach
+    public void prepare() {
+        p = persistence();
+    }
+
+    @Test
+    public void netOpposingOrders() {
+        var buyer = user("buyer", p);
+        var seller = user("seller", p);
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var sent = new ConcurrentLinkedQueue<Order>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                super.quote(order, listener);
+            }
+        };
+        // Long window so orders are matched on flush.
+        var netting = new NettingTransaction(tx, Duration.ofSeconds(10));
+        var b = new BotEnvironment(buyer, new ErrorLogger(), netting, new InMemoryDatafeed());
+        var s = new BotEnvironment(seller, new ErrorLogger(), netting, new InMemoryDatafeed());
+        b.quote(order("buyer", "n-1", Order.BUY, Order.OPEN, 3L), listener(errors));
+        s.quote(order("seller", "n-2", Order.SELL, Order.OPEN, 2L), listener(errors));
+        netting.close();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(4, netting.getCrossed());
+        assertEquals(1, netting.getSent());
+        // Only the net quantity reaches gateway.
+        assertEquals(1, sent.size());
+        assertEquals("n-1", sent.peek().getId());
+        assertEquals(1L, sent.peek().getQuantity());
+        assertEquals(2, count(buyer, UserPosition.NORMAL));
+        assertEquals(1, count(buyer, UserPosition.FROZEN_OPEN));
+        assertEquals(2, count(seller, UserPosition.NORMAL));
+        // Gateway fills the rest.
+        tx.fill(sent.peek(), 1, 2650.0D);
+        assertEquals(3, count(buyer, UserPosition.NORMAL));
+    }
+
+    @Test
+    public void cancelDuringSend() throws InterruptedException {
+        var events = new ConcurrentLinkedQueue<String>();
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                events.add("quote " + order.getId());
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                super.quote(order, listener);
+            }
+
+            @Override
+            public void cancel(String orderId) {
+                events.add("cancel " + orderId);
+                super.cancel(orderId);
+            }
+        };
+        var netting = new NettingTransaction(tx, Duration.ofSeconds(10));
+        netting.quote(order("c", "c-1", Order.BUY, Order.OPEN, 2L), recorder(events));
+        var flush = new Thread(netting::flush);
+        flush.start();
+        entered.await();
+        // Order is taken from the window but not sent yet.
+        netting.cancel("c-1");
+        release.countDown();
+        flush.join();
+        assertEquals(List.of("quote c-1", "cancel c-1", "c-1:cancel 2"), List.copyOf(events));
+        netting.close();
+    }
+
+    @Test
+    public void reportFailedSend() {
+        var events = new ConcurrentLinkedQueue<String>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quoteBatch(List<Order> orders, List<OrderListener> listeners) {
+                throw new IllegalStateException("Gateway down.");
+            }
+        };
+        var netting = new NettingTransaction(tx, Duration.ofSeconds(10));
+        netting.quote(order("f", "f-1", Order.BUY, Order.OPEN, 1L), recorder(events));
+        netting.quote(order("f", "f-2", Order.BUY, Order.OPEN, 2L), recorder(events));
+        netting.close();
+        assertEquals(List.of("Gateway down.", "Gateway down."), List.copyOf(events));
+        assertEquals(3, netting.getSent());
+    }
+
+    @Test
+    public void rejectDuplicateId() {
+        var first = new ConcurrentLinkedQueue<String>();
+        var second = new ConcurrentLinkedQueue<String>();
+        var sent = new ConcurrentLinkedQueue<Order>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                super.quote(order, listener);
+            }
+        };
+        var netting = new NettingTransaction(tx, Duration.ofSeconds(10));
+        // Ids are unique per bot only, the same id of another bot is rejected.
+        netting.quote(order("d-1", "d", Order.BUY, Order.OPEN, 1L), recorder(first));
+        netting.quote(order("d-2", "d", Order.BUY, Order.OPEN, 2L), recorder(second));
+        assertEquals(List.of("d"), List.copyOf(second));
+        netting.cancel("d");
+        netting.close();
+        assertEquals(List.of("d:cancel 1"), List.copyOf(first));
+        assertTrue(sent.isEmpty());
+    }
+
+    private OrderListener recorder(Collection<String> events) {
+        return new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+                events.add(trade.getOrderId() + ":" + trade.getQuantity());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                events.add(error.getMessage());
+            }
+
+            @Override
+            public void onCancel(String orderId, Long quantity) {
+                events.add(orderId + ":cancel " + quantity);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.bot.mem.InMemoryDatafeed;
+import org.tikware.bot.mem.InMemoryTransaction;
+import org.tikware.user.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.tikware.bot.mem.Fixture.*;
+
+public class QuotePipelineTest {
+    private JdbcUserPersistence p;
+
+    @BeforeEach
+    public void prepare() {
+        p = persistence();
+    }
+
+    @Test
+    public void multipleProducers() throws InterruptedException {
+        var user = user("pipeline", p);
+        var tx = new InMemoryTransaction();
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var orders = new ConcurrentLinkedQueue<Order>();
+        var pipeline = new QuotePipeline(tx, 4, new BlockingWaitStrategy());
+        var env = new BotEnvironment(user, new ErrorLogger(), pipeline, new InMemoryDatafeed());
+        var threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            var n = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10; ++j) {
+                    var o = order("pipeline", n + "-" + j, Order.BUY, Order.OPEN, 1L);
+                    orders.add(o);
+                    env.quote(o, listener(errors));
+                }
+            });
+            threads[i].start();
+        }
+        for (var t : threads) {
+            t.join();
+        }
+        pipeline.close();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(0, pipeline.getPending());
+        assertEquals(40, count(user, UserPosition.FROZEN_OPEN));
+        // Fill one order.
+        tx.fill(orders.peek(), 1, 2651.0D);
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(1, count(user, UserPosition.NORMAL));
+        // Closed pipeline rejects quotes.
+        env.quote(order("pipeline", "closed", Order.BUY, Order.OPEN, 1L), listener(errors));
+        assertEquals(1, errors.size());
+        assertTrue(errors.peek() instanceof PipelineClosedError);
+    }
+
+    @Test
+    public void batchQuotes() {
+        var user = user("batch", p);
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var sizes = new ConcurrentLinkedQueue<Integer>();
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quoteBatch(List<Order> orders, List<OrderListener> listeners) {
+                sizes.add(orders.size());
+                super.quoteBatch(orders, listeners);
+            }
+        };
+        // Long window so the batch is closed by its size.
+        var pipeline = new QuotePipeline(tx, 16, new YieldingWaitStrategy(),
+                Duration.ofSeconds(10), 5);
+        var env = new BotEnvironment(user, new ErrorLogger(), pipeline, new InMemoryDatafeed());
+        for (int i = 0; i < 10; ++i) {
+            env.quote(order("batch", "b-" + i, Order.BUY, Order.OPEN, 1L), listener(errors));
+        }
+        pipeline.close();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(List.of(5, 5), List.copyOf(sizes));
+        assertEquals(2, pipeline.getBatches());
+        assertEquals(10, pipeline.getBatchedOrders());
+    }
+
+    @Test
+    public void directValidation() {
+        var user = user("direct", p);
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var env = new BotEnvironment(user, new ErrorLogger(), new InMemoryTransaction(),
+                new InMemoryDatafeed());
+        env.quote(order("direct", "zero", Order.BUY, Order.OPEN, 0L), listener(errors));
+        env.quote(order("direct", "offset", Order.BUY, Order.CLOSE_TODAY, 1L), listener(errors));
+        assertEquals(2, errors.size());
+        assertTrue(errors.poll() instanceof IllegalQuantityError);
+        assertTrue(errors.poll() instanceof IllegalOffsetError);
+    }
+}
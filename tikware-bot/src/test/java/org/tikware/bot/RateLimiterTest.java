@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.bot.mem.InMemoryDatafeed;
+import org.tikware.bot.mem.InMemoryTransaction;
+import org.tikware.user.JdbcUserPersistence;
+import org.tikware.user.UserPosition;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.tikware.bot.mem.Fixture.*;
+
+public class RateLimiterTest {
+    private JdbcUserPersistence p;
+
+    @BeforeEach
+    public void prepare() {
+        p = persistence();
+    }
+
+    @Test
+    public void rejectByUserAndExchange() {
+        // Slow refill so no token comes back during the test.
+        var l = new RateLimiter(2, 0.01D, 3, 0.01D, RateLimiter.REJECT, Duration.ZERO);
+        l.setUserLimit("d", 1, 0.01D);
+        assertEquals(0, l.acquire("a", "DCE"));
+        assertEquals(0, l.acquire("a", "DCE"));
+        assertEquals(-1, l.acquire("a", "DCE"));
+        assertEquals(0, l.acquire("b", "DCE"));
+        // Exchange is exhausted, the token of the user is given back.
+        assertEquals(-1, l.acquire("c", "DCE"));
+        assertEquals(0, l.acquire("c", "SHFE"));
+        assertEquals(0, l.acquire("c", "SHFE"));
+        assertEquals(-1, l.acquire("c", "SHFE"));
+        // User limit overrides the default.
+        assertEquals(0, l.acquire("d", "SHFE"));
+        assertEquals(-1, l.acquire("d", "SHFE"));
+        assertEquals(4, l.getRejected());
+        assertEquals(0, l.getQueued());
+        var throttles = l.getThrottles();
+        assertEquals(1L, throttles.get("user:a"));
+        assertEquals(1L, throttles.get("user:c"));
+        assertEquals(1L, throttles.get("user:d"));
+        assertEquals(1L, throttles.get("exchange:DCE"));
+        assertEquals(0L, throttles.get("exchange:SHFE"));
+        l.close();
+    }
+
+    @Test
+    public void rejectQuote() {
+        var user = user("rate-reject", p);
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var env = new BotEnvironment(user, new ErrorLogger(), new InMemoryTransaction(),
+                new InMemoryDatafeed());
+        var l = new RateLimiter(1, 0.01D, 10, 0.01D, RateLimiter.REJECT, Duration.ZERO);
+        env.setRateLimiter(l);
+        env.quote(order("rate-reject", "r-0", Order.BUY, Order.OPEN, 1L), listener(errors));
+        env.quote(order("rate-reject", "r-1", Order.BUY, Order.OPEN, 1L), listener(errors));
+        // Rejected before any lot is frozen.
+        assertEquals(1, errors.size());
+        assertTrue(errors.peek() instanceof RateLimitError);
+        assertEquals(1, count(user, UserPosition.FROZEN_OPEN));
+        assertNull(env.getOrderBook().get("r-1"));
+        l.close();
+    }
+
+    @Test
+    public void queueQuote() throws InterruptedException {
+        var user = user("rate-queue", p);
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        var sent = new ConcurrentLinkedQueue<Order>();
+        var done = new CountDownLatch(3);
+        var tx = new InMemoryTransaction() {
+            @Override
+            public void quote(Order order, OrderListener listener) {
+                sent.add(order);
+                done.countDown();
+            }
+        };
+        var env = new BotEnvironment(user, new ErrorLogger(), tx, new InMemoryDatafeed());
+        // One token at once, refilled every 100ms.
+        var l = new RateLimiter(1, 10.0D, 10, 10.0D, RateLimiter.QUEUE, Duration.ofSeconds(1));
+        env.setRateLimiter(l);
+        var begin = System.nanoTime();
+        for (int i = 0; i < 3; ++i) {
+            env.quote(order("rate-queue", "q-" + i, Order.BUY, Order.OPEN, 1L),
+                    listener(errors));
+        }
+        assertEquals(2, l.getQueued());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Queued quotes are sent in order after refill.
+        assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals("q-0,q-1,q-2", String.join(",", sent.stream().map(Order::getId)
+                                                         .toArray(String[]::new)));
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(0, l.getRejected());
+        assertEquals(Map.of("user:rate-queue", 0L, "exchange:DCE", 0L), l.getThrottles());
+        l.close();
+    }
+}
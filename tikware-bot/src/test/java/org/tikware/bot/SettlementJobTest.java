@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.bot.mem.InMemoryDatafeed;
+import org.tikware.bot.mem.InMemoryTransaction;
+import org.tikware.user.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SettlementJobTest {
+    private final MemoryUserPersistence p = new MemoryUserPersistence();
+    private final List<String> logs = new ArrayList<>();
+    private final SettlementJob job = new SettlementJob((message, error) -> logs.add(message));
+
+    @Test
+    public void settleSharedUserOnce() {
+        p.addTradingDay("20210603");
+        var calendar = new TradingCalendar(p);
+        calendar.addListener(job);
+        var shared = newUser("settle-shared", 1000.0D, p, calendar);
+        var other = newUser("settle-other", 2000.0D, p, calendar);
+        var a = environment(shared);
+        var b = environment(shared);
+        var c = environment(other);
+        calendar.setTradingDay("20210604");
+        assertTrue(logs.isEmpty(), logs.toString());
+        assertNotSame(shared, a.getUser());
+        assertSame(a.getUser(), b.getUser());
+        assertEquals("20210604", a.getUser().getBalance().getTradingDay());
+        assertEquals(1000.0D, a.getUser().getBalance().getBalance());
+        assertEquals(2000.0D, c.getUser().getBalance().getBalance());
+        // Unregistered environment keeps its user.
+        job.unregister(c);
+        var settled = c.getUser();
+        calendar.setTradingDay("20210607");
+        assertSame(settled, c.getUser());
+        assertEquals("20210607", a.getUser().getBalance().getTradingDay());
+    }
+
+    @Test
+    public void logFailedSettlement() {
+        p.addTradingDay("20210603");
+        var calendar = new TradingCalendar(p);
+        calendar.addListener(job);
+        var failing = new DelegatingUserPersistence(p) {
+            @Override
+            public void alterUserBalance(String user, UserBalance balance, Character alter) {
+                throw new DataInsertionError("Balance", null);
+            }
+        };
+        var broken = newUser("settle-broken", 1000.0D, failing, calendar);
+        var good = newUser("settle-good", 1000.0D, p, calendar);
+        var a = environment(broken);
+        var b = environment(good);
+        calendar.setTradingDay("20210604");
+        // Failed user is kept, the others are still settled.
+        assertEquals(List.of("Settlement failed: settle-broken/20210604."), logs);
+        assertSame(broken, a.getUser());
+        assertNotSame(good, b.getUser());
+    }
+
+    private BotEnvironment environment(User user) {
+        var e = new BotEnvironment(user, new ErrorLogger(), new InMemoryTransaction(),
+                new InMemoryDatafeed());
+        job.register(e);
+        return e;
+    }
+
+    private User newUser(String name, double balance, UserPersistence persistence,
+            TradingCalendar calendar) {
+        var b = new UserBalance();
+        b.setId(User.nextId());
+        b.setUser(name);
+        b.setBalance(balance);
+        b.setTradingDay("20210603");
+        b.setTime("20210603 15:00:00 000");
+        return new User(b, List.of(), List.of(), List.of(), persistence, calendar);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.api.CandleListener;
+import org.tikware.api.Tick;
+import org.tikware.api.TickListener;
+import org.tikware.spi.Datafeed;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TickDispatcherTest {
+    @Test
+    public void conflateSlowListener() throws InterruptedException {
+        var upstream = new ArrayList<TickListener>();
+        var d = new TickDispatcher(upstream(upstream), 2, new ErrorLogger());
+        var fast = new ConcurrentLinkedQueue<Double>();
+        var slow = new ConcurrentLinkedQueue<Double>();
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var done = new CountDownLatch(2);
+        TickListener fastListener = (tick, realtime) -> {
+            fast.add(tick.getPrice());
+            if (tick.getPrice() == 999) {
+                done.countDown();
+            }
+        };
+        TickListener slowListener = (tick, realtime) -> {
+            slow.add(tick.getPrice());
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            if (tick.getPrice() == 999) {
+                done.countDown();
+            }
+        };
+        d.subscribe("c2109", fastListener);
+        d.subscribe("c2109", slowListener);
+        assertEquals(1, upstream.size());
+        upstream.get(0).onTick(tick(0), true);
+        started.await();
+        for (int i = 1; i < 1000; ++i) {
+            upstream.get(0).onTick(tick(i), true);
+        }
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        d.close();
+        // Every tick is either delivered or conflated, in order, ending with the latest.
+        var seen = List.copyOf(fast);
+        assertEquals(999.0D, seen.get(seen.size() - 1));
+        for (int i = 1; i < seen.size(); ++i) {
+            assertTrue(seen.get(i - 1) < seen.get(i));
+        }
+        assertEquals(1000, d.getDelivered(fastListener) + d.getConflated(fastListener));
+        // Slow listener gets the tick it was blocked on and then only the latest.
+        assertEquals(List.of(0.0D, 999.0D), List.copyOf(slow));
+        assertEquals(998, d.getConflated(slowListener));
+    }
+
+    @Test
+    public void yieldAfterBatch() {
+        var upstream = new ArrayList<TickListener>();
+        var tasks = new LinkedList<Runnable>();
+        var d = new TickDispatcher(upstream(upstream), tasks::add, new ErrorLogger());
+        var seen = new ArrayList<String>();
+        TickListener listener = (tick, realtime) -> seen.add(tick.getSymbol());
+        var count = TickDispatcher.BATCH + 10;
+        for (int i = 0; i < count; ++i) {
+            d.subscribe("c" + i, listener);
+        }
+        for (int i = 0; i < count; ++i) {
+            upstream.get(i).onTick(tick("c" + i, i), true);
+        }
+        assertEquals(1, tasks.size());
+        // One batch gives the thread back and schedules the rest.
+        tasks.poll().run();
+        assertEquals(TickDispatcher.BATCH, seen.size());
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        assertEquals(count, seen.size());
+        assertTrue(tasks.isEmpty());
+        assertEquals(count, d.getDelivered(listener));
+    }
+
+    @Test
+    public void ignoreDuplicateSubscription() {
+        var upstream = new ArrayList<TickListener>();
+        var d = new TickDispatcher(upstream(upstream), Runnable::run, new ErrorLogger());
+        var seen = new ArrayList<Double>();
+        TickListener listener = (tick, realtime) -> seen.add(tick.getPrice());
+        d.subscribe("c2109", listener);
+        d.subscribe("c2109", listener);
+        assertEquals(1, upstream.size());
+        upstream.get(0).onTick(tick(1), true);
+        assertEquals(List.of(1.0D), seen);
+        assertEquals(1, d.getDelivered(listener));
+    }
+
+    private Datafeed upstream(List<TickListener> upstream) {
+        return new Datafeed() {
+            @Override
+            public void subscribe(String symbol, TickListener listener) {
+                upstream.add(listener);
+            }
+
+            @Override
+            public void subscribe(String symbol, CandleListener listener) {
+            }
+
+            @Override
+            public Character getTradingState(String symbol) {
+                return CONTINUOUS;
+            }
+        };
+    }
+
+    private Tick tick(double price) {
+        return tick("c2109", price);
+    }
+
+    private Tick tick(String symbol, double price) {
+        var t = new Tick();
+        t.setSymbol(symbol);
+        t.setPrice(price);
+        return t;
+    }
+}
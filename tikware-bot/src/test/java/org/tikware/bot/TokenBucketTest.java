@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TokenBucketTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void burstAndRefill() {
+        // Burst of 3, refill 10 per second.
+        var b = new TokenBucket(3, 10);
+        var now = 100 * SECOND;
+        assertEquals(0, b.reserve(now, 0));
+        assertEquals(0, b.reserve(now, 0));
+        assertEquals(0, b.reserve(now, 0));
+        assertEquals(-1, b.reserve(now, 0));
+        assertEquals(1, b.getThrottles());
+        // One token refills in 100ms.
+        assertEquals(0, b.reserve(now + SECOND / 10, 0));
+        assertEquals(-1, b.reserve(now + SECOND / 10, 0));
+        // Queue within maximum delay.
+        assertEquals(SECOND / 10, b.reserve(now + SECOND / 10, SECOND));
+        b.refund();
+        assertEquals(SECOND / 10, b.reserve(now + SECOND / 10, SECOND));
+    }
+
+    @Test
+    public void refundToIdleBucket() {
+        var b = new TokenBucket(3, 10);
+        var now = 100 * SECOND;
+        // Refunded token of an idle bucket leaves it full.
+        assertEquals(0, b.reserve(now, 0));
+        b.refund();
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(0, b.reserve(now, 0));
+        }
+        assertEquals(-1, b.reserve(now, 0));
+        // Refunded token of a partly used bucket is taken again.
+        now += SECOND;
+        assertEquals(0, b.reserve(now, 0));
+        assertEquals(0, b.reserve(now, 0));
+        b.refund();
+        assertEquals(0, b.reserve(now, 0));
+        assertEquals(0, b.reserve(now, 0));
+        assertEquals(-1, b.reserve(now, 0));
+    }
+}
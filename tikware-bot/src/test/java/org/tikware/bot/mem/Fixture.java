@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.bot.mem;
+
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.api.Trade;
+import org.tikware.user.*;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Instruments, users, orders and listeners shared by tests running over the
+ * in-memory doubles.
+ */
+public class Fixture {
+    public static final String SYMBOL = "c2109";
+    public static final String TRADING_DAY = "20210531";
+
+    /**
+     * Create in-memory persistence with trading day, price and instrument of
+     * {@link #SYMBOL}.
+     *
+     * @return persistence
+     */
+    public static JdbcUserPersistence persistence() {
+        var p = new InMemoryPersistence();
+        p.addTradingDay(TRADING_DAY);
+        p.addOrUpdatePrice(SYMBOL, 2650.0D);
+        instruments(p);
+        return p;
+    }
+
+    /**
+     * Add multiple, margin and commission ratios of {@link #SYMBOL}.
+     *
+     * @param p persistence
+     */
+    public static void instruments(UserPersistence p) {
+        p.addOrUpdateMultiple(SYMBOL, 10L);
+        for (var d : new Character[]{UserPosition.LONG, UserPosition.SHORT}) {
+            for (var o : new Character[]{Order.OPEN, Order.CLOSE}) {
+                p.addOrUpdateMarginRatio(SYMBOL, .1D, d, o, UserPersistence.RATIO_BY_AMOUNT);
+                p.addOrUpdateCommissionRatio(SYMBOL, 1.0D, d, o,
+                        UserPersistence.RATIO_BY_VOLUME);
+            }
+        }
+    }
+
+    public static User user(String name, UserPersistence p) {
+        return user(name, List.of(), p);
+    }
+
+    public static User user(String name, Collection<UserPosition> positions, UserPersistence p) {
+        var b = new UserBalance();
+        b.setId(User.nextId());
+        b.setUser(name);
+        b.setBalance(1000000.0D);
+        return new User(b, positions, List.of(), List.of(), p);
+    }
+
+    public static Order order(String user, String id, Character direction, Character offset,
+            Long quantity) {
+        var o = new Order();
+        o.setId(id);
+        o.setUser(user);
+        o.setSymbol(SYMBOL);
+        o.setExchange("DCE");
+        o.setDirection(direction);
+        o.setOffset(offset);
+        o.setPrice(2650.0D);
+        o.setQuantity(quantity);
+        return o;
+    }
+
+    /**
+     * Create listener that collects errors.
+     *
+     * @param errors errors
+     * @return order listener
+     */
+    public static OrderListener listener(Collection<Throwable> errors) {
+        return new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                errors.add(error);
+            }
+        };
+    }
+
+    public static long count(User user, Character state) {
+        return user.getPositions().values().stream().filter(x -> x.getState() == state).count();
+    }
+}
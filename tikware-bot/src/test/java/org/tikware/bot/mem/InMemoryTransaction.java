@@ -45,6 +45,20 @@ public class InMemoryTransaction implements Transaction {
         }
     }
 
+    @Override
+    public void cancel(String orderId) {
+        var it = callbacks.values().iterator();
+        while (it.hasNext()) {
+            var o = it.next();
+            if (o.order.getId().equals(orderId)) {
+                it.remove();
+                o.listener.onCancel(orderId, o.totalQuantity);
+                return;
+            }
+        }
+        throw new Error("Unknown order: " + orderId + ".");
+    }
+
     @Override
     public String getTradingDay() {
         return null;
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.api.*;
+import org.tikware.bot.ErrorLogger;
+import org.tikware.bot.mem.Fixture;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.tikware.bot.mem.Fixture.SYMBOL;
+
+public class BacktestTest {
+    private final List<Tick> ticks = List.of(
+            tick(LocalDateTime.of(2021, 5, 31, 9, 0), 2650.0D),
+            tick(LocalDateTime.of(2021, 5, 31, 9, 5), 2655.0D),
+            tick(LocalDateTime.of(2021, 6, 1, 9, 0), 2660.0D),
+            tick(LocalDateTime.of(2021, 6, 1, 9, 5), 2662.0D));
+
+    @Test
+    public void holdOvernight() {
+        var bot = new OvernightBot(1L);
+        var result = new Backtest(Fixture::instruments, new ErrorLogger())
+                .run(bot, "backtest", 100000.0D, ticks);
+        assertTrue(bot.errors.isEmpty(), bot.errors.toString());
+        assertEquals(4, result.getEvents());
+        // Bought at ask of first tick, sold at bid of the next day.
+        var trades = result.getTrades();
+        assertEquals(2, trades.size());
+        assertEquals(2651.0D, trades.get(0).getPrice());
+        assertEquals(Order.CLOSE_YD, trades.get(1).getOffset());
+        assertEquals(2659.0D, trades.get(1).getPrice());
+        assertEquals("20210601", result.getBalance().getTradingDay());
+        assertTrue(result.getEquity().size() >= 4, result.getEquity().toString());
+    }
+
+    @Test
+    public void sweepQuantities() {
+        var sweep = new ParameterSweep<Long>(new Backtest(Fixture::instruments, new ErrorLogger()),
+                OvernightBot::new, new ForkJoinPool(2));
+        var r = sweep.run(List.of(1L, 3L, 2L), 100000.0D, ticks);
+        assertEquals(List.of(3L, 2L, 1L),
+                r.stream().map(SweepResult::getParameter).collect(Collectors.toList()));
+        assertTrue(r.stream().allMatch(x -> x.getError() == null), ParameterSweep.format(r));
+        assertEquals(6, r.get(0).getResult().getTrades().stream()
+                         .mapToLong(Trade::getQuantity).sum());
+    }
+
+    private Tick tick(LocalDateTime time, double price) {
+        var t = new Tick();
+        t.setSymbol(SYMBOL);
+        t.setPrice(price);
+        t.setAskPrice(price + 1);
+        t.setAskVolume(10L);
+        t.setBidPrice(price - 1);
+        t.setBidVolume(10L);
+        t.setTradingDay(time.toLocalDate());
+        t.setTime(time);
+        return t;
+    }
+
+    private class OvernightBot implements Bot, TickListener, OrderListener {
+        private final List<Throwable> errors = new ArrayList<>();
+        private final Long quantity;
+        private Environment env;
+        private boolean bought;
+        private boolean sold;
+
+        OvernightBot(Long quantity) {
+            this.quantity = quantity;
+        }
+
+        @Override
+        public void onLoad() {
+        }
+
+        @Override
+        public void onUnload() {
+        }
+
+        @Override
+        public void onBegin(Environment env) {
+            this.env = env;
+            env.subscribe(SYMBOL, this, null);
+        }
+
+        @Override
+        public void onEnd() {
+        }
+
+        @Override
+        public void onTick(Tick tick, boolean realtime) {
+            if (!bought) {
+                bought = true;
+                env.quote(order("buy", Order.BUY, Order.OPEN, tick.getAskPrice()), this);
+            } else if (!sold && tick.getTradingDay().getDayOfMonth() == 1) {
+                sold = true;
+                env.quote(order("sell", Order.SELL, Order.CLOSE, tick.getBidPrice()), this);
+            }
+        }
+
+        private Order order(String id, Character direction, Character offset, double price) {
+            var o = new Order();
+            o.setId(id);
+            o.setUser(env.getBalance().getUser());
+            o.setSymbol(SYMBOL);
+            o.setExchange("DCE");
+            o.setDirection(direction);
+            o.setOffset(offset);
+            o.setPrice(price);
+            o.setQuantity(quantity);
+            return o;
+        }
+
+        @Override
+        public void onTrade(Trade trade) {
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+import org.tikware.api.OrderListener;
+import org.tikware.api.Tick;
+import org.tikware.api.Trade;
+import org.tikware.bot.ErrorLogger;
+import org.tikware.user.SimulatedClock;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SimulatedExchangeTest {
+    private final LocalDateTime start = LocalDateTime.of(2021, 5, 31, 9, 0);
+    private final SimulatedClock clock = new SimulatedClock(start);
+    private final SimulatedExchange exchange = new SimulatedExchange(clock, new ErrorLogger());
+    private final List<String> events = new ArrayList<>();
+
+    @Test
+    public void priceTimePriority() {
+        tick(0, 2651.0D, 2L, 2649.0D, 3L);
+        exchange.quote(order("a", Order.BUY, 2650.0D, 3L), listener());
+        exchange.quote(order("b", Order.BUY, 2650.0D, 1L), listener());
+        assertTrue(events.isEmpty(), events.toString());
+        // Sell crosses resting buys at their price, oldest first.
+        exchange.quote(order("c", Order.SELL, 2650.0D, 2L), listener());
+        assertEquals(List.of("a:2@2650.0", "c:2@2650.0"), events);
+        events.clear();
+        // Tick with one lot offered fills the head of the book only.
+        tick(1, 2650.0D, 1L, 2648.0D, 3L);
+        assertEquals(List.of("a:1@2650.0"), events);
+        events.clear();
+        exchange.cancel("b");
+        assertEquals(List.of("b:cancel 1"), events);
+        assertEquals(0, exchange.getWorkingCount());
+        assertEquals("20210531", exchange.getTradingDay());
+    }
+
+    @Test
+    public void latencyAndSlippage() {
+        exchange.setLatency(Duration.ofSeconds(1));
+        exchange.setSlippage(1.0D);
+        tick(0, 2651.0D, 10L, 2649.0D, 10L);
+        exchange.quote(order("a", Order.BUY, 2660.0D, 2L), listener());
+        tick(500, 2651.0D, 10L, 2649.0D, 10L);
+        assertTrue(events.isEmpty(), events.toString());
+        tick(1000, 2652.0D, 10L, 2650.0D, 10L);
+        assertEquals(List.of("a:2@2653.0"), events);
+        // Rejects.
+        exchange.setLatency(Duration.ZERO);
+        exchange.setRejectRate(1.0D);
+        exchange.quote(order("b", Order.SELL, 2640.0D, 1L), listener());
+        assertEquals("b:" + ExchangeRejectError.class.getSimpleName(), events.get(1));
+    }
+
+    @Test
+    public void slippageCappedAtLimit() {
+        exchange.setSlippage(2.0D);
+        tick(0, 2651.0D, 10L, 2649.0D, 10L);
+        // Slippage would cross the limit, so fills at the limit.
+        exchange.quote(order("a", Order.BUY, 2652.0D, 1L), listener());
+        exchange.quote(order("b", Order.SELL, 2648.0D, 1L), listener());
+        // Slippage within the limit applies in full.
+        exchange.quote(order("c", Order.BUY, 2660.0D, 1L), listener());
+        exchange.quote(order("d", Order.SELL, 2640.0D, 1L), listener());
+        assertEquals(List.of("a:1@2652.0", "b:1@2648.0", "c:1@2653.0", "d:1@2647.0"), events);
+    }
+
+    @Test
+    public void logListenerError() {
+        var logs = new ArrayList<String>();
+        var ex = new SimulatedExchange(clock, (message, error) -> logs.add(error.getMessage()));
+        var t = new Tick();
+        t.setSymbol("c2109");
+        t.setAskPrice(2651.0D);
+        t.setAskVolume(10L);
+        t.setBidPrice(2649.0D);
+        t.setBidVolume(10L);
+        t.setTradingDay(start.toLocalDate());
+        t.setTime(start);
+        ex.onTick(t, false);
+        var failing = new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+                throw new IllegalStateException("trade " + trade.getOrderId());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+            }
+
+            @Override
+            public void onCancel(String orderId, Long quantity) {
+            }
+        };
+        // Failed listener is logged and doesn't stop the other fills.
+        ex.quote(order("a", Order.BUY, 2651.0D, 1L), failing);
+        ex.quote(order("b", Order.BUY, 2651.0D, 1L), listener());
+        assertEquals(List.of("trade a"), logs);
+        assertEquals(List.of("b:1@2651.0"), events);
+    }
+
+    private void tick(long millis, double ask, long askVolume, double bid, long bidVolume) {
+        var t = new Tick();
+        t.setSymbol("c2109");
+        t.setAskPrice(ask);
+        t.setAskVolume(askVolume);
+        t.setBidPrice(bid);
+        t.setBidVolume(bidVolume);
+        t.setTradingDay(start.toLocalDate());
+        t.setTime(start.plus(Duration.ofMillis(millis)));
+        clock.onTick(t, false);
+        exchange.onTick(t, false);
+    }
+
+    private Order order(String id, Character direction, Double price, Long quantity) {
+        var o = new Order();
+        o.setId(id);
+        o.setUser("sim");
+        o.setSymbol("c2109");
+        o.setExchange("DCE");
+        o.setDirection(direction);
+        o.setOffset(Order.OPEN);
+        o.setPrice(price);
+        o.setQuantity(quantity);
+        return o;
+    }
+
+    private OrderListener listener() {
+        return new OrderListener() {
+            @Override
+            public void onTrade(Trade trade) {
+                events.add(trade.getOrderId() + ":" + trade.getQuantity() + "@" + trade.getPrice());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                events.add(error.getMessage() + ":" + error.getClass().getSimpleName());
+            }
+
+            @Override
+            public void onCancel(String orderId, Long quantity) {
+                events.add(orderId + ":cancel " + quantity);
+            }
+        };
+    }
+}
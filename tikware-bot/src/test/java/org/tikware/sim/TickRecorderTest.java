@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.sim;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Tick;
+import org.tikware.bot.ErrorLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TickRecorderTest {
+    private final LocalDate day = LocalDate.of(2021, 6, 1);
+    private Path dir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("tikware-tick");
+    }
+
+    @AfterEach
+    public void clear() throws IOException {
+        try (var s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void recordAndReplay() {
+        var feed = new ReplayDatafeed(new ErrorLogger());
+        // Small blocks so ticks span several blocks.
+        var recorder = new TickRecorder(dir.toString(), 4);
+        recorder.record(feed, "c2109");
+        recorder.record(feed, "m2109");
+        for (int i = 0; i < 10; ++i) {
+            feed.publish(tick("c2109", day, i * 2, 2650.0D + i, 1000L + i * 3));
+            feed.publish(tick("m2109", day, i * 2 + 1, 3600.5D - i, 500L + i));
+        }
+        feed.publish(tick("c2109", day.plusDays(1), 0, 2660.0D, 10L));
+        recorder.close();
+        assertTrue(Files.exists(dir.resolve("c2109-20210601.tick")));
+        assertTrue(Files.exists(dir.resolve("c2109-20210602.tick")));
+        // Ticks of both symbols are merged by time.
+        var replayed = new LinkedList<Tick>();
+        var n = new TickReplayer(dir.toString()).replay(Set.of("c2109", "m2109"), day,
+                day.plusDays(1), 0, (tick, realtime) -> replayed.add(copy(tick)));
+        assertEquals(21, n);
+        for (int i = 0; i < 20; ++i) {
+            var t = replayed.get(i);
+            assertEquals(i % 2 == 0 ? "c2109" : "m2109", t.getSymbol());
+            assertEquals(time(day, i), t.getTime());
+            assertEquals(day, t.getTradingDay());
+        }
+        var t = replayed.get(2);
+        assertEquals(2651.0D, t.getPrice());
+        assertEquals(2650.0D, t.getBidPrice());
+        assertEquals(2650.123456D, t.getAveragePrice());
+        assertEquals(1003L, t.getDayVolume());
+        assertNull(t.getSettlementPrice());
+        assertNull(t.getDayPosition());
+        assertEquals(3599.5D, replayed.get(3).getPrice());
+        assertEquals(day.plusDays(1), replayed.getLast().getTradingDay());
+        // Iterable returns new ticks and filters symbols and days.
+        var ticks = new LinkedList<Tick>();
+        new TickReplayer(dir.toString()).ticks(List.of("c2109"), day, day).forEach(ticks::add);
+        assertEquals(10, ticks.size());
+        assertNotSame(ticks.get(0), ticks.get(1));
+        assertEquals(2659.0D, ticks.getLast().getPrice());
+    }
+
+    private Tick tick(String symbol, LocalDate tradingDay, int second, double price,
+            long volume) {
+        var t = new Tick();
+        t.setId("T-" + second);
+        t.setSymbol(symbol);
+        t.setPrice(price);
+        t.setBidPrice(price - 1);
+        t.setAskPrice(price + 1);
+        t.setAveragePrice(2650.123456D);
+        t.setDayVolume(volume);
+        t.setAskVolume(3L);
+        t.setBidVolume(5L);
+        t.setTradingDay(tradingDay);
+        t.setTime(time(tradingDay, second));
+        return t;
+    }
+
+    private LocalDateTime time(LocalDate tradingDay, int second) {
+        return tradingDay.atTime(9, 0).plusSeconds(second).plusNanos(500_000_000L);
+    }
+
+    private Tick copy(Tick t) {
+        var r = new Tick();
+        r.setSymbol(t.getSymbol());
+        r.setPrice(t.getPrice());
+        r.setBidPrice(t.getBidPrice());
+        r.setAveragePrice(t.getAveragePrice());
+        r.setSettlementPrice(t.getSettlementPrice());
+        r.setDayVolume(t.getDayVolume());
+        r.setDayPosition(t.getDayPosition());
+        r.setTradingDay(t.getTradingDay());
+        r.setTime(t.getTime());
+        return r;
+    }
+}
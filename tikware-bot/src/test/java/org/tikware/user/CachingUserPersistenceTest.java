@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingUserPersistenceTest {
+    private final MemoryUserPersistence memory = new MemoryUserPersistence();
+    private final AtomicInteger loads = new AtomicInteger();
+    private volatile CountDownLatch loading;
+    private volatile CountDownLatch release;
+    private CachingUserPersistence cache;
+
+    @BeforeEach
+    public void prepare() {
+        memory.addOrUpdatePrice("c2109", 2650.0D);
+        memory.addOrUpdatePrice("m2109", 3600.0D);
+        memory.addOrUpdatePrice("y2109", 9000.0D);
+        memory.addOrUpdateMultiple("c2109", 10L);
+        memory.addOrUpdateMultiple("m2109", 10L);
+        for (var s : new String[]{"c2109", "m2109"}) {
+            for (var d : new Character[]{Order.BUY, Order.SELL}) {
+                memory.addOrUpdateMarginRatio(s, .1D, d, Order.OPEN,
+                        UserPersistence.RATIO_BY_AMOUNT);
+                memory.addOrUpdateCommissionRatio(s, 1.0D, d, Order.OPEN,
+                        UserPersistence.RATIO_BY_VOLUME);
+            }
+        }
+        // Count loads, and hold a load when asked.
+        cache = new CachingUserPersistence(new DelegatingUserPersistence(memory) {
+            @Override
+            public Double getPrice(String symbol) {
+                loads.incrementAndGet();
+                var v = super.getPrice(symbol);
+                var l = loading;
+                if (l != null) {
+                    l.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                return v;
+            }
+
+            @Override
+            public Double getMargin(String symbol, Double price, Character direction,
+                    Character offset) {
+                loads.incrementAndGet();
+                return super.getMargin(symbol, price, direction, offset);
+            }
+        });
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        cache.configure(CachingUserPersistence.PRICE, Duration.ofMinutes(10), 2);
+        cache.getPrice("c2109");
+        cache.getPrice("m2109");
+        // Touch c2109 so m2109 is the eldest.
+        cache.getPrice("c2109");
+        cache.getPrice("y2109");
+        assertEquals(3, loads.get());
+        cache.getPrice("c2109");
+        assertEquals(3, loads.get());
+        cache.getPrice("m2109");
+        assertEquals(4, loads.get());
+        var s = cache.getStatistics().get(CachingUserPersistence.PRICE);
+        assertEquals(2, s.getHits());
+        assertEquals(4, s.getMisses());
+        assertEquals(2, s.getEvictions());
+        assertEquals(2, s.getSize());
+        // Shrinking evicts at once.
+        cache.configure(CachingUserPersistence.PRICE, Duration.ofMinutes(10), 1);
+        assertEquals(1, cache.getStatistics().get(CachingUserPersistence.PRICE).getSize());
+    }
+
+    @Test
+    public void expireEntries() {
+        cache.configure(CachingUserPersistence.PRICE, Duration.ZERO, 16);
+        cache.getPrice("c2109");
+        cache.getPrice("c2109");
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getStatistics().get(CachingUserPersistence.PRICE)
+                             .getExpirations());
+    }
+
+    @Test
+    public void dropValueLoadedBeforeInvalidation() throws Exception {
+        loading = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        var stale = CompletableFuture.supplyAsync(() -> cache.getPrice("c2109"));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        loading = null;
+        // Price changes while the old one is being loaded.
+        cache.addOrUpdatePrice("c2109", 2651.0D);
+        release.countDown();
+        assertEquals(2650.0D, stale.get(5, TimeUnit.SECONDS));
+        assertEquals(2651.0D, cache.getPrice("c2109"));
+        assertEquals(2651.0D, cache.getPrice("c2109"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void keyFeesByAllArguments() {
+        assertEquals(2650.0D, cache.getMargin("c2109", 2650.0D, Order.BUY, Order.OPEN));
+        assertEquals(2650.0D, cache.getMargin("c2109", 2650.0D, Order.BUY, Order.OPEN));
+        assertEquals(1, loads.get());
+        // Each of price, direction and symbol makes its own entry.
+        assertEquals(2660.0D, cache.getMargin("c2109", 2660.0D, Order.BUY, Order.OPEN));
+        cache.getMargin("c2109", 2650.0D, Order.SELL, Order.OPEN);
+        cache.getMargin("m2109", 2650.0D, Order.BUY, Order.OPEN);
+        assertEquals(4, loads.get());
+        assertEquals(4, cache.getStatistics().get(CachingUserPersistence.MARGIN).getSize());
+        // Ratio of a symbol invalidates its entries only.
+        cache.addOrUpdateMarginRatio("c2109", .2D, Order.BUY, Order.OPEN,
+                UserPersistence.RATIO_BY_AMOUNT);
+        assertEquals(1, cache.getStatistics().get(CachingUserPersistence.MARGIN).getSize());
+        assertEquals(5300.0D, cache.getMargin("c2109", 2650.0D, Order.BUY, Order.OPEN));
+        // Multiple changes fees by amount.
+        cache.addOrUpdateMultiple("c2109", 20L);
+        assertEquals(10600.0D, cache.getMargin("c2109", 2650.0D, Order.BUY, Order.OPEN));
+        cache.getMargin("m2109", 2650.0D, Order.BUY, Order.OPEN);
+        assertEquals(6, loads.get());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Tick;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClockTest {
+    @Test
+    public void coarseClock() {
+        var utc = new CoarseClock(ZoneOffset.UTC);
+        var east = new CoarseClock(ZoneOffset.ofHours(8));
+        var now = LocalDateTime.now(ZoneOffset.UTC);
+        assertTrue(Duration.between(now, utc.now()).abs().toSeconds() < 5);
+        assertEquals(8, Math.round(Duration.between(utc.now(), east.now()).toSeconds() / 3600.0D));
+        // Text is the time formatted.
+        var t = utc.now();
+        var text = utc.getDateTime();
+        assertTrue(text.matches("\\d{8} \\d{2}:\\d{2}:\\d{2}\\.\\d{3}"), text);
+        assertFalse(LocalDateTime.parse(text, ClockStamp.fmt).isBefore(t));
+        // Calls in the same millisecond share one string.
+        var shared = false;
+        for (int i = 0; i < 1000 && !shared; ++i) {
+            var a = utc.getDateTime();
+            var b = utc.getDateTime();
+            if (a.equals(b)) {
+                assertSame(a, b);
+                shared = true;
+            }
+        }
+        assertTrue(shared);
+    }
+
+    @Test
+    public void simulatedClock() {
+        var start = LocalDateTime.of(2021, 5, 31, 9, 0);
+        var c = new SimulatedClock(start);
+        assertEquals(start, c.now());
+        assertEquals("20210531 09:00:00.000", c.getDateTime());
+        c.setTime(start.plusSeconds(1));
+        assertEquals("20210531 09:00:01.000", c.getDateTime());
+        // Never goes backward.
+        c.setTime(start);
+        c.setTime(null);
+        assertEquals(start.plusSeconds(1), c.now());
+        // Follows tick time.
+        var tick = new Tick();
+        tick.setTime(start.plusMinutes(1).plusNanos(5000000));
+        c.onTick(tick, false);
+        assertEquals("20210531 09:01:00.005", c.getDateTime());
+        c.onTick(new Tick(), true);
+        assertEquals(tick.getTime(), c.now());
+    }
+}
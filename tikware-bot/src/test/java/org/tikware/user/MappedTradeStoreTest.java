@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+import org.tikware.api.Trade;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedTradeStoreTest {
+    private Path dir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("tikware-trade");
+    }
+
+    @AfterEach
+    public void clear() throws IOException {
+        try (var s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendAndReload() {
+        // Small capacity so trades roll into several segments.
+        var store = new MappedTradeStore(dir.toString(), 4);
+        for (int i = 0; i < 10; ++i) {
+            store.append("hb.chen", trade("T-" + i, "O-" + (i % 2), "20210601"));
+        }
+        store.append("other", trade("T-10", "O-2", "20210602"));
+        store.force();
+        // Check index.
+        assertEquals(10, store.getTrades("hb.chen").size());
+        assertEquals(5, store.getTradesOfOrder("O-1").size());
+        assertEquals(1, store.getTrades("other").size());
+        // Reopen and check the index is rebuilt from segments.
+        var reopened = new MappedTradeStore(dir.toString(), 4);
+        var trades = reopened.getTrades("hb.chen");
+        assertEquals(10, trades.size());
+        var t = trades.iterator().next();
+        assertEquals("T-0", t.getId());
+        assertEquals("hb.chen", t.getUser());
+        assertEquals("O-0", t.getOrderId());
+        assertEquals("c2109", t.getSymbol());
+        assertEquals("DCE", t.getExchange());
+        assertEquals(2618.0D, t.getPrice());
+        assertEquals(3L, t.getQuantity());
+        assertEquals(Order.BUY, t.getDirection());
+        assertEquals(Order.OPEN, t.getOffset());
+        assertEquals("20210601", t.getTradingDay());
+        assertNull(t.getTime());
+        // Append after reopen continues the last segment.
+        reopened.append("hb.chen", trade("T-11", "O-3", "20210601"));
+        assertEquals(11, new MappedTradeStore(dir.toString(), 4).getTrades("hb.chen").size());
+    }
+
+    @Test
+    public void storeCommittedUnitsOnly() {
+        var p = new MappedTradePersistence(new MemoryUserPersistence(),
+                new MappedTradeStore(dir.toString(), 4));
+        p.begin("hb.chen");
+        p.addTrade("hb.chen", trade("T-0", "O-0", "20210601"));
+        // Not stored before commit.
+        assertTrue(p.getTrades("hb.chen").isEmpty());
+        p.commit("hb.chen");
+        p.begin("hb.chen");
+        p.addTrade("hb.chen", trade("T-1", "O-1", "20210601"));
+        p.rollback("hb.chen");
+        // Outside a unit the trade is stored at once.
+        p.addTrade("hb.chen", trade("T-2", "O-2", "20210601"));
+        var trades = new MappedTradeStore(dir.toString(), 4).getTrades("hb.chen");
+        assertEquals(2, trades.size());
+        assertTrue(trades.stream().noneMatch(t -> t.getId().equals("T-1")));
+        // Missing price is rejected when added.
+        var bad = trade("T-3", "O-3", "20210601");
+        bad.setPrice(null);
+        assertThrows(DataInsertionError.class, () -> p.addTrade("hb.chen", bad));
+        // Field wider than its slot is rejected before the unit commits.
+        var wide = trade("T-4", "O-4", "20210601");
+        wide.setSymbol("c".repeat(33));
+        p.begin("hb.chen");
+        assertThrows(DataInsertionError.class, () -> p.addTrade("hb.chen", wide));
+        p.rollback("hb.chen");
+        assertEquals(2, p.getTrades("hb.chen").size());
+    }
+
+    private Trade trade(String id, String orderId, String tradingDay) {
+        var t = new Trade();
+        t.setId(id);
+        t.setOrderId(orderId);
+        t.setSymbol("c2109");
+        t.setExchange("DCE");
+        t.setPrice(2618.0D);
+        t.setQuantity(3L);
+        t.setDirection(Order.BUY);
+        t.setOffset(Order.OPEN);
+        t.setTradingDay(tradingDay);
+        return t;
+    }
+}
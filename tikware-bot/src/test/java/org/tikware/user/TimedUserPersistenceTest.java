@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimedUserPersistenceTest {
+    @Test
+    public void recordCalls() {
+        var memory = new MemoryUserPersistence();
+        var p = new TimedUserPersistence(new DelegatingUserPersistence(memory) {
+            @Override
+            public UserBalance getUserBalance(String user) {
+                throw new DataQueryError(user, null);
+            }
+        });
+        p.addOrUpdatePrice("c2109", 2650.0D);
+        p.getPrice("c2109");
+        p.getPrice("c2109");
+        p.begin("timed-b");
+        p.alterUserBalance("timed-b", new UserBalance(), UserPersistence.ALTER_ADD);
+        p.commit("timed-b");
+        assertThrows(DataQueryError.class, () -> p.getUserBalance("timed-a"));
+        // By method, failed call counted as error.
+        var methods = p.getMethodStatistics();
+        assertEquals(List.of("begin", "commit", "getPrice", "addOrUpdatePrice",
+                "getUserBalance", "alterUserBalance"), List.copyOf(methods.keySet()));
+        assertEquals(2, methods.get("getPrice").getCount());
+        assertEquals(0, methods.get("getPrice").getErrors());
+        assertEquals(1, methods.get("getUserBalance").getErrors());
+        // By table, reads and writes together.
+        var tables = p.getTableStatistics();
+        assertEquals(3, tables.get("_PRICE_TABLE").getCount());
+        assertEquals(2, tables.get("_USER_BALANCE_TABLE").getCount());
+        assertNull(tables.get("_TRADE_TABLE"));
+        // By user.
+        assertEquals(Set.of("timed-a", "timed-b"), p.getUsers());
+        assertEquals(List.of("begin", "commit", "alterUserBalance"),
+                List.copyOf(p.getUserStatistics("timed-b").keySet()));
+        assertTrue(p.getUserStatistics("nobody").isEmpty());
+        var summary = p.getSummary();
+        assertTrue(summary.contains("method=getPrice, count=2, errors=0"), summary);
+        assertTrue(summary.contains("user=timed-a, count=1, errors=1"), summary);
+    }
+
+    @Test
+    public void exportBeans() throws Exception {
+        var p = new TimedUserPersistence(new MemoryUserPersistence());
+        var server = ManagementFactory.getPlatformMBeanServer();
+        p.getTrades("timed-early");
+        p.register("timed-test");
+        assertThrows(IllegalStateException.class, () -> p.register("timed-other"));
+        assertTrue(server.isRegistered(name("method", "getPrice")));
+        assertTrue(server.isRegistered(name("table", "_TRADE_TABLE")));
+        assertTrue(server.isRegistered(name("user", "timed-early")));
+        // User seen after register is exported on first call.
+        p.getTrades("timed-late");
+        assertTrue(server.isRegistered(name("user", "timed-late")));
+        assertEquals(1L, server.getAttribute(name("user", "timed-late"), "Count"));
+        p.unregister();
+        assertFalse(server.isRegistered(name("method", "getPrice")));
+        assertFalse(server.isRegistered(name("user", "timed-late")));
+    }
+
+    @Test
+    public void summarize() throws InterruptedException {
+        var p = new TimedUserPersistence(new MemoryUserPersistence());
+        p.getTradingDay();
+        var logged = new CountDownLatch(2);
+        p.startSummary(summary -> {
+            if (summary.contains("method=getTradingDay")) {
+                logged.countDown();
+            }
+        }, Duration.ofMillis(10));
+        assertTrue(logged.await(5, TimeUnit.SECONDS));
+        p.stopSummary();
+    }
+
+    private static ObjectName name(String key, String value) throws Exception {
+        return new ObjectName("org.tikware:type=UserPersistence,name=" +
+                              ObjectName.quote("timed-test") + "," + key + "=" +
+                              ObjectName.quote(value));
+    }
+}
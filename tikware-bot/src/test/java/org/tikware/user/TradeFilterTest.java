@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Trade;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TradeFilterTest {
+    @Test
+    public void duplicates() {
+        var f = new TradeFilter(1000, 0.01D);
+        f.load(List.of(trade("20210528", "t-0"), trade("20210531", "t-1")));
+        assertFalse(f.add(trade("20210531", "t-1")));
+        assertFalse(f.add(trade("20210528", "t-0")));
+        // Many new ids, none is taken as duplicate.
+        for (int i = 2; i < 20000; ++i) {
+            assertTrue(f.add(trade("20210531", "t-" + i)));
+        }
+        for (int i = 2; i < 20000; i += 97) {
+            assertFalse(f.add(trade("20210531", "t-" + i)));
+        }
+        assertEquals(2 + 207, f.getDuplicates());
+        // Forgotten trade is accepted again, not as a false positive.
+        var falsePositives = f.getFalsePositives();
+        f.remove(trade("20210531", "t-5"));
+        assertTrue(f.add(trade("20210531", "t-5")));
+        assertFalse(f.add(trade("20210531", "t-5")));
+        assertEquals(falsePositives, f.getFalsePositives());
+        // Only two latest days are kept, older trades are taken as seen.
+        assertTrue(f.add(trade("20210601", "x")));
+        assertFalse(f.add(trade("20210528", "t-0")));
+        assertFalse(f.add(trade("20210528", "y")));
+        assertFalse(f.add(trade("20210531", "t-1")));
+    }
+
+    @Test
+    public void undated() {
+        var f = new TradeFilter(1000, 0.01D);
+        assertTrue(f.add(trade(null, "u-0")));
+        // Undated ids are not evicted by trading days.
+        for (var day : new String[]{"20210531", "20210601", "20210602"}) {
+            assertTrue(f.add(trade(day, "d-" + day)));
+        }
+        assertFalse(f.add(trade(null, "u-0")));
+        assertTrue(f.add(trade("20210601", "d-20210602")));
+        assertFalse(f.add(trade("20210602", "d-20210602")));
+        f.remove(trade(null, "u-0"));
+        assertTrue(f.add(trade(null, "u-0")));
+    }
+
+    private Trade trade(String tradingDay, String id) {
+        var t = new Trade();
+        t.setId(id);
+        t.setTradingDay(tradingDay);
+        return t;
+    }
+}
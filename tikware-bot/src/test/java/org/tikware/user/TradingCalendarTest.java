@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TradingCalendarTest {
+    @Test
+    public void changeTradingDay() {
+        var p = new MemoryUserPersistence();
+        p.addTradingDay("20210603");
+        var c = new TradingCalendar(p);
+        assertEquals("20210603", c.getTradingDay());
+        var changes = new ArrayList<String>();
+        c.addListener((previous, current) -> changes.add(previous + "-" + current));
+        c.setTradingDay("20210604");
+        // Same day and blank gateway day change nothing.
+        c.setTradingDay("20210604");
+        c.reconcile(" ");
+        c.reconcile(null);
+        assertEquals(List.of("20210603-20210604"), changes);
+        assertEquals("20210604", p.getTradingDay());
+        // Failed listener doesn't stop the others, its error is thrown after.
+        c.addListener((previous, current) -> {
+            throw new IllegalStateException(current);
+        });
+        c.addListener((previous, current) -> changes.add(previous + "-" + current));
+        assertThrows(IllegalStateException.class, () -> c.reconcile("20210607"));
+        assertEquals(3, changes.size());
+        assertEquals("20210607", c.getTradingDay());
+    }
+
+    @Test
+    public void shareCalendar() {
+        var days = new ArrayList<String>();
+        var p = new DelegatingUserPersistence(new MemoryUserPersistence()) {
+            @Override
+            public void addTradingDay(String tradingDay) {
+                days.add(tradingDay);
+                super.addTradingDay(tradingDay);
+            }
+        };
+        var a = new User(balance("cal-a"), List.of(), List.of(), List.of(), p);
+        var b = new User(balance("cal-b"), List.of(), List.of(), List.of(), p);
+        assertSame(a.getCalendar(), b.getCalendar());
+        assertSame(a.getCalendar(), TradingCalendar.of(p));
+        assertNotSame(a.getCalendar(), TradingCalendar.of(new MemoryUserPersistence()));
+        var changes = new ArrayList<String>();
+        a.getCalendar().addListener((previous, current) -> changes.add(current));
+        // Each user reconciles the gateway day, it changes once.
+        a.getCalendar().reconcile("20210604");
+        b.getCalendar().reconcile("20210604");
+        assertEquals(List.of("20210604"), days);
+        assertEquals(List.of("20210604"), changes);
+        // Checked throwable of a listener is wrapped.
+        a.getCalendar().addListener((previous, current) -> sneak(new Exception(current)));
+        var error = assertThrows(TradingDayError.class,
+                () -> b.getCalendar().reconcile("20210607"));
+        assertEquals("20210607", error.getCause().getMessage());
+    }
+
+    @Test
+    public void sessions() {
+        var clock = new SimulatedClock(LocalDateTime.of(2021, 6, 4, 12, 0));
+        var c = new TradingCalendar(new MemoryUserPersistence(), clock);
+        c.addSession(LocalTime.of(9, 0), LocalTime.of(11, 30));
+        c.addSession(LocalTime.of(13, 30), LocalTime.of(15, 0));
+        c.addSession(LocalTime.of(21, 0), LocalTime.of(2, 30));
+        assertFalse(c.isTrading());
+        assertTrue(c.isTrading(LocalTime.of(9, 0)));
+        assertFalse(c.isTrading(LocalTime.of(11, 30)));
+        assertTrue(c.isTrading(LocalTime.of(1, 0)));
+        assertFalse(c.isTrading(LocalTime.of(2, 30)));
+        var night = c.getSession(LocalTime.of(23, 0));
+        assertTrue(night.isNight());
+        assertTrue(night.isCrossingMidnight());
+        assertFalse(c.getSession(LocalTime.of(10, 0)).isNight());
+        // Day session belongs to the same day.
+        assertEquals("20210604", c.getTradingDay(LocalDateTime.of(2021, 6, 4, 10, 0)));
+        // Night session belongs to the next weekday, before and after midnight.
+        assertEquals("20210604", c.getTradingDay(LocalDateTime.of(2021, 6, 3, 21, 30)));
+        assertEquals("20210604", c.getTradingDay(LocalDateTime.of(2021, 6, 4, 1, 0)));
+        assertEquals("20210607", c.getTradingDay(LocalDateTime.of(2021, 6, 4, 22, 0)));
+        assertEquals("20210607", c.getTradingDay(LocalDateTime.of(2021, 6, 5, 2, 0)));
+    }
+
+    private static UserBalance balance(String user) {
+        var b = new UserBalance();
+        b.setId(User.nextId());
+        b.setUser(user);
+        b.setBalance(0.0D);
+        return b;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> void sneak(Throwable error) throws T {
+        throw (T) error;
+    }
+}
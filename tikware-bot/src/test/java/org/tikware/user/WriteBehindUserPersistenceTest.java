@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.bot.mem.InMemoryPersistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindUserPersistenceTest {
+    private static final int UNITS = 200;
+    private final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+    private JdbcUserPersistence p;
+
+    @BeforeEach
+    public void prepare() {
+        p = new InMemoryPersistence();
+        p.addOrUpdatePrice("c2109", 2650.0D);
+    }
+
+    @Test
+    public void unitsInOrder() throws InterruptedException {
+        // One stripe so units of both users share a thread.
+        var w = writeBehind(new ExecutorAsyncUserPersistence(p, 1));
+        w.alterUserBalance("wb-order-a", balance("wb-order-a", 0.0D), UserPersistence.ALTER_ADD);
+        w.alterUserBalance("wb-order-b", balance("wb-order-b", 0.0D), UserPersistence.ALTER_ADD);
+        var begun = new CountDownLatch(1);
+        var queued = new CountDownLatch(1);
+        run(() -> {
+            // Unit of b is queued while unit of a is open.
+            w.begin("wb-order-a");
+            begun.countDown();
+            await(queued);
+            units(w, "wb-order-a", true);
+        }, () -> {
+            await(begun);
+            w.begin("wb-order-b");
+            w.alterUserBalance("wb-order-b", balance("wb-order-b", -1.0D),
+                    UserPersistence.ALTER_UPDATE);
+            w.commit("wb-order-b");
+            queued.countDown();
+            units(w, "wb-order-b", false);
+        });
+        w.flush().join();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(0, w.getPending());
+        assertEquals(UNITS, p.getUserBalance("wb-order-a").getBalance());
+        assertEquals(UNITS, p.getUserBalance("wb-order-b").getBalance());
+        w.getAsync().close();
+    }
+
+    @Test
+    public void rollbackOnlyOwnUnit() throws InterruptedException {
+        var w = writeBehind(new ExecutorAsyncUserPersistence(p, 1));
+        w.alterUserBalance("wb-keep", balance("wb-keep", 0.0D), UserPersistence.ALTER_ADD);
+        w.alterUserBalance("wb-drop", balance("wb-drop", 0.0D), UserPersistence.ALTER_ADD);
+        var begun = new CountDownLatch(1);
+        var queued = new CountDownLatch(1);
+        run(() -> {
+            w.begin("wb-keep");
+            begun.countDown();
+            await(queued);
+            units(w, "wb-keep", true);
+        }, () -> {
+            await(begun);
+            for (int i = 1; i <= UNITS; ++i) {
+                w.begin("wb-drop");
+                w.alterUserBalance("wb-drop", balance("wb-drop", -i), UserPersistence.ALTER_UPDATE);
+                w.rollback("wb-drop");
+                queued.countDown();
+            }
+        });
+        w.flush().join();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(UNITS, p.getUserBalance("wb-keep").getBalance());
+        assertEquals(0.0D, p.getUserBalance("wb-drop").getBalance());
+        w.getAsync().close();
+    }
+
+    @Test
+    public void globalReadDuringUnit() throws Exception {
+        var w = writeBehind(new ExecutorAsyncUserPersistence(p, 1));
+        w.alterUserBalance("wb-global", balance("wb-global", 0.0D), UserPersistence.ALTER_ADD);
+        w.begin("wb-global");
+        w.alterUserBalance("wb-global", balance("wb-global", 1.0D), UserPersistence.ALTER_UPDATE);
+        // Read inside the unit sees its write, global read elsewhere doesn't wait for it.
+        assertEquals(1.0D, w.getUserBalance("wb-global").getBalance());
+        var price = CompletableFuture.supplyAsync(() -> w.getPrice("c2109"));
+        assertEquals(2650.0D, price.get(5, TimeUnit.SECONDS));
+        // Other user can't begin on the thread until the unit ends.
+        assertThrows(DataCommitError.class, () -> w.begin("wb-other"));
+        w.commit("wb-global");
+        w.flush().join();
+        assertTrue(errors.isEmpty(), errors.toString());
+        w.getAsync().close();
+    }
+
+    @Test
+    public void rollbackFailedUnit() {
+        var failing = new DelegatingUserPersistence(p) {
+            @Override
+            public void alterUserCash(String user, UserCash cash, Character alter) {
+                throw new DataInsertionError("Cash", null);
+            }
+        };
+        var w = writeBehind(new ExecutorAsyncUserPersistence(failing, 1));
+        w.alterUserBalance("wb-failed", balance("wb-failed", 0.0D), UserPersistence.ALTER_ADD);
+        w.begin("wb-failed");
+        w.alterUserBalance("wb-failed", balance("wb-failed", 1.0D), UserPersistence.ALTER_UPDATE);
+        w.alterUserCash("wb-failed", new UserCash(), UserPersistence.ALTER_ADD);
+        w.commit("wb-failed");
+        // Commit of the unit turns into rollback, so the update before the failure is dropped.
+        var error = assertThrows(CompletionException.class, () -> w.flush().join());
+        assertTrue(error.getCause() instanceof DataCommitError);
+        assertTrue(errors.stream().anyMatch(e -> e instanceof DataInsertionError));
+        assertTrue(errors.stream().anyMatch(e -> e instanceof DataCommitError));
+        assertEquals(0.0D, p.getUserBalance("wb-failed").getBalance());
+        // Next unit commits.
+        w.begin("wb-failed");
+        w.alterUserBalance("wb-failed", balance("wb-failed", 2.0D), UserPersistence.ALTER_UPDATE);
+        w.commit("wb-failed");
+        w.flush().join();
+        assertEquals(2.0D, p.getUserBalance("wb-failed").getBalance());
+        w.getAsync().close();
+    }
+
+    @Test
+    public void closeDrainsQueue() throws InterruptedException {
+        var async = new ExecutorAsyncUserPersistence(p, 2);
+        var w = writeBehind(async);
+        var users = List.of("wb-close-0", "wb-close-1", "wb-close-2");
+        users.forEach(u -> w.alterUserBalance(u, balance(u, 0.0D), UserPersistence.ALTER_ADD));
+        run(users.stream().map(u -> (Runnable) () -> {
+            for (int i = 1; i <= UNITS; ++i) {
+                w.begin(u);
+                w.alterUserBalance(u, balance(u, i), UserPersistence.ALTER_UPDATE);
+                w.commit(u);
+                w.addOrUpdatePrice("c2109", 2650.0D + i);
+            }
+        }).toArray(Runnable[]::new));
+        async.close();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(0, w.getPending());
+        for (var u : users) {
+            assertEquals(UNITS, p.getUserBalance(u).getBalance());
+        }
+        assertEquals(2650.0D + UNITS, p.getPrice("c2109"));
+    }
+
+    private static void units(UserPersistence w, String user, boolean open) {
+        for (int i = 1; i <= UNITS; ++i) {
+            if (i > 1 || !open) {
+                w.begin(user);
+            }
+            w.alterUserBalance(user, balance(user, i), UserPersistence.ALTER_UPDATE);
+            w.commit(user);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private WriteBehindUserPersistence writeBehind(AsyncUserPersistence async) {
+        var w = new WriteBehindUserPersistence(async);
+        w.setErrorListener(errors::add);
+        return w;
+    }
+
+    private static void run(Runnable... callers) throws InterruptedException {
+        // Start callers together so their units interleave.
+        var start = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        for (var c : callers) {
+            var t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ignored) {
+                }
+                c.run();
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (var t : threads) {
+            t.join();
+        }
+    }
+
+    private static UserBalance balance(String user, double value) {
+        var b = new UserBalance();
+        b.setId(user + "-balance");
+        b.setUser(user);
+        b.setBalance(value);
+        b.setTradingDay("20210531");
+        b.setTime("20210531 09:00:00 000");
+        return b;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Shards users over N H2 databases named {@code <db>-<i>} in the directory.
+ * Each database has its own connection and writer thread, the first one also
+ * keeps the global tables.
+ */
+public class ShardedH2Persistence extends ShardedUserPersistence {
+    private final List<H2Persistence> databases;
+    private final List<ExecutorAsyncUserPersistence> writers;
+
+    public ShardedH2Persistence(String directory, String db, int shards) {
+        this(databases(directory, db, shards));
+    }
+
+    private ShardedH2Persistence(List<H2Persistence> databases) {
+        this(databases, writers(databases));
+    }
+
+    private ShardedH2Persistence(List<H2Persistence> databases,
+            List<ExecutorAsyncUserPersistence> writers) {
+        super(writeBehind(writers));
+        this.databases = databases;
+        this.writers = writers;
+    }
+
+    private static List<H2Persistence> databases(String directory, String db, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Shards must be positive.");
+        }
+        var r = new ArrayList<H2Persistence>();
+        for (int i = 0; i < shards; ++i) {
+            r.add(new H2Persistence(directory, db + "-" + i));
+        }
+        return r;
+    }
+
+    private static List<ExecutorAsyncUserPersistence> writers(List<H2Persistence> databases) {
+        var r = new ArrayList<ExecutorAsyncUserPersistence>();
+        for (var d : databases) {
+            r.add(new ExecutorAsyncUserPersistence(d, 1));
+        }
+        return r;
+    }
+
+    private static List<WriteBehindUserPersistence> writeBehind(
+            List<ExecutorAsyncUserPersistence> writers) {
+        var r = new ArrayList<WriteBehindUserPersistence>();
+        for (var w : writers) {
+            r.add(new WriteBehindUserPersistence(w));
+        }
+        return r;
+    }
+
+    public void setErrorListener(Consumer<Throwable> listener) {
+        for (var s : getShards()) {
+            ((WriteBehindUserPersistence) s).setErrorListener(listener);
+        }
+    }
+
+    /**
+     * Get a future that completes after previous writes of all shards are
+     * durable.
+     *
+     * @return future of previous writes
+     */
+    public CompletableFuture<Void> flush() {
+        var shards = getShards();
+        var all = new CompletableFuture<?>[shards.size()];
+        for (int i = 0; i < all.length; ++i) {
+            all[i] = ((WriteBehindUserPersistence) shards.get(i)).flush();
+        }
+        return CompletableFuture.allOf(all);
+    }
+
+    public void close() {
+        for (int i = 0; i < databases.size(); ++i) {
+            writers.get(i).close();
+            databases.get(i).close();
+        }
+    }
+
+    public void deleteDb() {
+        for (int i = 0; i < databases.size(); ++i) {
+            writers.get(i).close();
+            databases.get(i).deleteDb();
+        }
+    }
+}
@@ -21,9 +21,12 @@ package org.tikware.user;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.tikware.api.Order;
 import org.tikware.api.Trade;
 
+import java.nio.file.Path;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class JdbcUserPersistenceTest {
@@ -489,4 +492,101 @@ public class JdbcUserPersistenceTest {
         assertEquals(t.getTradingDay(), t0.getTradingDay());
         assertEquals(t.getTime(), t0.getTime());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void archiveTradingDays(@TempDir Path archive) {
+        db().addTradingDay("20210528");
+        db().addTradingDay("20210531");
+        for (var day : new String[]{"20210528", "20210531"}) {
+            var t = new Trade();
+            t.setId("T-" + day);
+            t.setUser("hb.chen");
+            t.setOrderId("O-" + day);
+            t.setSymbol("c2109");
+            t.setExchange("DCE");
+            t.setPrice(2650.0D);
+            t.setQuantity(1L);
+            t.setDirection(Order.BUY);
+            t.setOffset(Order.OPEN);
+            t.setTradingDay(day);
+            t.setTime(day + " 14:56:54 653");
+            db().addTrade("hb.chen", t);
+        }
+        // Keep the last trading day in table.
+        var archiver = new TradingDayArchiver(db(), archive, 1);
+        assertEquals("20210531", archiver.getCutoff());
+        assertEquals(1, archiver.archive("hb.chen"));
+        var ts = db().getTrades("hb.chen");
+        assertEquals(1, ts.size());
+        assertEquals("T-20210531", ts.iterator().next().getId());
+        // Read archived trade.
+        var reader = new TradingDayArchive(archive);
+        assertTrue(reader.getTradingDays().contains("20210528"));
+        var old = reader.getTrades("hb.chen", "20210528");
+        assertEquals(1, old.size());
+        assertEquals("T-20210528", old.iterator().next().getId());
+        assertEquals(2650.0D, old.iterator().next().getPrice());
+        // Nothing more to archive.
+        assertEquals(0, archiver.archive("hb.chen"));
+    }
+
+    @Test
+    public void rollbackOnlyOwnUnit() throws InterruptedException {
+        // Tables are created by the first unit of each user.
+        for (var u : new String[]{"a", "b"}) {
+            db().begin(u);
+            db().commit(u);
+        }
+        // User a opens a unit, b queues behind it and joins the same group.
+        db().begin("a");
+        db().addTrade("a", trade("T-a"));
+        var error = new Throwable[1];
+        var b = new Thread(() -> {
+            try {
+                db().begin("b");
+                db().addTrade("b", trade("T-b"));
+                db().rollback("b");
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        b.start();
+        while (b.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        // Rollback of b doesn't fail commit of a.
+        db().commit("a");
+        b.join();
+        assertNull(error[0]);
+        assertEquals(1, db().getTrades("a").size());
+        assertTrue(db().getTrades("b").isEmpty());
+    }
+
+    @Test
+    public void rejectOtherUserInUnit() {
+        db().begin("a");
+        assertThrows(DataCommitError.class, () -> db().begin("b"));
+        assertThrows(DataCommitError.class, () -> db().commit("b"));
+        // Nested unit of the same user joins the outer one.
+        db().begin("a");
+        db().addTrade("a", trade("T-a"));
+        db().commit("a");
+        db().commit("a");
+        assertEquals(1, db().getTrades("a").size());
+    }
+
+    private Trade trade(String id) {
+        var t = new Trade();
+        t.setId(id);
+        t.setOrderId("O-" + id);
+        t.setSymbol("c2109");
+        t.setExchange("DCE");
+        t.setPrice(2650.0D);
+        t.setQuantity(1L);
+        t.setDirection(Order.BUY);
+        t.setOffset(Order.OPEN);
+        t.setTradingDay("20210531");
+        t.setTime("20210531 14:56:54 653");
+        return t;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020-2021. Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tikware.user;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tikware.api.Order;
+import org.tikware.api.Trade;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardedH2PersistenceTest {
+    private final String dir = "~/tikware/database";
+    private final String db = "shard";
+    private ShardedH2Persistence persistence;
+
+    @BeforeEach
+    public void setup() {
+        persistence = new ShardedH2Persistence(dir, db, 4);
+    }
+
+    @AfterEach
+    public void clear() {
+        if (persistence != null) {
+            persistence.deleteDb();
+        }
+    }
+
+    @Test
+    public void shardUsers() {
+        var users = new String[]{"hb.chen", "user.1", "user.2", "user.3", "user.4"};
+        persistence.addTradingDay("20210531");
+        for (var u : users) {
+            persistence.begin(u);
+            persistence.addTrade(u, trade(u));
+            persistence.commit(u);
+        }
+        persistence.flush().join();
+        // Each user reads own trade from own shard.
+        for (var u : users) {
+            var ts = persistence.getTrades(u);
+            assertEquals(1, ts.size());
+            assertEquals("T-" + u, ts.iterator().next().getId());
+        }
+        // Global tables are in the first shard.
+        assertEquals("20210531", persistence.getTradingDay());
+        assertEquals("20210531", persistence.getGlobalShard().getTradingDay());
+    }
+
+    @Test
+    public void shardByTableName() {
+        // Names of the same tables are kept in the same shard.
+        var shard = persistence.getShard("hb.chen");
+        for (var u : new String[]{"HB.CHEN", "hbchen", "Hb-Chen"}) {
+            assertSame(shard, persistence.getShard(u));
+        }
+    }
+
+    @Test
+    public void rollbackInSharedShard() throws InterruptedException {
+        var errors = new ConcurrentLinkedQueue<Throwable>();
+        persistence.setErrorListener(errors::add);
+        // Two users kept in one shard.
+        var keep = "keep.0";
+        var drop = "drop.0";
+        for (int i = 1; persistence.getShard(keep) != persistence.getShard(drop); ++i) {
+            drop = "drop." + i;
+        }
+        var d = drop;
+        var begun = new CountDownLatch(1);
+        var queued = new CountDownLatch(1);
+        var k = new Thread(() -> {
+            persistence.begin(keep);
+            persistence.addTrade(keep, trade(keep));
+            begun.countDown();
+            try {
+                queued.await();
+            } catch (InterruptedException ignored) {
+            }
+            persistence.commit(keep);
+        });
+        k.start();
+        begun.await();
+        // Unit rolled back while the other user's unit is open.
+        persistence.begin(d);
+        persistence.addTrade(d, trade(d));
+        persistence.rollback(d);
+        queued.countDown();
+        k.join();
+        persistence.flush().join();
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(1, persistence.getTrades(keep).size());
+        assertTrue(persistence.getTrades(d).isEmpty());
+    }
+
+    private Trade trade(String user) {
+        var t = new Trade();
+        t.setId("T-" + user);
+        t.setUser(user);
+        t.setOrderId("O-" + user);
+        t.setSymbol("c2109");
+        t.setExchange("DCE");
+        t.setPrice(2650.0D);
+        t.setQuantity(1L);
+        t.setDirection(Order.BUY);
+        t.setOffset(Order.OPEN);
+        t.setTradingDay("20210531");
+        t.setTime("20210531 14:56:54 653");
+        return t;
+    }
+}